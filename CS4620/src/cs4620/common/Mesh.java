@@ -3,6 +3,7 @@ package cs4620.common;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
+import cs4620.mesh.MeshSimplifier;
 import cs4620.mesh.gen.MeshGenOptions;
 import cs4620.mesh.gen.MeshGenerator;
 
@@ -16,6 +17,10 @@ public class Mesh extends ACUniqueObject implements IXMLDocWriteable {
 	public String file;
 	public MeshGenerator generator;
 	public final MeshGenOptions genOptions = new MeshGenOptions();
+	/**
+	 * Triangle Ratios Of The Simplified Levels Built For Large File Meshes (Empty For None)
+	 */
+	public float[] lodRatios = MeshSimplifier.DEFAULT_LOD_RATIOS.clone();
 	
 	public Mesh() {
 		genOptions.divisionsLatitude = 80;
@@ -33,6 +38,9 @@ public class Mesh extends ACUniqueObject implements IXMLDocWriteable {
 		file = f;
 		generator = null;
 	}
+	public void setLodRatios(float... r) {
+		lodRatios = r.clone();
+	}
 	public void setGenOptions(MeshGenOptions o) {
 		genOptions.divisionsLatitude = o.divisionsLatitude;
 		genOptions.divisionsLongitude = o.divisionsLongitude;
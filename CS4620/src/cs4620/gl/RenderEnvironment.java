@@ -1,7 +1,9 @@
 package cs4620.gl;
 
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map.Entry;
 
@@ -15,6 +17,9 @@ import cs4620.common.Texture;
 import cs4620.common.texture.TexCubeMap;
 import cs4620.mesh.MeshConverter;
 import cs4620.mesh.MeshData;
+import cs4620.mesh.MeshFile;
+import cs4620.mesh.MeshOptimizer;
+import cs4620.mesh.MeshSimplifier;
 import cs4620.mesh.OBJMesh;
 import cs4620.mesh.OBJParser;
 import egl.GL.PixelFormat;
@@ -30,10 +35,19 @@ import egl.math.Vector3;
 import egl.math.Vector3i;
 
 public class RenderEnvironment implements IDisposable {
+	/**
+	 * File Meshes With Fewer Triangles Are Not Simplified
+	 */
+	private static final int MIN_LOD_TRIANGLES = 4096;
+
 	/**
 	 * OpenGL Mesh Resources
 	 */
 	public final HashMap<String, RenderMesh> meshes = new HashMap<>();
+	/**
+	 * Mesh Data Loaded From Files (With Its Simplified Levels), Keyed By File And Modification Time
+	 */
+	private final HashMap<String, MeshData[]> fileMeshes = new HashMap<>();
 	/**
 	 * OpenGL Texture Resources
 	 */
@@ -61,6 +75,12 @@ public class RenderEnvironment implements IDisposable {
 	public final Vector2 viewportSize = new Vector2();
 
 	public TexCubeMap cubemap = new TexCubeMap();
+	/**
+	 * Reorder New OBJ And Generated Meshes For The Vertex Cache Before Uploading Them.
+	 * Off By Default Since It Slows Down Loading; Binary Meshes Are Never Touched
+	 * (Reorder Them Once With MeshGen -opt Instead).
+	 */
+	public boolean optimizeMeshes = false;
 	
 	public RenderEnvironment(Vector2 viewSize) {
 		viewportSize.set(viewSize);
@@ -69,6 +89,7 @@ public class RenderEnvironment implements IDisposable {
 	public void dispose() {
 		for(Entry<String, RenderMesh> e : meshes.entrySet()) e.getValue().dispose();
 		meshes.clear();
+		fileMeshes.clear();
 		
 		for(Entry<String, GLTexture> e : textures.entrySet()) e.getValue().dispose();
 		textures.clear();
@@ -134,71 +155,50 @@ public class RenderEnvironment implements IDisposable {
 	}
 	
 	public void addMesh(Mesh m) {
+		// The Full Mesh, Then Its Simplified Levels
+		ArrayList<MeshData> levels = new ArrayList<>();
 		MeshData md = new MeshData();
+		String fileKey = null;
+		boolean loaded = true, mapped = false;
 		switch (m.type) {
 		case FILE:
-			// Load From OBJ
-			OBJMesh om = OBJParser.parse(m.file);
-			if(om == null || !om.hasData()) return;
-			if(om.hasUVs()) {
-				if(!om.hasNormals()) {
-					System.err.println("Input Mesh Must Contain Normals If UVs are specified");
-					return;
-				}
-				
-				// Mesh Description
-				md.indexCount = om.triangles.size() * 3;
-				md.vertexCount = om.vertices.size();
-				md.positions = BufferUtils.createFloatBuffer(md.vertexCount * 3);
-				md.normals = BufferUtils.createFloatBuffer(md.vertexCount * 3);
-				md.uvs = BufferUtils.createFloatBuffer(md.vertexCount * 2);
-				md.indices = BufferUtils.createIntBuffer(md.indexCount);
-				
-				// Flatten Data
-				for(Vector3i vert : om.vertices) {
-					Vector3 v = om.positions.get(vert.x);
-					md.positions.put(v.x);
-					md.positions.put(v.y);
-					md.positions.put(v.z);
-					v = om.normals.get(vert.z);
-					md.normals.put(v.x);
-					md.normals.put(v.y);
-					md.normals.put(v.z);
-					Vector2 v2 = om.uvs.get(vert.y);
-					md.uvs.put(v2.x);
-					md.uvs.put(v2.y);
-				}
-				for(Vector3i t : om.triangles) {
-					md.indices.put(t.x);
-					md.indices.put(t.y);
-					md.indices.put(t.z);
-				}
+			// Reuse The Data (And Its Tangent Space) If The File Has Not Changed Since It Was Loaded
+			fileKey = m.file + "@" + new File(m.file).lastModified();
+			if(fileMeshes.containsKey(fileKey)) {
+				levels.addAll(Arrays.asList(fileMeshes.get(fileKey)));
+				loaded = false;
+				break;
 			}
-			else {
-				// Set The Triangle Indices To The Vertex's Position Index
-				for(Vector3i t : om.triangles) {
-					t.x = om.vertices.get(t.x).x;
-					t.y = om.vertices.get(t.y).x;
-					t.z = om.vertices.get(t.z).x;
-				}
 
-				// Convert The Data
-				md = MeshConverter.convertToFaceNormals(om.positions, om.triangles);
-				if(!md.hasData()) {
-					System.err.println("Mesh Conversion Error - No Output Data");
+			if(MeshFile.isMeshFile(m.file)) {
+				// Map A Binary Mesh
+				md = MeshFile.read(m.file);
+				if(md == null || !md.hasData()) return;
+				if(!md.hasNormals()) {
+					System.err.println("Binary Meshes Must Contain Normals");
 					return;
 				}
-
-				// Add Some Interesting UVs
-				md.uvs = BufferUtils.createFloatBuffer(md.vertexCount * 2);
-				for(int i = 0;i < md.indexCount;) {
-					int v = md.indices.get(i++) * 2;
-					md.uvs.put(v++, 0); md.uvs.put(v, 0);
-					v = md.indices.get(i++) * 2;
-					md.uvs.put(v++, 0); md.uvs.put(v, 1);
-					v = md.indices.get(i++) * 2;
-					md.uvs.put(v++, 1); md.uvs.put(v, 1);
+				if(!md.hasUVs()) md.uvs = BufferUtils.createFloatBuffer(md.vertexCount * 2);
+				mapped = true;
+				levels.add(md);
+				if(md.indexCount / 3 >= MIN_LOD_TRIANGLES) {
+					levels.addAll(Arrays.asList(MeshSimplifier.buildLods(md, m.lodRatios)));
 				}
+				break;
+			}
+
+			// Load From OBJ (Simplified Before Conversion, Which May Split Every Triangle Apart)
+			OBJMesh om = OBJParser.parse(m.file);
+			if(om == null || !om.hasData()) return;
+			ArrayList<OBJMesh> objLevels = new ArrayList<>();
+			objLevels.add(om);
+			if(om.triangles.size() >= MIN_LOD_TRIANGLES) {
+				objLevels.addAll(Arrays.asList(MeshSimplifier.buildLods(om, m.lodRatios)));
+			}
+			for(OBJMesh level : objLevels) {
+				md = convert(level);
+				if(md == null) return;
+				levels.add(md);
 			}
 			break;
 		case GENERATOR:
@@ -208,18 +208,94 @@ public class RenderEnvironment implements IDisposable {
 				System.err.println("Mesh Conversion Error - No Output Data");
 				return;
 			}
+			levels.add(md);
 			break;
 		default:
 			return;
 		}
 
+		// Improve Vertex Reuse (Cached File Data Was Already Reordered, Mapped Files Keep Their Buffers)
+		if(loaded && !mapped && optimizeMeshes) {
+			for(MeshData level : levels) MeshOptimizer.optimize(level);
+		}
+
 		// Create OpenGL Resource
 		RenderMesh rm = new RenderMesh(m);
-		rm.build(md);
+		rm.build(levels.get(0));
+		for(int i = 1;i < levels.size();i++) rm.addLod(levels.get(i));
+		if(fileKey != null) fileMeshes.put(fileKey, levels.toArray(new MeshData[levels.size()]));
 
 		// Add To Dictionary
 		meshes.put(m.getID().name, rm);
 	}
+	/**
+	 * Flattens An OBJ Mesh, Adding Face Normals And Some UVs If It Has Neither
+	 * @return The Mesh Data, Or Null On An Error
+	 */
+	private static MeshData convert(OBJMesh om) {
+		MeshData md = new MeshData();
+		if(om.hasUVs()) {
+			if(!om.hasNormals()) {
+				System.err.println("Input Mesh Must Contain Normals If UVs are specified");
+				return null;
+			}
+			
+			// Mesh Description
+			md.indexCount = om.triangles.size() * 3;
+			md.vertexCount = om.vertices.size();
+			md.positions = BufferUtils.createFloatBuffer(md.vertexCount * 3);
+			md.normals = BufferUtils.createFloatBuffer(md.vertexCount * 3);
+			md.uvs = BufferUtils.createFloatBuffer(md.vertexCount * 2);
+			md.indices = BufferUtils.createIntBuffer(md.indexCount);
+			
+			// Flatten Data
+			for(Vector3i vert : om.vertices) {
+				Vector3 v = om.positions.get(vert.x);
+				md.positions.put(v.x);
+				md.positions.put(v.y);
+				md.positions.put(v.z);
+				v = om.normals.get(vert.z);
+				md.normals.put(v.x);
+				md.normals.put(v.y);
+				md.normals.put(v.z);
+				Vector2 v2 = om.uvs.get(vert.y);
+				md.uvs.put(v2.x);
+				md.uvs.put(v2.y);
+			}
+			for(Vector3i t : om.triangles) {
+				md.indices.put(t.x);
+				md.indices.put(t.y);
+				md.indices.put(t.z);
+			}
+		}
+		else {
+			// Set The Triangle Indices To The Vertex's Position Index
+			for(Vector3i t : om.triangles) {
+				t.x = om.vertices.get(t.x).x;
+				t.y = om.vertices.get(t.y).x;
+				t.z = om.vertices.get(t.z).x;
+			}
+
+			// Convert The Data
+			md = MeshConverter.convertToFaceNormals(om.positions, om.triangles);
+			if(!md.hasData()) {
+				System.err.println("Mesh Conversion Error - No Output Data");
+				return null;
+			}
+
+			// Add Some Interesting UVs
+			md.uvs = BufferUtils.createFloatBuffer(md.vertexCount * 2);
+			for(int i = 0;i < md.indexCount;) {
+				int v = md.indices.get(i++) * 2;
+				md.uvs.put(v++, 0); md.uvs.put(v, 0);
+				v = md.indices.get(i++) * 2;
+				md.uvs.put(v++, 0); md.uvs.put(v, 1);
+				v = md.indices.get(i++) * 2;
+				md.uvs.put(v++, 1); md.uvs.put(v, 1);
+			}
+		}
+		return md;
+	}
 	public boolean removeMesh(String name) {
 		RenderMesh m = meshes.get(name);
 		if(m == null) return false;
@@ -3,6 +3,7 @@ package cs4620.gl;
 
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
 
 import cs4620.common.Mesh;
 import cs4620.mesh.MeshData;
@@ -15,9 +16,9 @@ import egl.GLError;
 import egl.IDisposable;
 import egl.NativeMem;
 import egl.Semantic;
-import egl.math.Vector2;
+import egl.math.Matrix4;
 import egl.math.Vector3;
-import egl.math.Vector3i;
+import egl.math.Vector4;
 
 public class RenderMesh implements IDisposable {
 	private static final int VERTEX_SIZE = 8 * 4;
@@ -43,6 +44,21 @@ public class RenderMesh implements IDisposable {
 	public final GLBuffer iBuffer = new GLBuffer(BufferTarget.ElementArrayBuffer, BufferUsageHint.StaticDraw, false);
 	public int vertexCount;
 	public int indexCount;
+	/**
+	 * Object Space Bounding Sphere
+	 */
+	public final Vector3 boundsCenter = new Vector3();
+	public float boundsRadius;
+	/**
+	 * Simplified Versions Of This Mesh, Finest First
+	 */
+	public final ArrayList<RenderMesh> lods = new ArrayList<>();
+	/**
+	 * Levels Are Picked To Have About One Triangle Per This Many Pixels Covered
+	 */
+	private static final float PIXELS_PER_TRIANGLE = 8;
+	private final Vector3 center = new Vector3();
+	private final Vector4 clip = new Vector4();
 
 	public final Mesh sceneMesh;
 
@@ -55,12 +71,31 @@ public class RenderMesh implements IDisposable {
 		vBufferTangentSpace.dispose();
 		vBufferSkinned.dispose();
 		iBuffer.dispose();
+		for(RenderMesh lod : lods) lod.dispose();
+		lods.clear();
 	}
 
 	public void build(MeshData data) {
 		vertexCount = data.vertexCount;
 		indexCount = data.indexCount;
 
+		// Bounding Sphere Around The Center Of The Bounding Box
+		Vector3 min = new Vector3(Float.MAX_VALUE), max = new Vector3(-Float.MAX_VALUE);
+		for(int i = 0;i < vertexCount;i++) {
+			float x = data.positions.get(3 * i), y = data.positions.get(3 * i + 1), z = data.positions.get(3 * i + 2);
+			min.set(Math.min(min.x, x), Math.min(min.y, y), Math.min(min.z, z));
+			max.set(Math.max(max.x, x), Math.max(max.y, y), Math.max(max.z, z));
+		}
+		boundsCenter.set(min).add(max).mul(0.5f);
+		float maxDistSq = 0;
+		for(int i = 0;i < vertexCount;i++) {
+			float dx = data.positions.get(3 * i) - boundsCenter.x;
+			float dy = data.positions.get(3 * i + 1) - boundsCenter.y;
+			float dz = data.positions.get(3 * i + 2) - boundsCenter.z;
+			maxDistSq = Math.max(maxDistSq, dx * dx + dy * dy + dz * dz);
+		}
+		boundsRadius = (float)Math.sqrt(maxDistSq);
+
 		// Interlace The Data
 		ByteBuffer bb = NativeMem.createByteBuffer(vertexCount * VERTEX_SIZE);
 		data.positions.position(0);
@@ -93,61 +128,8 @@ public class RenderMesh implements IDisposable {
 		data.indices.limit(indexCount);
 		iBuffer.setDataInitial(data.indices);
 
-		// Calculate Tangent Space Information
-		FloatBuffer fb = NativeMem.createFloatBuffer(vertexCount * VERTEX_SIZE_TANGENT_SPACE / 4);
-		int ii = 0;
-		Vector3[] pos = {
-				new Vector3(),
-				new Vector3(),
-				new Vector3()
-		};
-		Vector2[] uv = {
-				new Vector2(),
-				new Vector2(),
-				new Vector2()
-		};
-		Vector3i vertIndices = new Vector3i();
-		while(ii < indexCount) {
-			vertIndices.set(
-					data.indices.get(ii),
-					data.indices.get(ii + 1),
-					data.indices.get(ii + 2)
-					);
-			ii += 3;
-
-			// Get All The Positions And UVs On The Triangle
-			for(int vi = 0;vi < 3;vi++) {
-				int vpo = vertIndices.get(vi) * 3;
-				pos[vi].set(
-						data.positions.get(vpo),
-						data.positions.get(vpo + 1),
-						data.positions.get(vpo + 2)
-						);
-				int vto = vertIndices.get(vi) * 2;
-				uv[vi].set(
-						data.uvs.get(vto),
-						data.uvs.get(vto + 1)
-						);
-			}
-
-			pos[1].sub(pos[0]);
-			pos[2].sub(pos[0]);
-			uv[1].sub(uv[0]);
-			uv[2].sub(uv[0]).negate();
-
-			float r = 1.0f / (uv[1].x * uv[2].y - uv[1].y * uv[2].x);
-			Vector3 tangent = (pos[1].clone().mul(uv[2].y).sub(pos[2].clone().mul(uv[1].y))).mul(r).normalize();
-			Vector3 bitangent = (pos[2].mul(uv[1].x).sub(pos[1].mul(uv[2].x))).mul(r).normalize();
-			for(int vi = 0;vi < 3;vi++) {
-				int vo = vertIndices.get(vi) * (VERTEX_SIZE_TANGENT_SPACE / 4);
-				fb.put(vo, tangent.x);
-				fb.put(vo + 1, tangent.y);
-				fb.put(vo + 2, tangent.z);
-				fb.put(vo + 3, bitangent.x);
-				fb.put(vo + 4, bitangent.y);
-				fb.put(vo + 5, bitangent.z);
-			}
-		}
+		// Tangent Space Information Is Computed (Once) On The CPU Side
+		FloatBuffer fb = data.getTangentSpace();
 		fb.position(0);
 		fb.limit(vertexCount * VERTEX_SIZE_TANGENT_SPACE / 4);
 		GLError.get("RenderMesh init: index setDataInitial");
@@ -156,6 +138,46 @@ public class RenderMesh implements IDisposable {
 		vBufferTangentSpace.setAsVertex(VERTEX_SIZE_TANGENT_SPACE);
 		vBufferTangentSpace.setDataInitial(fb);
 	}
+	/**
+	 * Adds A Simplified Version Of This Mesh (Coarser Than The Ones Added Before)
+	 * @param data Mesh Data Of The Level
+	 */
+	public void addLod(MeshData data) {
+		RenderMesh lod = new RenderMesh(sceneMesh);
+		lod.build(data);
+		lods.add(lod);
+	}
+	/**
+	 * Picks The Coarsest Level That Still Has About One Triangle Per PIXELS_PER_TRIANGLE
+	 * Pixels Of The Projected Bounding Sphere
+	 * @param mWorld Object To World Transformation
+	 * @param camera Camera The Object Is Drawn With
+	 * @return This Mesh Or One Of Its Levels
+	 */
+	public RenderMesh selectLod(Matrix4 mWorld, RenderCamera camera) {
+		if(lods.isEmpty() || vBufferSkinned.getIsCreated()) return this;
+
+		// Bounding Sphere In World Space (Radius Scaled By The Largest Axis Scale)
+		mWorld.mulPos(center.set(boundsCenter));
+		float scale = 0;
+		for(int c = 0;c < 3;c++) {
+			float x = mWorld.get(0, c), y = mWorld.get(1, c), z = mWorld.get(2, c);
+			scale = Math.max(scale, (float)Math.sqrt(x * x + y * y + z * z));
+		}
+
+		// Projected Radius In Pixels (w Is The Depth In Perspective, 1 In Orthographic Views)
+		camera.mViewProjection.mul(clip.set(center.x, center.y, center.z, 1));
+		if(clip.w <= 0) return this;
+		float radius = boundsRadius * scale * Math.abs(camera.mProj.get(1, 1)) / clip.w * camera.viewportSize.y * 0.5f;
+		float pixels = (float)Math.PI * radius * radius;
+
+		RenderMesh lod = this;
+		for(RenderMesh l : lods) {
+			if(l.indexCount / 3 < pixels / PIXELS_PER_TRIANGLE) break;
+			lod = l;
+		}
+		return lod;
+	}
 	public void addSkinningInformation(FloatBuffer indices, FloatBuffer weights) {
 		ByteBuffer bb = NativeMem.createByteBuffer(vertexCount * VERTEX_SIZE_SKINNED);
 		indices.position(0);
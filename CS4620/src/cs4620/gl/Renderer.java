@@ -89,18 +89,24 @@ public class Renderer implements IDisposable {
 				material.useMaterialProperties();
 				material.useCameraAndLights(camera, lights, 0, cc);
 			}
-			if(mesh != p.mesh) {
-				if(mesh != null) mesh.iBuffer.unbind();
-				mesh = p.mesh;
-				mesh.iBuffer.bind();
-			}
-
-			mesh.vBuffer.useAsAttrib(material.shaderInterface);
-			mesh.vBufferTangentSpace.useAsAttrib(material.shaderInterfaceTangentSpace);
-			if(mesh.vBufferSkinned.getIsCreated()) {
-				mesh.vBufferSkinned.useAsAttrib(material.shaderInterfaceSkinned);
-			}
+			// Objects May Use Different Levels Of The Pass's Mesh
+			boolean attribsSet = false;
 			for(RenderObject ro : p.objects) {
+				RenderMesh lod = p.mesh.selectLod(ro.mWorldTransform, camera);
+				if(mesh != lod) {
+					if(mesh != null) mesh.iBuffer.unbind();
+					mesh = lod;
+					mesh.iBuffer.bind();
+					attribsSet = false;
+				}
+				if(!attribsSet) {
+					mesh.vBuffer.useAsAttrib(material.shaderInterface);
+					mesh.vBufferTangentSpace.useAsAttrib(material.shaderInterfaceTangentSpace);
+					if(mesh.vBufferSkinned.getIsCreated()) {
+						mesh.vBufferSkinned.useAsAttrib(material.shaderInterfaceSkinned);
+					}
+					attribsSet = true;
+				}
 				material.useObject(ro);
 				GL11.glDrawElements(PrimitiveType.Triangles, mesh.indexCount, GLType.UnsignedInt, 0);
 				GLError.get("Draw");
@@ -128,14 +134,19 @@ public class Renderer implements IDisposable {
 				material.useMaterialProperties();
 				material.useCameraAndLights(camera, lights, 0, cc);
 			}
-			if(mesh != p.mesh) {
-				if(mesh != null) mesh.iBuffer.unbind();
-				mesh = p.mesh;
-				mesh.iBuffer.bind();
-			}
-
-			mesh.vBuffer.useAsAttrib(material.shaderInterface);
+			boolean attribsSet = false;
 			for(RenderObject ro : p.objects) {
+				RenderMesh lod = p.mesh.selectLod(ro.mWorldTransform, camera);
+				if(mesh != lod) {
+					if(mesh != null) mesh.iBuffer.unbind();
+					mesh = lod;
+					mesh.iBuffer.bind();
+					attribsSet = false;
+				}
+				if(!attribsSet) {
+					mesh.vBuffer.useAsAttrib(material.shaderInterface);
+					attribsSet = true;
+				}
 				material.useObject(ro);
 				GL11.glDrawElements(PrimitiveType.Triangles, mesh.indexCount, GLType.UnsignedInt, 0);
 				GLError.get("Draw");
@@ -0,0 +1,77 @@
+package cs4620.mesh;
+
+import java.util.Arrays;
+
+/**
+ * Hash Map From Non-Negative Longs To Ints With Open Addressing
+ *
+ * Keys And Values Live In Two Flat Arrays And Collisions Are Resolved By Linear
+ * Probing, So Lookups Allocate Nothing. The Table Is Kept At Most Half Full.
+ */
+class LongIntMap {
+	private static final long EMPTY = -1;
+
+	private long[] keys;
+	private int[] values;
+	private int size;
+
+	/**
+	 * @param expected Number Of Entries To Make Room For
+	 */
+	public LongIntMap(int expected) {
+		int capacity = 16;
+		while(capacity < 2 * expected) capacity <<= 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Looks Up A Key And Adds It With A Value If It Is Not Present
+	 * @param key Non-Negative Key
+	 * @param value Value To Add The Key With
+	 * @return The Key's Value If It Was Present, Otherwise -1
+	 */
+	public int getOrPut(long key, int value) {
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while(keys[i] != EMPTY) {
+			if(keys[i] == key) return values[i];
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		if(++size * 2 > keys.length) grow();
+		return -1;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[2 * oldKeys.length];
+		values = new int[2 * oldKeys.length];
+		Arrays.fill(keys, EMPTY);
+		int mask = keys.length - 1;
+		for(int j = 0;j < oldKeys.length;j++) {
+			if(oldKeys[j] == EMPTY) continue;
+			int i = hash(oldKeys[j]) & mask;
+			while(keys[i] != EMPTY) i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	private static int hash(long key) {
+		// Final Mix Of MurmurHash3
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+}
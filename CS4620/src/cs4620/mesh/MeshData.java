@@ -20,6 +20,10 @@ public class MeshData {
 	 * Integer Indices In The Domain [0, Vertex Count)
 	 */
 	public IntBuffer indices;
+	/**
+	 * Tangent And Bitangent Of Every Vertex, Computed On Demand (See getTangentSpace)
+	 */
+	FloatBuffer tangentSpace;
 
 	/**
 	 * Number Of Vertices Used In The Mesh
@@ -60,4 +64,13 @@ public class MeshData {
 	public boolean hasUVs() {
 		return uvs != null && uvs.capacity() >= (vertexCount * 2);
 	}
+	
+	/**
+	 * Gets The Tangent Space, Computing It The First Time
+	 * @return TangentSpace.FLOATS_PER_VERTEX Floats Per Vertex: Tangent, Then Bitangent
+	 */
+	public synchronized FloatBuffer getTangentSpace() {
+		if(tangentSpace == null) tangentSpace = TangentSpace.compute(this);
+		return tangentSpace;
+	}
 }
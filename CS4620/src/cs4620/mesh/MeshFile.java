@@ -0,0 +1,160 @@
+package cs4620.mesh;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Compact Binary Mesh Container That Loads Without Parsing
+ *
+ * The File Is Little-Endian And Starts With A Header Page:
+ * magic, version, vertex count, index count, flags (1 = normals, 2 = uvs) as ints,
+ * followed by the byte offsets of the positions, normals, uvs and indices as longs
+ * (0 for a missing array). Every array starts on a page boundary, so the
+ * MeshData returned by read() is just a set of views into the mapped file.
+ */
+public class MeshFile {
+	/**
+	 * File Extension Of Binary Meshes
+	 */
+	public static final String EXTENSION = ".bmesh";
+
+	private static final int MAGIC = 0x4853454d; // "MESH" When Read Little-Endian
+	private static final int VERSION = 1;
+	private static final int PAGE_SIZE = 4096;
+	private static final int FLAG_NORMALS = 1;
+	private static final int FLAG_UVS = 2;
+
+	/**
+	 * Checks Whether A File Should Be Read As A Binary Mesh
+	 * @param file Mesh File
+	 * @return True If The File Has The Binary Mesh Extension
+	 */
+	public static boolean isMeshFile(String file) {
+		return file.toLowerCase().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Loads A Mesh From Either A Binary Mesh Or An OBJ File
+	 * @param file Mesh File
+	 * @return The Mesh Data, Or Null If It Could Not Be Read
+	 */
+	public static MeshData load(String file) {
+		if(isMeshFile(file)) return read(file);
+		OBJMesh om = OBJParser.parse(file);
+		return om == null ? null : om.flatten();
+	}
+
+	/**
+	 * Maps A Binary Mesh Into Memory
+	 * @param file Binary Mesh File
+	 * @return Mesh Data Whose Buffers View The File Directly, Or Null If It Could Not Be Read
+	 */
+	public static MeshData read(String file) {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel ch = raf.getChannel();
+			MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			if(buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+				System.err.println("Not A Binary Mesh: " + file);
+				return null;
+			}
+
+			MeshData data = new MeshData();
+			data.vertexCount = buf.getInt();
+			data.indexCount = buf.getInt();
+			int flags = buf.getInt();
+			long posOffset = buf.getLong();
+			long normOffset = buf.getLong();
+			long uvOffset = buf.getLong();
+			long indOffset = buf.getLong();
+
+			data.positions = view(buf, posOffset, data.vertexCount * 3).asFloatBuffer();
+			if((flags & FLAG_NORMALS) != 0) data.normals = view(buf, normOffset, data.vertexCount * 3).asFloatBuffer();
+			if((flags & FLAG_UVS) != 0) data.uvs = view(buf, uvOffset, data.vertexCount * 2).asFloatBuffer();
+			data.indices = view(buf, indOffset, data.indexCount).asIntBuffer();
+			return data;
+		} catch (IOException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	private static ByteBuffer view(ByteBuffer buf, long offset, int count) {
+		ByteBuffer v = buf.duplicate();
+		v.position((int)offset);
+		v.limit((int)offset + count * 4);
+		return v.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Writes Mesh Data As A Binary Mesh
+	 * @param data Mesh Data With At Least Positions And Indices
+	 * @param file Output File
+	 * @return True If The File Was Written
+	 */
+	public static boolean write(MeshData data, String file) {
+		if(!data.hasData()) {
+			System.err.println("Mesh Has No Data To Write");
+			return false;
+		}
+		boolean normals = data.hasNormals(), uvs = data.hasUVs();
+
+		// Lay Out The Arrays On Page Boundaries
+		long posOffset = PAGE_SIZE;
+		long normOffset = normals ? pageAlign(posOffset + data.vertexCount * 12L) : 0;
+		long uvOffset = uvs ? pageAlign(Math.max(posOffset + data.vertexCount * 12L, normOffset + data.vertexCount * 12L)) : 0;
+		long end = Math.max(posOffset + data.vertexCount * 12L, Math.max(normOffset + data.vertexCount * 12L, uvOffset + data.vertexCount * 8L));
+		long indOffset = pageAlign(end);
+		long size = indOffset + data.indexCount * 4L;
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(size);
+			MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(MAGIC).putInt(VERSION).putInt(data.vertexCount).putInt(data.indexCount);
+			buf.putInt((normals ? FLAG_NORMALS : 0) | (uvs ? FLAG_UVS : 0));
+			buf.putLong(posOffset).putLong(normOffset).putLong(uvOffset).putLong(indOffset);
+
+			buf.position((int)posOffset);
+			for(int i = 0;i < data.vertexCount * 3;i++) buf.putFloat(data.positions.get(i));
+			if(normals) {
+				buf.position((int)normOffset);
+				for(int i = 0;i < data.vertexCount * 3;i++) buf.putFloat(data.normals.get(i));
+			}
+			if(uvs) {
+				buf.position((int)uvOffset);
+				for(int i = 0;i < data.vertexCount * 2;i++) buf.putFloat(data.uvs.get(i));
+			}
+			buf.position((int)indOffset);
+			for(int i = 0;i < data.indexCount;i++) buf.putInt(data.indices.get(i));
+			buf.force();
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	private static long pageAlign(long offset) {
+		return (offset + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+	}
+
+	/**
+	 * Converts OBJ Files To Binary Meshes
+	 * @param args Input OBJ File And Output Binary Mesh File
+	 */
+	public static void main(String[] args) {
+		if(args.length != 2) {
+			System.out.println("Usage: MeshFile <input.obj> <output" + EXTENSION + ">");
+			return;
+		}
+		MeshData data = load(args[0]);
+		if(data == null || !write(data, args[1])) {
+			System.out.println("Conversion Failed");
+			return;
+		}
+		System.out.println("Wrote " + data.vertexCount + " Vertices And " + (data.indexCount / 3) + " Triangles To " + args[1]);
+	}
+}
@@ -0,0 +1,191 @@
+package cs4620.mesh;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import egl.NativeMem;
+
+/**
+ * Reorders A Mesh For The GPU's Vertex Caches
+ *
+ * Triangles Are Reordered With Tipsify (Sander, Nehab And Barczak, "Fast
+ * Triangle Reordering For Vertex Locality And Reduced Overdraw", 2007), Which
+ * Fans Around Vertices That Are Likely Still In A FIFO Post-Transform Cache And
+ * Runs In Linear Time. Vertices Are Then Renumbered In The Order The Triangles
+ * First Use Them, So Vertex Fetches Walk Through Memory Mostly Forwards.
+ *
+ * The Quality Of An Ordering Is Measured As ACMR (Average Cache Miss Ratio):
+ * Vertices Transformed Per Triangle With A Simulated FIFO Cache, Between 0.5 For
+ * A Perfect Regular Grid And 3 For No Reuse At All.
+ */
+public class MeshOptimizer {
+	/**
+	 * Cache Size That Orderings Are Optimized For And Measured With
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 16;
+
+	/**
+	 * Simulates A FIFO Vertex Cache Over The Triangles Of A Mesh
+	 * @param data Mesh
+	 * @param cacheSize Number Of Vertices The Cache Holds
+	 * @return Average Number Of Cache Misses Per Triangle
+	 */
+	public static float acmr(MeshData data, int cacheSize) {
+		int[] indices = new int[data.indexCount];
+		for(int i = 0;i < data.indexCount;i++) indices[i] = data.indices.get(i);
+		return acmr(indices, data.vertexCount, cacheSize);
+	}
+	private static float acmr(int[] indices, int vertexCount, int cacheSize) {
+		int triCount = indices.length / 3;
+		if(triCount == 0) return 0;
+
+		// The Time Each Vertex Entered The Cache, Or Far In The Past
+		int[] entered = new int[vertexCount];
+		Arrays.fill(entered, Integer.MIN_VALUE / 2);
+		int time = 0, misses = 0;
+		for(int v : indices) {
+			if(time - entered[v] > cacheSize) {
+				entered[v] = time++;
+				misses++;
+			}
+		}
+		return (float)misses / triCount;
+	}
+
+	/**
+	 * Reorders The Triangles And Vertices Of A Mesh In Place (The Buffers Are Replaced)
+	 * @param data Mesh
+	 * @return The ACMR Before And After
+	 */
+	public static float[] optimize(MeshData data) {
+		return optimize(data, DEFAULT_CACHE_SIZE);
+	}
+	/**
+	 * Reorders The Triangles And Vertices Of A Mesh In Place (The Buffers Are Replaced).
+	 * Meshes That Are Already Ordered Better (Like Generated Strips) Keep Their Triangle Order.
+	 * @param data Mesh
+	 * @param cacheSize Size Of The FIFO Cache To Optimize For
+	 * @return The ACMR Before And After
+	 */
+	public static float[] optimize(MeshData data, int cacheSize) {
+		int[] indices = new int[data.indexCount];
+		for(int i = 0;i < data.indexCount;i++) indices[i] = data.indices.get(i);
+		float before = acmr(indices, data.vertexCount, cacheSize);
+
+		int[] reordered = tipsify(indices, data.vertexCount, cacheSize);
+		float after = acmr(reordered, data.vertexCount, cacheSize);
+		if(after < before) indices = reordered;
+		else after = before;
+
+		reorderVertices(data, indices);
+		return new float[] { before, after };
+	}
+
+	/**
+	 * Tipsify: Emit All Remaining Triangles Around The Current Fanning Vertex, Then
+	 * Move On To The Vertex Of Those Triangles That Is Most Likely Still Cached And
+	 * Will Not Be Pushed Out By Its Own Remaining Triangles, Or Else To The Most
+	 * Recently Used Vertex That Has Triangles Left.
+	 * @return The Reordered Index List
+	 */
+	private static int[] tipsify(int[] indices, int vertexCount, int cacheSize) {
+		int triCount = indices.length / 3;
+
+		// Triangles Around Every Vertex
+		int[] live = new int[vertexCount];
+		for(int v : indices) live[v]++;
+		int[] offsets = new int[vertexCount + 1];
+		for(int v = 0;v < vertexCount;v++) offsets[v + 1] = offsets[v] + live[v];
+		int[] adjacency = new int[indices.length];
+		int[] fill = Arrays.copyOf(offsets, vertexCount);
+		for(int i = 0;i < indices.length;i++) adjacency[fill[indices[i]]++] = i / 3;
+
+		int[] cacheTime = new int[vertexCount];
+		boolean[] emitted = new boolean[triCount];
+		int[] deadEnd = new int[indices.length];
+		int deadEndSize = 0;
+		int[] candidates = new int[indices.length];
+		int[] out = new int[indices.length];
+		int outSize = 0;
+		int time = cacheSize + 1, cursor = 0;
+
+		int fan = vertexCount > 0 ? 0 : -1;
+		while(fan >= 0) {
+			// Emit The Triangles Around The Fanning Vertex
+			int candidateCount = 0;
+			for(int a = offsets[fan];a < offsets[fan + 1];a++) {
+				int t = adjacency[a];
+				if(emitted[t]) continue;
+				emitted[t] = true;
+				for(int k = 0;k < 3;k++) {
+					int v = indices[3 * t + k];
+					out[outSize++] = v;
+					deadEnd[deadEndSize++] = v;
+					candidates[candidateCount++] = v;
+					live[v]--;
+					if(time - cacheTime[v] > cacheSize) cacheTime[v] = time++;
+				}
+			}
+
+			// Pick The Next Fanning Vertex
+			int best = -1, bestPriority = -1;
+			for(int c = 0;c < candidateCount;c++) {
+				int v = candidates[c];
+				if(live[v] <= 0) continue;
+				int priority = 0;
+				if(time - cacheTime[v] + 2 * live[v] <= cacheSize) priority = time - cacheTime[v];
+				if(priority > bestPriority) {
+					bestPriority = priority;
+					best = v;
+				}
+			}
+			if(best < 0) {
+				// Dead End: Back Up To A Recently Used Vertex, Else Take The Next One In Order
+				while(deadEndSize > 0 && best < 0) {
+					int v = deadEnd[--deadEndSize];
+					if(live[v] > 0) best = v;
+				}
+				while(best < 0 && cursor < vertexCount) {
+					if(live[cursor] > 0) best = cursor;
+					cursor++;
+				}
+			}
+			fan = best;
+		}
+		return out;
+	}
+
+	/**
+	 * Renumbers The Vertices In The Order The Triangles First Use Them; Unused
+	 * Vertices Go Last. Any Cached Tangent Space Is Dropped.
+	 */
+	private static void reorderVertices(MeshData data, int[] indices) {
+		int[] newIndex = new int[data.vertexCount];
+		Arrays.fill(newIndex, -1);
+		int next = 0;
+		for(int v : indices) {
+			if(newIndex[v] < 0) newIndex[v] = next++;
+		}
+		for(int v = 0;v < data.vertexCount;v++) {
+			if(newIndex[v] < 0) newIndex[v] = next++;
+		}
+
+		IntBuffer ib = NativeMem.createIntBuffer(indices.length);
+		for(int v : indices) ib.put(newIndex[v]);
+		ib.flip();
+		data.indices = ib;
+
+		data.positions = permute(data.positions, 3, newIndex, data.vertexCount);
+		if(data.hasNormals()) data.normals = permute(data.normals, 3, newIndex, data.vertexCount);
+		if(data.hasUVs()) data.uvs = permute(data.uvs, 2, newIndex, data.vertexCount);
+		data.tangentSpace = null;
+	}
+	private static FloatBuffer permute(FloatBuffer src, int size, int[] newIndex, int count) {
+		FloatBuffer dst = NativeMem.createFloatBuffer(count * size);
+		for(int v = 0;v < count;v++) {
+			for(int k = 0;k < size;k++) dst.put(newIndex[v] * size + k, src.get(v * size + k));
+		}
+		return dst;
+	}
+}
@@ -0,0 +1,537 @@
+package cs4620.mesh;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import egl.NativeMem;
+import egl.math.Vector3;
+import egl.math.Vector3i;
+
+/**
+ * Builds Simplified Versions (Levels Of Detail) Of A Mesh
+ *
+ * Edges Are Collapsed Cheapest First, Where The Cost Is The Quadric Error Metric
+ * (Garland And Heckbert, "Surface Simplification Using Quadric Error Metrics",
+ * 1997): The Sum Of Squared Distances To The Planes Of The Original Triangles
+ * Around Both Ends. Collapses Move One End Onto The Other (Half-Edge Collapses),
+ * So Every Level Only Uses Vertices Of The Original Mesh And Keeps Their Normals
+ * And Texture Coordinates As They Were.
+ *
+ * Vertices Are Grouped By Position. A Group With Several Vertices Lies On A UV
+ * Seam Or A Hard Edge; It May Only Move Along That Seam, So Seams Stay Where
+ * They Were. Open Borders Are Kept In The Same Way, And Collapses That Would
+ * Fold Triangles Over Or Make The Surface Non-Manifold Are Skipped.
+ */
+public class MeshSimplifier {
+	/**
+	 * Triangle Ratios Of The Levels Built By Default
+	 */
+	public static final float[] DEFAULT_LOD_RATIOS = { 0.5f, 0.25f, 0.125f };
+	/**
+	 * Collapses May Not Turn A Triangle By More Than About 75 Degrees
+	 */
+	private static final double MIN_FLIP_COSINE = 0.25;
+	/**
+	 * Weight Of The Planes Holding Open Borders In Place, Relative To The Triangles
+	 */
+	private static final double BORDER_WEIGHT = 10.0;
+
+	/**
+	 * Simplifies A Mesh To Several Triangle Ratios
+	 * @param data Mesh With Positions And Indices; Normals And UVs Are Kept If Present
+	 * @param ratios Fractions Of The Triangles To Keep
+	 * @return One Compacted Mesh Per Ratio, In The Same Order
+	 */
+	public static MeshData[] buildLods(MeshData data, float... ratios) {
+		float[] positions = new float[3 * data.vertexCount];
+		for(int i = 0;i < positions.length;i++) positions[i] = data.positions.get(i);
+		int[] indices = new int[data.indexCount];
+		for(int i = 0;i < indices.length;i++) indices[i] = data.indices.get(i);
+
+		int[][] lods = simplify(positions, indices, ratios);
+		MeshData[] out = new MeshData[lods.length];
+		for(int l = 0;l < lods.length;l++) {
+			int[] lod = lods[l];
+			int[] newIndex = new int[data.vertexCount];
+			Arrays.fill(newIndex, -1);
+			int[] oldIndex = new int[data.vertexCount];
+			int count = 0;
+			for(int v : lod) {
+				if(newIndex[v] < 0) {
+					newIndex[v] = count;
+					oldIndex[count++] = v;
+				}
+			}
+
+			MeshData md = new MeshData();
+			md.vertexCount = count;
+			md.indexCount = lod.length;
+			md.positions = NativeMem.createFloatBuffer(count * 3);
+			if(data.hasNormals()) md.normals = NativeMem.createFloatBuffer(count * 3);
+			if(data.hasUVs()) md.uvs = NativeMem.createFloatBuffer(count * 2);
+			for(int i = 0;i < count;i++) {
+				int v = oldIndex[i];
+				for(int k = 0;k < 3;k++) md.positions.put(data.positions.get(3 * v + k));
+				if(md.normals != null) {
+					for(int k = 0;k < 3;k++) md.normals.put(data.normals.get(3 * v + k));
+				}
+				if(md.uvs != null) {
+					for(int k = 0;k < 2;k++) md.uvs.put(data.uvs.get(2 * v + k));
+				}
+			}
+			md.positions.flip();
+			if(md.normals != null) md.normals.flip();
+			if(md.uvs != null) md.uvs.flip();
+			md.indices = NativeMem.createIntBuffer(lod.length);
+			for(int v : lod) md.indices.put(newIndex[v]);
+			md.indices.flip();
+			out[l] = md;
+		}
+		return out;
+	}
+	/**
+	 * Simplifies A Mesh To Several Triangle Ratios
+	 * @param mesh Mesh; Texture Coordinates And Normals Are Kept If Present
+	 * @param ratios Fractions Of The Triangles To Keep
+	 * @return One Mesh Per Ratio, In The Same Order (Sharing The Attribute Lists' Elements)
+	 */
+	public static OBJMesh[] buildLods(OBJMesh mesh, float... ratios) {
+		float[] positions = new float[3 * mesh.vertices.size()];
+		for(int i = 0;i < mesh.vertices.size();i++) {
+			Vector3 p = mesh.positions.get(mesh.vertices.get(i).x);
+			positions[3 * i] = p.x;
+			positions[3 * i + 1] = p.y;
+			positions[3 * i + 2] = p.z;
+		}
+		int[] indices = new int[3 * mesh.triangles.size()];
+		for(int i = 0;i < mesh.triangles.size();i++) {
+			Vector3i t = mesh.triangles.get(i);
+			indices[3 * i] = t.x;
+			indices[3 * i + 1] = t.y;
+			indices[3 * i + 2] = t.z;
+		}
+
+		int[][] lods = simplify(positions, indices, ratios);
+		OBJMesh[] out = new OBJMesh[lods.length];
+		for(int l = 0;l < lods.length;l++) {
+			OBJMesh om = new OBJMesh();
+			om.positions.addAll(mesh.positions);
+			om.uvs.addAll(mesh.uvs);
+			om.normals.addAll(mesh.normals);
+
+			int[] newIndex = new int[mesh.vertices.size()];
+			Arrays.fill(newIndex, -1);
+			for(int v : lods[l]) {
+				if(newIndex[v] < 0) {
+					newIndex[v] = om.vertices.size();
+					om.vertices.add(new Vector3i(mesh.vertices.get(v)));
+				}
+			}
+			for(int i = 0;i < lods[l].length;i += 3) {
+				om.triangles.add(new Vector3i(newIndex[lods[l][i]], newIndex[lods[l][i + 1]], newIndex[lods[l][i + 2]]));
+			}
+			out[l] = om;
+		}
+		return out;
+	}
+
+	/**
+	 * @param positions Position Of Every Vertex
+	 * @param indices Triangle Vertex Indices
+	 * @param ratios Fractions Of The Triangles To Keep
+	 * @return Index Lists Into The Same Vertices, One Per Ratio
+	 */
+	private static int[][] simplify(final float[] positions, int[] indices, final float[] ratios) {
+		// Group Vertices With Equal Positions
+		int vertexCount = positions.length / 3;
+		Integer[] order = new Integer[vertexCount];
+		for(int i = 0;i < vertexCount;i++) order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				for(int k = 0;k < 3;k++) {
+					int c = Float.compare(positions[3 * a + k], positions[3 * b + k]);
+					if(c != 0) return c;
+				}
+				return 0;
+			}
+		});
+		int[] group = new int[vertexCount];
+		float[] groupPositions = new float[positions.length];
+		int groupCount = 0;
+		for(int i = 0;i < vertexCount;i++) {
+			int v = order[i];
+			if(i == 0 || !samePosition(positions, v, order[i - 1])) {
+				for(int k = 0;k < 3;k++) groupPositions[3 * groupCount + k] = positions[3 * v + k];
+				groupCount++;
+			}
+			group[v] = groupCount - 1;
+		}
+
+		// Simplify Step By Step, Taking A Copy At Every Ratio
+		Integer[] ratioOrder = new Integer[ratios.length];
+		for(int i = 0;i < ratios.length;i++) ratioOrder[i] = i;
+		Arrays.sort(ratioOrder, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Float.compare(ratios[b], ratios[a]);
+			}
+		});
+		Collapser c = new Collapser(groupPositions, groupCount, group, indices);
+		int[][] out = new int[ratios.length][];
+		int start = c.liveTris;
+		for(int r : ratioOrder) {
+			c.run(Math.max(1, Math.round(ratios[r] * start)));
+			out[r] = c.getIndices();
+		}
+		return out;
+	}
+	private static boolean samePosition(float[] positions, int a, int b) {
+		return positions[3 * a] == positions[3 * b] &&
+				positions[3 * a + 1] == positions[3 * b + 1] &&
+				positions[3 * a + 2] == positions[3 * b + 2];
+	}
+
+	/**
+	 * A Possible Collapse Of Group "from" Onto Group "to", Valid While Both Are Unchanged
+	 */
+	private static class Collapse implements Comparable<Collapse> {
+		public final int from, to, fromVersion, toVersion;
+		public final double cost;
+
+		public Collapse(int from, int to, int fromVersion, int toVersion, double cost) {
+			this.from = from;
+			this.to = to;
+			this.fromVersion = fromVersion;
+			this.toVersion = toVersion;
+			this.cost = cost;
+		}
+
+		@Override
+		public int compareTo(Collapse o) {
+			return Double.compare(cost, o.cost);
+		}
+	}
+
+	/**
+	 * Simplification State: Triangles Over Vertices, And Per Position Group Its
+	 * Quadric, The Triangles Around It, And Whether It Is Still Present
+	 */
+	private static class Collapser {
+		private final float[] pos;
+		private final int[] vertexGroup;
+		private final int[] tris;
+		private final boolean[] triDead;
+		public int liveTris;
+
+		private final double[] quadrics;
+		private final int[][] groupTris;
+		private final int[] groupTriCount;
+		private final int[] version;
+		private final boolean[] groupDead, border, locked;
+		private final PriorityQueue<Collapse> queue = new PriorityQueue<>();
+
+		// Scratch Space
+		private final int[] mark, count, lastTri, vertexMap;
+		private int[] mapped = new int[16];
+		private int stamp = 0;
+
+		public Collapser(float[] groupPositions, int groupCount, int[] vertexGroup, int[] indices) {
+			pos = groupPositions;
+			this.vertexGroup = vertexGroup;
+			tris = indices.clone();
+			int triCount = tris.length / 3;
+			triDead = new boolean[triCount];
+			quadrics = new double[10 * groupCount];
+			groupTriCount = new int[groupCount];
+			version = new int[groupCount];
+			groupDead = new boolean[groupCount];
+			border = new boolean[groupCount];
+			locked = new boolean[groupCount];
+			mark = new int[groupCount];
+			count = new int[groupCount];
+			lastTri = new int[groupCount];
+			vertexMap = new int[vertexGroup.length];
+			Arrays.fill(vertexMap, -1);
+
+			// Drop Degenerate Triangles, And Sum The Planes Of The Others
+			for(int t = 0;t < triCount;t++) {
+				int g0 = groupOf(t, 0), g1 = groupOf(t, 1), g2 = groupOf(t, 2);
+				if(g0 == g1 || g1 == g2 || g2 == g0) {
+					triDead[t] = true;
+					continue;
+				}
+				liveTris++;
+				groupTriCount[g0]++;
+				groupTriCount[g1]++;
+				groupTriCount[g2]++;
+
+				double[] n = normal(g0, g1, g2, -1, -1);
+				double area = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+				if(area == 0) continue;
+				addPlane(n, g0, 0.5 * area, g0, g1, g2);
+			}
+			groupTris = new int[groupCount][];
+			for(int g = 0;g < groupCount;g++) {
+				groupTris[g] = new int[groupTriCount[g]];
+				groupTriCount[g] = 0;
+			}
+			for(int t = 0;t < triCount;t++) {
+				if(triDead[t]) continue;
+				for(int k = 0;k < 3;k++) {
+					int g = groupOf(t, k);
+					groupTris[g][groupTriCount[g]++] = t;
+				}
+			}
+
+			// Edges With One Triangle Are Borders, Edges With More Than Two Lock Their Ends
+			for(int g = 0;g < groupCount;g++) {
+				stamp++;
+				for(int i = 0;i < groupTriCount[g];i++) {
+					int t = groupTris[g][i];
+					for(int k = 0;k < 3;k++) {
+						int o = groupOf(t, k);
+						if(o == g) continue;
+						if(mark[o] != stamp) {
+							mark[o] = stamp;
+							count[o] = 0;
+						}
+						count[o]++;
+						lastTri[o] = t;
+					}
+				}
+				for(int i = 0;i < groupTriCount[g];i++) {
+					int t = groupTris[g][i];
+					for(int k = 0;k < 3;k++) {
+						int o = groupOf(t, k);
+						if(o == g || mark[o] != stamp) continue;
+						mark[o] = 0;
+						if(count[o] > 2) locked[g] = true;
+						else if(count[o] == 1) {
+							border[g] = true;
+							addBorderPlane(g, o, lastTri[o]);
+						}
+					}
+				}
+			}
+
+			for(int g = 0;g < groupCount;g++) pushNeighbors(g, false);
+		}
+
+		/**
+		 * Collapses Edges Until At Most target Triangles Remain (Or Nothing Can Be Collapsed)
+		 */
+		public void run(int target) {
+			while(liveTris > target && !queue.isEmpty()) {
+				Collapse c = queue.poll();
+				if(groupDead[c.from] || groupDead[c.to]) continue;
+				if(version[c.from] != c.fromVersion || version[c.to] != c.toVersion) continue;
+				collapse(c.from, c.to);
+			}
+		}
+		/**
+		 * @return The Indices Of The Triangles Still Present
+		 */
+		public int[] getIndices() {
+			int[] out = new int[3 * liveTris];
+			int n = 0;
+			for(int t = 0;t < triDead.length;t++) {
+				if(triDead[t]) continue;
+				out[n++] = tris[3 * t];
+				out[n++] = tris[3 * t + 1];
+				out[n++] = tris[3 * t + 2];
+			}
+			return out;
+		}
+
+		private int groupOf(int t, int k) {
+			return vertexGroup[tris[3 * t + k]];
+		}
+		private int cornerOf(int t, int g) {
+			for(int k = 0;k < 3;k++) {
+				if(groupOf(t, k) == g) return k;
+			}
+			return -1;
+		}
+
+		/**
+		 * Moves Group a Onto Group b If That Keeps The Mesh Valid
+		 * @return True If The Collapse Was Done
+		 */
+		private boolean collapse(int a, int b) {
+			removeDead(a);
+			removeDead(b);
+			int[] ta = groupTris[a];
+			int na = groupTriCount[a];
+
+			// Every Vertex Of a Must Map To One Vertex Of b Through The Triangles On The Edge
+			int shared = 0, mappedCount = 0;
+			boolean ok = true;
+			for(int i = 0;i < na && ok;i++) {
+				int t = ta[i];
+				int cb = cornerOf(t, b);
+				if(cb < 0) continue;
+				shared++;
+				int va = tris[3 * t + cornerOf(t, a)], vb = tris[3 * t + cb];
+				if(vertexMap[va] < 0) {
+					vertexMap[va] = vb;
+					if(mappedCount == mapped.length) mapped = Arrays.copyOf(mapped, 2 * mappedCount);
+					mapped[mappedCount++] = va;
+				}
+				else if(vertexMap[va] != vb) ok = false;
+			}
+			if(shared == 0 || shared > 2 || (border[a] && shared != 1)) ok = false;
+			for(int i = 0;i < na && ok;i++) {
+				int t = ta[i];
+				if(vertexMap[tris[3 * t + cornerOf(t, a)]] < 0) ok = false;
+			}
+
+			// The Ends May Only Share The Neighbors Opposite The Edge
+			if(ok) {
+				stamp++;
+				for(int i = 0;i < na;i++) {
+					for(int k = 0;k < 3;k++) mark[groupOf(ta[i], k)] = stamp;
+				}
+				int common = 0;
+				for(int i = 0;i < groupTriCount[b];i++) {
+					int t = groupTris[b][i];
+					for(int k = 0;k < 3;k++) {
+						int g = groupOf(t, k);
+						if(g == a || g == b || mark[g] != stamp) continue;
+						mark[g] = 0;
+						common++;
+					}
+				}
+				if(common > shared) ok = false;
+			}
+
+			// Triangles That Move Must Not Fold Over
+			for(int i = 0;i < na && ok;i++) {
+				int t = ta[i];
+				if(cornerOf(t, b) >= 0) continue;
+				int g0 = groupOf(t, 0), g1 = groupOf(t, 1), g2 = groupOf(t, 2);
+				double[] before = normal(g0, g1, g2, -1, -1);
+				double[] after = normal(g0, g1, g2, a, b);
+				double dot = before[0] * after[0] + before[1] * after[1] + before[2] * after[2];
+				double len = Math.sqrt((before[0] * before[0] + before[1] * before[1] + before[2] * before[2]) *
+						(after[0] * after[0] + after[1] * after[1] + after[2] * after[2]));
+				if(len == 0 || dot < MIN_FLIP_COSINE * len) ok = false;
+			}
+
+			if(ok) {
+				for(int i = 0;i < na;i++) {
+					int t = ta[i];
+					if(cornerOf(t, b) >= 0) {
+						triDead[t] = true;
+						liveTris--;
+					}
+					else {
+						int ca = 3 * t + cornerOf(t, a);
+						tris[ca] = vertexMap[tris[ca]];
+						append(b, t);
+					}
+				}
+				for(int k = 0;k < 10;k++) quadrics[10 * b + k] += quadrics[10 * a + k];
+				groupDead[a] = true;
+				groupTriCount[a] = 0;
+				version[b]++;
+			}
+
+			for(int i = 0;i < mappedCount;i++) vertexMap[mapped[i]] = -1;
+			if(ok) {
+				removeDead(b);
+				pushNeighbors(b, true);
+			}
+			return ok;
+		}
+
+		/**
+		 * Queues The Collapses Of g Onto Its Neighbors (And The Reverse, If both Is Set)
+		 */
+		private void pushNeighbors(int g, boolean both) {
+			stamp++;
+			for(int i = 0;i < groupTriCount[g];i++) {
+				int t = groupTris[g][i];
+				for(int k = 0;k < 3;k++) {
+					int o = groupOf(t, k);
+					if(o == g || mark[o] == stamp) continue;
+					mark[o] = stamp;
+					push(g, o);
+					if(both) push(o, g);
+				}
+			}
+		}
+		private void push(int from, int to) {
+			if(locked[from]) return;
+			double x = pos[3 * to], y = pos[3 * to + 1], z = pos[3 * to + 2];
+			double cost = 0;
+			for(int q : new int[] { from, to }) {
+				int o = 10 * q;
+				cost += quadrics[o] * x * x + 2 * quadrics[o + 1] * x * y + 2 * quadrics[o + 2] * x * z + 2 * quadrics[o + 3] * x +
+						quadrics[o + 4] * y * y + 2 * quadrics[o + 5] * y * z + 2 * quadrics[o + 6] * y +
+						quadrics[o + 7] * z * z + 2 * quadrics[o + 8] * z +
+						quadrics[o + 9];
+			}
+			queue.add(new Collapse(from, to, version[from], version[to], cost));
+		}
+
+		private void removeDead(int g) {
+			int n = 0;
+			for(int i = 0;i < groupTriCount[g];i++) {
+				int t = groupTris[g][i];
+				if(!triDead[t]) groupTris[g][n++] = t;
+			}
+			groupTriCount[g] = n;
+		}
+		private void append(int g, int t) {
+			if(groupTriCount[g] == groupTris[g].length) {
+				groupTris[g] = Arrays.copyOf(groupTris[g], Math.max(4, 2 * groupTriCount[g]));
+			}
+			groupTris[g][groupTriCount[g]++] = t;
+		}
+
+		/**
+		 * Unnormalized Normal Of A Triangle Of Groups, With Group "from" Moved To Group "to"
+		 */
+		private double[] normal(int g0, int g1, int g2, int from, int to) {
+			if(g0 == from) g0 = to;
+			if(g1 == from) g1 = to;
+			if(g2 == from) g2 = to;
+			double e1x = pos[3 * g1] - pos[3 * g0], e1y = pos[3 * g1 + 1] - pos[3 * g0 + 1], e1z = pos[3 * g1 + 2] - pos[3 * g0 + 2];
+			double e2x = pos[3 * g2] - pos[3 * g0], e2y = pos[3 * g2 + 1] - pos[3 * g0 + 1], e2z = pos[3 * g2 + 2] - pos[3 * g0 + 2];
+			return new double[] {
+				e1y * e2z - e1z * e2y,
+				e1z * e2x - e1x * e2z,
+				e1x * e2y - e1y * e2x
+			};
+		}
+		/**
+		 * Adds The Plane Through Group p With Normal n (Any Length), Times weight, To The Given Groups
+		 */
+		private void addPlane(double[] n, int p, double weight, int... groups) {
+			double len = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+			double a = n[0] / len, b = n[1] / len, c = n[2] / len;
+			double d = -(a * pos[3 * p] + b * pos[3 * p + 1] + c * pos[3 * p + 2]);
+			double[] q = { a * a, a * b, a * c, a * d, b * b, b * c, b * d, c * c, c * d, d * d };
+			for(int g : groups) {
+				for(int k = 0;k < 10;k++) quadrics[10 * g + k] += weight * q[k];
+			}
+		}
+		/**
+		 * Adds The Plane Through The Border Edge g-o That Is Perpendicular To Its Triangle t
+		 */
+		private void addBorderPlane(int g, int o, int t) {
+			double[] n = normal(groupOf(t, 0), groupOf(t, 1), groupOf(t, 2), -1, -1);
+			double ex = pos[3 * o] - pos[3 * g], ey = pos[3 * o + 1] - pos[3 * g + 1], ez = pos[3 * o + 2] - pos[3 * g + 2];
+			double[] p = {
+				ey * n[2] - ez * n[1],
+				ez * n[0] - ex * n[2],
+				ex * n[1] - ey * n[0]
+			};
+			double len = Math.sqrt(p[0] * p[0] + p[1] * p[1] + p[2] * p[2]);
+			if(len == 0) return;
+			addPlane(p, g, BORDER_WEIGHT * (ex * ex + ey * ey + ez * ez), g);
+		}
+	}
+}
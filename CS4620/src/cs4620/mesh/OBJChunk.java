@@ -0,0 +1,339 @@
+package cs4620.mesh;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The Raw Contents Of A Line-Aligned Piece Of An OBJ File
+ *
+ * Chunks Are Tokenized Straight From A Memory-Mapped Region Of The File, Byte
+ * By Byte, Into Flat Arrays: No Strings, Boxed Numbers Or Vectors Are Created
+ * Unless A Number Is Unusual Enough To Need Float.parseFloat(). The Chunks Of A
+ * File Are Parsed In Parallel And Merged In File Order By OBJParser.
+ */
+class OBJChunk {
+	/**
+	 * Chunks Are At Least This Large Unless The File Is Smaller
+	 */
+	private static final long MIN_CHUNK_SIZE = 1 << 20;
+	/**
+	 * Chunks Are At Most This Large, So Every Chunk Can Be Mapped
+	 */
+	private static final long MAX_CHUNK_SIZE = 1 << 28;
+
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for(int i = 1;i < POW10.length;i++) POW10[i] = POW10[i - 1] * 10;
+	}
+
+	/**
+	 * Positions (3 Floats), Normals (3 Floats) And Texture Coordinates (2 Floats)
+	 */
+	float[] positions = new float[3 * 1024], normals = new float[0], uvs = new float[0];
+	int positionCount, normalCount, uvCount;
+
+	/**
+	 * Triangles, 9 Ints Each: Position, UV And Normal Index Of Every Corner,
+	 * 0-Based And -1 When Missing. Indices Are Global, Except At The Slots
+	 * Listed In relative, Which Count From The Start Of This Chunk.
+	 */
+	int[] faces = new int[9 * 1024];
+	int faceCount;
+	int[] relative = new int[0];
+	int relativeCount;
+
+	private final boolean discardTexCoords, discardNormals;
+
+	// Tokenizer State
+	private ByteBuffer buf;
+	private int pos, end;
+
+	private OBJChunk(boolean discardTexCoords, boolean discardNormals) {
+		this.discardTexCoords = discardTexCoords;
+		this.discardNormals = discardNormals;
+	}
+
+	/**
+	 * Splits A File Into Chunks At Line Ends And Parses Them In Parallel
+	 * @return The Chunks In File Order
+	 */
+	static ArrayList<OBJChunk> parseFile(String file, final boolean discardTexCoords, final boolean discardNormals) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			final FileChannel ch = raf.getChannel();
+			long size = ch.size();
+			int threads = Runtime.getRuntime().availableProcessors();
+			long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, size / (4 * threads)));
+
+			// Find The Chunk Boundaries
+			ArrayList<Long> starts = new ArrayList<>();
+			long start = 0;
+			while(start < size) {
+				starts.add(start);
+				start = nextLine(ch, Math.min(start + chunkSize, size), size);
+			}
+			starts.add(size);
+
+			// Parse Every Chunk
+			ArrayList<OBJChunk> chunks = new ArrayList<>();
+			if(starts.size() == 2) {
+				OBJChunk c = new OBJChunk(discardTexCoords, discardNormals);
+				c.parse(ch.map(FileChannel.MapMode.READ_ONLY, 0, size));
+				chunks.add(c);
+				return chunks;
+			}
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try {
+				ArrayList<Future<OBJChunk>> results = new ArrayList<>();
+				for(int i = 0;i < starts.size() - 1;i++) {
+					final long s = starts.get(i), e = starts.get(i + 1);
+					results.add(pool.submit(new Callable<OBJChunk>() {
+						@Override
+						public OBJChunk call() throws IOException {
+							OBJChunk c = new OBJChunk(discardTexCoords, discardNormals);
+							c.parse(ch.map(FileChannel.MapMode.READ_ONLY, s, e - s));
+							return c;
+						}
+					}));
+				}
+				for(Future<OBJChunk> f : results) chunks.add(f.get());
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+				if(e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+				throw new Error(e.getCause());
+			} finally {
+				pool.shutdown();
+			}
+			return chunks;
+		}
+	}
+	/**
+	 * @return The Offset Just After The First Line End At Or After offset
+	 */
+	private static long nextLine(FileChannel ch, long offset, long size) throws IOException {
+		ByteBuffer window = ByteBuffer.allocate(4096);
+		while(offset < size) {
+			window.clear();
+			int n = ch.read(window, offset);
+			if(n <= 0) break;
+			for(int i = 0;i < n;i++) {
+				if(window.get(i) == '\n') return offset + i + 1;
+			}
+			offset += n;
+		}
+		return size;
+	}
+
+	/**
+	 * Tokenizes Every Line Of A Region
+	 */
+	private void parse(ByteBuffer region) {
+		buf = region;
+		pos = 0;
+		end = region.limit();
+		int[] corner = new int[9];
+		while(pos < end) {
+			skipSpaces();
+			if(pos + 1 < end && isSpace(buf.get(pos + 1)) && buf.get(pos) == 'v') {
+				pos++;
+				positions = ensure(positions, 3 * positionCount + 3);
+				if(parseFloats(positions, 3 * positionCount, 3)) positionCount++;
+			}
+			else if(pos + 2 < end && isSpace(buf.get(pos + 2)) && buf.get(pos) == 'v' && buf.get(pos + 1) == 'n') {
+				pos += 2;
+				if(!discardNormals) {
+					normals = ensure(normals, 3 * normalCount + 3);
+					if(parseFloats(normals, 3 * normalCount, 3)) normalCount++;
+				}
+			}
+			else if(pos + 2 < end && isSpace(buf.get(pos + 2)) && buf.get(pos) == 'v' && buf.get(pos + 1) == 't') {
+				pos += 2;
+				if(!discardTexCoords) {
+					uvs = ensure(uvs, 2 * uvCount + 2);
+					if(parseFloats(uvs, 2 * uvCount, 2)) uvCount++;
+				}
+			}
+			else if(pos + 1 < end && isSpace(buf.get(pos + 1)) && buf.get(pos) == 'f') {
+				pos++;
+				parseFace(corner);
+			}
+			skipLine();
+		}
+		buf = null;
+	}
+
+	/**
+	 * Reads count Floats Into out[off ..]
+	 * @return False If The Line Has Fewer Numbers
+	 */
+	private boolean parseFloats(float[] out, int off, int count) {
+		for(int i = 0;i < count;i++) {
+			skipSpaces();
+			if(pos >= end || isLineEnd(buf.get(pos))) return false;
+			out[off + i] = parseFloat();
+		}
+		return true;
+	}
+
+	/**
+	 * Reads A Triangle; Faces With Any Other Number Of Corners Are Skipped
+	 */
+	private void parseFace(int[] corner) {
+		int relStart = relativeCount;
+		int n = 0;
+		while(true) {
+			skipSpaces();
+			if(pos >= end || isLineEnd(buf.get(pos))) break;
+			if(n == 3) {
+				n++;
+				break;
+			}
+			int slot = 9 * faceCount + 3 * n;
+			corner[3 * n] = index(parseInt(), positionCount, slot);
+			corner[3 * n + 1] = -1;
+			corner[3 * n + 2] = -1;
+			if(pos < end && buf.get(pos) == '/') {
+				pos++;
+				if(pos < end && buf.get(pos) != '/') {
+					int t = parseInt();
+					if(!discardTexCoords) corner[3 * n + 1] = index(t, uvCount, slot + 1);
+				}
+				if(pos < end && buf.get(pos) == '/') {
+					pos++;
+					int v = parseInt();
+					if(!discardNormals) corner[3 * n + 2] = index(v, normalCount, slot + 2);
+				}
+			}
+			n++;
+		}
+		if(n != 3) {
+			relativeCount = relStart;
+			return;
+		}
+		faces = ensure(faces, 9 * faceCount + 9);
+		System.arraycopy(corner, 0, faces, 9 * faceCount, 9);
+		faceCount++;
+	}
+	/**
+	 * Turns A 1-Based Or Negative (Relative) OBJ Index Into A 0-Based One
+	 * @param count Number Of Elements Of This Kind In The Chunk So Far
+	 * @param slot Where The Index Will Be Stored In faces
+	 */
+	private int index(int i, int count, int slot) {
+		if(i > 0) return i - 1;
+		relative = ensure(relative, relativeCount + 1);
+		relative[relativeCount++] = slot;
+		return count + i;
+	}
+
+	private int parseInt() {
+		int start = pos;
+		boolean neg = false;
+		if(pos < end && (buf.get(pos) == '-' || buf.get(pos) == '+')) neg = buf.get(pos++) == '-';
+		int v = 0;
+		while(pos < end) {
+			int d = buf.get(pos) - '0';
+			if(d < 0 || d > 9) break;
+			v = v * 10 + d;
+			pos++;
+		}
+		if(pos == start || (pos == start + 1 && neg)) throw new NumberFormatException("Bad Index In OBJ Face: " + token(start));
+		return neg ? -v : v;
+	}
+
+	/**
+	 * Reads A Float The Same Way Float.parseFloat() Would. Plain Decimals With Up To
+	 * 18 Significant Digits Are Computed Exactly In Double Precision And Rounded Once
+	 * More To Float, Which Is Only Wrong If The Double Lands Exactly Halfway Between
+	 * Two Floats; Those And All Other Forms Go To Float.parseFloat().
+	 */
+	private float parseFloat() {
+		int start = pos;
+		int tokenEnd = start;
+		while(tokenEnd < end && !isSpace(buf.get(tokenEnd)) && !isLineEnd(buf.get(tokenEnd))) tokenEnd++;
+
+		boolean neg = false;
+		if(buf.get(pos) == '-' || buf.get(pos) == '+') neg = buf.get(pos++) == '-';
+		long mant = 0;
+		int digits = 0, exp10 = 0;
+		boolean any = false, dot = false, exact = true;
+		while(pos < tokenEnd) {
+			byte c = buf.get(pos);
+			if(c >= '0' && c <= '9') {
+				any = true;
+				if(mant != 0 || c != '0') digits++;
+				if(digits > 18) {
+					exact = false;
+					break;
+				}
+				mant = mant * 10 + (c - '0');
+				if(dot) exp10--;
+			}
+			else if(c == '.' && !dot) dot = true;
+			else break;
+			pos++;
+		}
+		if(exact && any && pos < tokenEnd && (buf.get(pos) == 'e' || buf.get(pos) == 'E')) {
+			pos++;
+			boolean eneg = false;
+			if(pos < tokenEnd && (buf.get(pos) == '-' || buf.get(pos) == '+')) eneg = buf.get(pos++) == '-';
+			int e = 0, eStart = pos;
+			while(pos < tokenEnd && buf.get(pos) >= '0' && buf.get(pos) <= '9' && e < 10000) e = e * 10 + (buf.get(pos++) - '0');
+			if(pos == eStart) exact = false;
+			exp10 += eneg ? -e : e;
+		}
+		boolean consumed = pos == tokenEnd;
+		pos = tokenEnd;
+
+		if(exact && any && consumed) {
+			if(mant == 0) return neg ? -0f : 0f;
+			if(mant <= (1L << 53) && exp10 >= -22 && exp10 <= 22) {
+				double r = exp10 >= 0 ? mant * POW10[exp10] : mant / POW10[-exp10];
+				float f = (float)r;
+				double other = r > f ? Math.nextUp(f) : Math.nextAfter(f, Double.NEGATIVE_INFINITY);
+				if(r == f || r - f != other - r) return neg ? -f : f;
+			}
+		}
+		return Float.parseFloat(token(start));
+	}
+	private String token(int start) {
+		int e = start;
+		while(e < end && !isSpace(buf.get(e)) && !isLineEnd(buf.get(e))) e++;
+		byte[] b = new byte[e - start];
+		for(int i = 0;i < b.length;i++) b[i] = buf.get(start + i);
+		return new String(b, StandardCharsets.US_ASCII);
+	}
+
+	private void skipSpaces() {
+		while(pos < end && isSpace(buf.get(pos))) pos++;
+	}
+	private void skipLine() {
+		while(pos < end && buf.get(pos) != '\n') pos++;
+		pos++;
+	}
+	private static boolean isSpace(byte c) {
+		return c == ' ' || c == '\t';
+	}
+	private static boolean isLineEnd(byte c) {
+		return c == '\n' || c == '\r';
+	}
+
+	private static float[] ensure(float[] a, int n) {
+		return a.length >= n ? a : Arrays.copyOf(a, Math.max(n, 2 * a.length));
+	}
+	private static int[] ensure(int[] a, int n) {
+		return a.length >= n ? a : Arrays.copyOf(a, Math.max(n, 2 * a.length));
+	}
+}
@@ -1,10 +1,7 @@
 package cs4620.mesh;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Comparator;
@@ -62,128 +59,116 @@ public class OBJParser {
 	}	
 	/**
 	 * Reads In An OBJ Mesh With Possibility To Discard Certain Information
+	 * 
+	 * The File Is Tokenized In Line-Aligned Chunks In Parallel (See OBJChunk),
+	 * Then The Chunks Are Welded And Turned Into Vertices In File Order.
+	 * Only Triangles Are Read; Other Faces Are Skipped.
 	 * @param file OBJ File
 	 * @param discardTexCoords True If Mesh Should Not Contain Texture Coordinates
 	 * @param discardNormals True If Mesh Should Not Contain Normals
 	 * @return
 	 */
 	public static OBJMesh parse(String file, boolean discardTexCoords, boolean discardNormals, float tPosSq, float tUVSq, float tNormDot) {
+		ArrayList<OBJChunk> chunks;
 		try {
-			BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
-
-			// For Minifying The Mesh
-			ArrayList<Integer> posInds = new ArrayList<>(), uvInds = new ArrayList<>(), normInds = new ArrayList<>();
-			PosComparer cmpPos = new PosComparer(tPosSq);
-			UVComparer cmpUV = new UVComparer(tUVSq);
-			NormComparer cmpNorm = new NormComparer(tNormDot);
-			
-			OBJMesh mesh = new OBJMesh();
-			HashMap<Vector3i, Integer> vertMap = new HashMap<>();
-			
-			// Read File Line By Line
-			String line;
-			while ((line = r.readLine()) != null) {
-				Vector3 v3;
-				Vector3i tri, vert;
-				Vector2 v2;
-
-				String[] splits = line.split("\\s+");
-				if(splits[0].equals("v")) {
-					// Add Position Component
-					if(splits.length != 4) continue;
-					v3 = new Vector3();
-					v3.x = Float.parseFloat(splits[1]);
-					v3.y = Float.parseFloat(splits[2]);
-					v3.z = Float.parseFloat(splits[3]);
-					posInds.add(indexOfUnique(mesh.positions, v3, cmpPos));
-				}
-				else if(splits[0].equals("vn")) {
-					if(discardNormals) continue;
-					
-					// Add Normal Component
-					if(splits.length != 4) continue;
-					v3 = new Vector3();
-					v3.x = Float.parseFloat(splits[1]);
-					v3.y = Float.parseFloat(splits[2]);
-					v3.z = Float.parseFloat(splits[3]);
-					normInds.add(indexOfUnique(mesh.normals, v3, cmpNorm));
-				}
-				else if(splits[0].equals("vt")) {
-					if(discardTexCoords) continue;
-					
-					// Add Texture Coordinate Component
-					if(splits.length != 3) continue;
-					v2 = new Vector2();
-					v2.x = Float.parseFloat(splits[1]);
-					v2.y = Float.parseFloat(splits[2]);
-					uvInds.add(indexOfUnique(mesh.uvs, v2, cmpUV));
-				}
-				else if(splits[0].equals("f")) {
-					// Add A Triangle
-					if(splits.length != 4) continue;
-					tri = new Vector3i();
-					
-					// Set The Triangle's 3 Vertex Indices
-					for(int i = 0;i < 3;i++) {
-						// Create The Vertex
-						String[] vInds = splits[i + 1].split("/");
-						vert = new Vector3i(0, 0, 0);
-						switch (vInds.length) {
-						case 1:
-							vert.x = Integer.parseInt(vInds[0]);
-							break;
-						case 2:
-							vert.x = Integer.parseInt(vInds[0]);
-							if(!discardTexCoords) vert.y = Integer.parseInt(vInds[1]);
-							break;
-						case 3:
-							vert.x = Integer.parseInt(vInds[0]);
-							if(!discardTexCoords && !vInds[1].isEmpty()) vert.y = Integer.parseInt(vInds[1]);
-							if(!discardNormals) vert.z = Integer.parseInt(vInds[2]);
-							break;
-						default:
-							continue;
-						}
-						
-						// It Was Using One-Based Indexing
-						vert.sub(1, 1, 1);
-						
-						// Get The Unique Indices
-						vert.x = posInds.get(vert.x);
-						if(vert.y >= 0) vert.y = uvInds.get(vert.y);
-						if(vert.z >= 0) vert.z = normInds.get(vert.z);
-						
-						// Get The Vertex Index For The Triangle
-						if(vertMap.containsKey(vert)) {
-							// Vertex Already Found
-							tri.set(i, vertMap.get(vert));
-						}
-						else {
-							// New Vertex Found
-							vertMap.put(vert, mesh.vertices.size());
-							tri.set(i, mesh.vertices.size());
-							
-							// Add New Vertex To Mesh
-							mesh.vertices.add(vert);
-						}
-					}
-					
-					// Add The Triangle
-					mesh.triangles.add(tri);
-				}
-			}
-			r.close();
-
-			return mesh;
+			chunks = OBJChunk.parseFile(file, discardTexCoords, discardNormals);
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 			System.exit(-1);
+			return null;
 		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(-1);
+			return null;
 		}
-		
-		return null;
+
+		OBJMesh mesh = new OBJMesh();
+		PosWelder weldPos = new PosWelder(mesh.positions, tPosSq);
+		UVWelder weldUV = new UVWelder(mesh.uvs, tUVSq);
+		NormWelder weldNorm = new NormWelder(mesh.normals, tNormDot);
+
+		// Merge The Chunks In File Order, So Welding Sees Everything In The Same Order
+		int positionCount = 0, uvCount = 0, normalCount = 0, faceCount = 0;
+		for(OBJChunk c : chunks) {
+			positionCount += c.positionCount;
+			uvCount += c.uvCount;
+			normalCount += c.normalCount;
+			faceCount += c.faceCount;
+		}
+		int[] posInds = new int[positionCount], uvInds = new int[uvCount], normInds = new int[normalCount];
+		int pi = 0, ti = 0, ni = 0;
+		for(OBJChunk c : chunks) {
+			for(int i = 0;i < c.positionCount;i++) {
+				posInds[pi++] = weldPos.indexOfUnique(new Vector3(c.positions[3 * i], c.positions[3 * i + 1], c.positions[3 * i + 2]));
+			}
+			for(int i = 0;i < c.uvCount;i++) {
+				uvInds[ti++] = weldUV.indexOfUnique(new Vector2(c.uvs[2 * i], c.uvs[2 * i + 1]));
+			}
+			for(int i = 0;i < c.normalCount;i++) {
+				normInds[ni++] = weldNorm.indexOfUnique(new Vector3(c.normals[3 * i], c.normals[3 * i + 1], c.normals[3 * i + 2]));
+			}
+		}
+
+		// Vertices Are Keyed By Their Unique Indices, Packed Into A Long When They Fit
+		int bitsPos = bitsFor(mesh.positions.size()), bitsUV = bitsFor(mesh.uvs.size() + 1), bitsNorm = bitsFor(mesh.normals.size() + 1);
+		boolean packed = bitsPos + bitsUV + bitsNorm <= 63;
+		LongIntMap packedMap = packed ? new LongIntMap(faceCount) : null;
+		HashMap<Vector3i, Integer> vertMap = packed ? null : new HashMap<Vector3i, Integer>();
+
+		int posBase = 0, uvBase = 0, normBase = 0;
+		for(OBJChunk c : chunks) {
+			// Resolve Relative Indices
+			for(int r = 0;r < c.relativeCount;r++) {
+				int slot = c.relative[r];
+				c.faces[slot] += (slot % 3 == 0) ? posBase : (slot % 3 == 1) ? uvBase : normBase;
+			}
+
+			for(int f = 0;f < c.faceCount;f++) {
+				Vector3i tri = new Vector3i();
+				for(int i = 0;i < 3;i++) {
+					int k = 9 * f + 3 * i;
+					int p = posInds[c.faces[k]];
+					int t = c.faces[k + 1] >= 0 ? uvInds[c.faces[k + 1]] : -1;
+					int n = c.faces[k + 2] >= 0 ? normInds[c.faces[k + 2]] : -1;
+
+					// Get The Vertex Index For The Triangle
+					int index = mesh.vertices.size();
+					int found;
+					if(packed) {
+						long key = ((long)p << (bitsUV + bitsNorm)) | ((long)(t + 1) << bitsNorm) | (n + 1);
+						found = packedMap.getOrPut(key, index);
+					}
+					else {
+						Integer old = vertMap.get(new Vector3i(p, t, n));
+						found = old == null ? -1 : old;
+						if(old == null) vertMap.put(new Vector3i(p, t, n), index);
+					}
+					if(found >= 0) {
+						// Vertex Already Found
+						tri.set(i, found);
+					}
+					else {
+						// New Vertex Found
+						tri.set(i, index);
+						mesh.vertices.add(new Vector3i(p, t, n));
+					}
+				}
+
+				// Add The Triangle
+				mesh.triangles.add(tri);
+			}
+			posBase += c.positionCount;
+			uvBase += c.uvCount;
+			normBase += c.normalCount;
+		}
+
+		return mesh;
+	}
+	/**
+	 * @return Number Of Bits Needed For Values In [0, n)
+	 */
+	private static int bitsFor(int n) {
+		return Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(n - 1, 0)));
 	}
 
 	/**
@@ -219,63 +204,46 @@ public class OBJParser {
 		
 		// For Minifying The Mesh
 		int[] posInds = null, uvInds = null, normInds = null;
-		PosComparer cmpPos = new PosComparer(tPosSq);
-		UVComparer cmpUV = new UVComparer(tUVSq);
-		NormComparer cmpNorm = new NormComparer(tNormDot);		
+		PosWelder weldPos = new PosWelder(mesh.positions, tPosSq);
+		UVWelder weldUV = new UVWelder(mesh.uvs, tUVSq);
+		NormWelder weldNorm = new NormWelder(mesh.normals, tNormDot);
 		
 		// Hash Positions
 		posInds = new int[data.vertexCount];
-		posInds[0] = 0;
-		mesh.positions.add(new Vector3(
-			data.positions.get(0),	
-			data.positions.get(1),	
-			data.positions.get(2)
-			));
-		for(int i = 1;i < posInds.length;i++) {
+		for(int i = 0;i < posInds.length;i++) {
 			// Extract Position
 			v3 = new Vector3(
 				data.positions.get(i * 3),
 				data.positions.get(i * 3 + 1),
 				data.positions.get(i * 3 + 2)
 				);
-			posInds[i] = indexOfUnique(mesh.positions, v3, cmpPos);
+			posInds[i] = weldPos.indexOfUnique(v3);
 		}
 		
 		// Hash Normals
 		if(data.hasNormals()) {
 			normInds = new int[data.vertexCount];
-			normInds[0] = 0;
-			mesh.normals.add(new Vector3(
-				data.normals.get(0),	
-				data.normals.get(1),	
-				data.normals.get(2)
-				));
-			for(int i = 1;i < normInds.length;i++) {
+			for(int i = 0;i < normInds.length;i++) {
 				// Extract Position
 				v3 = new Vector3(
 					data.normals.get(i * 3),
 					data.normals.get(i * 3 + 1),
 					data.normals.get(i * 3 + 2)
 					);
-				normInds[i] = indexOfUnique(mesh.normals, v3, cmpNorm);
+				normInds[i] = weldNorm.indexOfUnique(v3);
 			}
 		}
 		
 		// Hash UVs
 		if(data.hasUVs()) {
 			uvInds = new int[data.vertexCount];
-			uvInds[0] = 0;
-			mesh.uvs.add(new Vector2(
-				data.uvs.get(0),	
-				data.uvs.get(1)	
-				));
-			for(int i = 1;i < uvInds.length;i++) {
+			for(int i = 0;i < uvInds.length;i++) {
 				// Extract Position
 				v2 = new Vector2(
 					data.uvs.get(i * 2),
 					data.uvs.get(i * 2 + 1)
 					);
-				uvInds[i] = indexOfUnique(mesh.uvs, v2, cmpUV);
+				uvInds[i] = weldUV.indexOfUnique(v2);
 			}
 		}
 		
@@ -306,26 +274,6 @@ public class OBJParser {
 		return mesh;
 	}
 	
-	private static <T> int indexOfUnique(ArrayList<T> arr, T obj, Comparator<T> comp) {
-		// Find It Was Already Put In
-		boolean foundDuplicate = false;
-		for(int ii = 0;ii < arr.size() && !foundDuplicate;ii++) {
-			if(comp.compare(arr.get(ii), obj) == 0) {
-				foundDuplicate = true;
-				return ii;
-			}
-		}
-		
-		if(!foundDuplicate) {
-			// Add The New Position
-			int ii = arr.size();
-			arr.add(obj);
-			return ii;
-		}
-		
-		return -1;
-	}
-	
 	/**
 	 * Writes Out A Mesh In OBJ Format
 	 * @param w Output Stream
@@ -416,5 +364,140 @@ public class OBJParser {
 			return o1.dot(o2) >= d ? 0 : 1;
 		}
 	}
-}
 
+	/**
+	 * Finds The First Element Of A List That A Comparer Considers Equal To A New
+	 * Element, Or Else Adds The New Element. Only The Candidates Found In Nearby
+	 * Cells Of A PointGrid Are Compared, So Welding n Elements Takes O(n) Expected
+	 * Time Instead Of O(n^2), With Exactly The Same Result As Comparing Against
+	 * Every Element In Order.
+	 */
+	static abstract class Welder<T> {
+		protected final ArrayList<T> arr;
+		private final Comparator<T> comp;
+		protected final PointGrid grid;
+		private final ArrayList<Integer> candidates = new ArrayList<>();
+		
+		public Welder(ArrayList<T> arr, Comparator<T> comp, float cellSize) {
+			this.arr = arr;
+			this.comp = comp;
+			grid = new PointGrid(cellSize);
+		}
+		
+		/**
+		 * Collects The Indices Of All Elements That Could Be Equal To obj
+		 * @return False If No Element Can Be Equal To obj
+		 */
+		protected abstract boolean collect(T obj, ArrayList<Integer> out);
+		/**
+		 * Makes A New Element Findable By collect()
+		 */
+		protected abstract void insert(T obj, int index);
+		
+		/**
+		 * @return The Index Of The First Equal Element, Or Of obj After It Was Added
+		 */
+		public int indexOfUnique(T obj) {
+			candidates.clear();
+			if(collect(obj, candidates)) {
+				int found = -1;
+				for(int ii : candidates) {
+					if((found < 0 || ii < found) && comp.compare(arr.get(ii), obj) == 0) found = ii;
+				}
+				if(found >= 0) return found;
+			}
+			
+			// Add The New Element
+			int ii = arr.size();
+			arr.add(obj);
+			insert(obj, ii);
+			return ii;
+		}
+		
+		/**
+		 * Widens A Search Radius To Cover Rounding In The Exact Comparison
+		 */
+		protected static float pad(float r) {
+			return r * 1.001f + 1e-6f;
+		}
+	}
+	static class PosWelder extends Welder<Vector3> {
+		private final float d;
+		public PosWelder(ArrayList<Vector3> arr, float _d) {
+			super(arr, new PosComparer(_d), _d > 0 ? (float)Math.sqrt(_d) : 1);
+			d = _d;
+		}
+		@Override
+		protected boolean collect(Vector3 v, ArrayList<Integer> out) {
+			if(d < 0) return false;
+			grid.query(v.x, v.y, v.z, pad((float)Math.sqrt(d)), out);
+			return true;
+		}
+		@Override
+		protected void insert(Vector3 v, int index) {
+			grid.add(v.x, v.y, v.z, index);
+		}
+	}
+	static class UVWelder extends Welder<Vector2> {
+		private final float d;
+		public UVWelder(ArrayList<Vector2> arr, float _d) {
+			super(arr, new UVComparer(_d), _d > 0 ? (float)Math.sqrt(_d) : 1);
+			d = _d;
+		}
+		@Override
+		protected boolean collect(Vector2 v, ArrayList<Integer> out) {
+			if(d < 0) return false;
+			grid.query(v.x, v.y, 0, pad((float)Math.sqrt(d)), out);
+			return true;
+		}
+		@Override
+		protected void insert(Vector2 v, int index) {
+			grid.add(v.x, v.y, 0, index);
+		}
+	}
+	/**
+	 * Normals Are Put In The Grid By Direction. Two Normals a And b With
+	 * a.b >= d Have An Angle Whose Cosine Is At Least d / (|a||b|), Which Bounds
+	 * The Distance Between Their Directions On The Unit Sphere.
+	 */
+	static class NormWelder extends Welder<Vector3> {
+		private final float d;
+		private float maxLen = 0;
+		private final ArrayList<Integer> zeros = new ArrayList<>();
+		public NormWelder(ArrayList<Vector3> arr, float _d) {
+			super(arr, new NormComparer(_d), Math.max((float)Math.sqrt(2 - 2 * Math.min(_d, 1)), 0.001f));
+			d = _d;
+		}
+		@Override
+		protected boolean collect(Vector3 v, ArrayList<Integer> out) {
+			float len = v.len();
+			if(len == 0) {
+				// Only Matches With A Non-Positive Tolerance, And Then Matches Anything
+				if(d > 0 || arr.isEmpty()) return false;
+				out.add(0);
+				return true;
+			}
+			out.addAll(zeros);
+			if(maxLen == 0) return true;
+			
+			float r = 2;
+			if(d > 0) {
+				float c = d / (maxLen * len);
+				if(c > 1) return !out.isEmpty();
+				r = (float)Math.sqrt(2 - 2 * c);
+			}
+			grid.query(v.x / len, v.y / len, v.z / len, pad(r), out);
+			return true;
+		}
+		@Override
+		protected void insert(Vector3 v, int index) {
+			float len = v.len();
+			if(len == 0) {
+				zeros.add(index);
+				return;
+			}
+			maxLen = Math.max(maxLen, len);
+			grid.add(v.x / len, v.y / len, v.z / len, index);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package cs4620.mesh;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Uniform Grid Of Indexed Points For Finding Nearby Points Quickly
+ *
+ * Points are put into cubic cells of a fixed size, and only the occupied cells
+ * are stored, in a hash map keyed by their packed integer coordinates. Cells
+ * whose coordinates collide in the key share a list, which only means a few
+ * more candidates for the caller to check.
+ */
+class PointGrid {
+	private static final int BITS = 21;
+	private static final long MASK = (1L << BITS) - 1;
+
+	private final float cellSize;
+	private final HashMap<Long, ArrayList<Integer>> cells = new HashMap<>();
+
+	/**
+	 * @param cellSize Edge Length Of The Cells (Best Close To The Usual Search Radius)
+	 */
+	public PointGrid(float cellSize) {
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * Adds A Point
+	 * @param index The Caller's Index Of The Point
+	 */
+	public void add(float x, float y, float z, int index) {
+		Long key = key(cell(x), cell(y), cell(z));
+		ArrayList<Integer> list = cells.get(key);
+		if(list == null) {
+			list = new ArrayList<>(2);
+			cells.put(key, list);
+		}
+		list.add(index);
+	}
+
+	/**
+	 * Collects The Indices Of All Points That May Lie Within A Radius Of A Point
+	 * @param r Search Radius
+	 * @param out Receives The Indices (Possibly Along With Some Farther Points)
+	 */
+	public void query(float x, float y, float z, float r, ArrayList<Integer> out) {
+		long x0 = cell(x - r), x1 = cell(x + r);
+		long y0 = cell(y - r), y1 = cell(y + r);
+		long z0 = cell(z - r), z1 = cell(z + r);
+
+		// With A Large Radius It Is Cheaper To Go Through Every Occupied Cell
+		double range = (double)(x1 - x0 + 1) * (y1 - y0 + 1) * (z1 - z0 + 1);
+		if(range > cells.size() || x1 - x0 > MASK) {
+			for(ArrayList<Integer> list : cells.values()) out.addAll(list);
+			return;
+		}
+
+		for(long cx = x0;cx <= x1;cx++) {
+			for(long cy = y0;cy <= y1;cy++) {
+				for(long cz = z0;cz <= z1;cz++) {
+					ArrayList<Integer> list = cells.get(key(cx, cy, cz));
+					if(list != null) out.addAll(list);
+				}
+			}
+		}
+	}
+
+	private long cell(float v) {
+		return (long)Math.floor(v / cellSize);
+	}
+	private static Long key(long cx, long cy, long cz) {
+		return ((cx & MASK) << (2 * BITS)) | ((cy & MASK) << BITS) | (cz & MASK);
+	}
+}
@@ -0,0 +1,213 @@
+package cs4620.mesh;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import egl.NativeMem;
+
+/**
+ * Computes Per-Vertex Tangents And Bitangents For Normal Mapping
+ *
+ * Every Triangle's Tangent Is The Direction In Which u Grows Across It, And Its
+ * Bitangent The Direction In Which v Shrinks (Texture Images Are Stored Top Row
+ * First), Both Found From Its Edges And UV Deltas.
+ * Triangles Are Processed In Parallel Ranges, Then Each Vertex Sums The Vectors
+ * Of The Triangles Around It, And The Sums Are Made Orthonormal To The Vertex
+ * Normal (Gram-Schmidt), Keeping The Bitangent's Handedness. Nothing Here
+ * Needs A GL Context.
+ */
+public class TangentSpace {
+	/**
+	 * Floats Per Vertex In The Output: Tangent, Then Bitangent
+	 */
+	public static final int FLOATS_PER_VERTEX = 6;
+	/**
+	 * Meshes With Fewer Triangles Are Done On The Calling Thread
+	 */
+	private static final int MIN_PARALLEL_TRIANGLES = 1 << 14;
+	/**
+	 * A Vector Is Treated As Parallel To The Ones Projected Out Of It If Less Than
+	 * This Fraction Of Its Length Remains, Since The Rest Would Be Rounding Noise
+	 */
+	private static final float PARALLEL_TOLERANCE = 1e-3f;
+
+	/**
+	 * Computes The Tangent Space Of A Mesh (Use MeshData.getTangentSpace() For The Cached One)
+	 * @param data Mesh With Positions And Indices; Normals And UVs Are Used If Present
+	 * @return A Direct Buffer With FLOATS_PER_VERTEX Floats Per Vertex
+	 */
+	public static FloatBuffer compute(final MeshData data) {
+		final int triCount = data.indexCount / 3;
+		final float[] faces = new float[FLOATS_PER_VERTEX * triCount];
+		final float[] vertices = new float[FLOATS_PER_VERTEX * data.vertexCount];
+
+		// Tangents Of All Triangles, Then Their Sums At Every Vertex, Then Orthonormalize
+		forRanges(triCount, new Range() {
+			@Override
+			public void run(int start, int end) {
+				computeFaces(data, faces, start, end);
+			}
+		});
+		for(int t = 0;t < triCount;t++) {
+			for(int vi = 0;vi < 3;vi++) {
+				int vo = data.indices.get(3 * t + vi) * FLOATS_PER_VERTEX;
+				for(int k = 0;k < FLOATS_PER_VERTEX;k++) vertices[vo + k] += faces[FLOATS_PER_VERTEX * t + k];
+			}
+		}
+		forRanges(data.vertexCount, new Range() {
+			@Override
+			public void run(int start, int end) {
+				orthonormalize(data, vertices, start, end);
+			}
+		});
+
+		FloatBuffer fb = NativeMem.createFloatBuffer(vertices.length);
+		fb.put(vertices);
+		fb.flip();
+		return fb;
+	}
+
+	/**
+	 * Writes The Tangent And Bitangent Of Triangles [start, end), Scaled By The
+	 * Triangle's Size In Texture Space, To faces
+	 */
+	private static void computeFaces(MeshData data, float[] faces, int start, int end) {
+		if(!data.hasUVs()) return;
+		for(int t = start;t < end;t++) {
+			int i0 = data.indices.get(3 * t), i1 = data.indices.get(3 * t + 1), i2 = data.indices.get(3 * t + 2);
+			float e1x = data.positions.get(3 * i1) - data.positions.get(3 * i0);
+			float e1y = data.positions.get(3 * i1 + 1) - data.positions.get(3 * i0 + 1);
+			float e1z = data.positions.get(3 * i1 + 2) - data.positions.get(3 * i0 + 2);
+			float e2x = data.positions.get(3 * i2) - data.positions.get(3 * i0);
+			float e2y = data.positions.get(3 * i2 + 1) - data.positions.get(3 * i0 + 1);
+			float e2z = data.positions.get(3 * i2 + 2) - data.positions.get(3 * i0 + 2);
+
+			float u1 = data.uvs.get(2 * i1) - data.uvs.get(2 * i0);
+			float v1 = data.uvs.get(2 * i1 + 1) - data.uvs.get(2 * i0 + 1);
+			float u2 = data.uvs.get(2 * i2) - data.uvs.get(2 * i0);
+			float v2 = data.uvs.get(2 * i2 + 1) - data.uvs.get(2 * i0 + 1);
+			float det = u1 * v2 - u2 * v1;
+			if(det == 0 || Float.isNaN(det)) continue;
+			float r = 1.0f / det;
+
+			// dP/du And -dP/dv
+			int o = FLOATS_PER_VERTEX * t;
+			faces[o] = (e1x * v2 - e2x * v1) * r;
+			faces[o + 1] = (e1y * v2 - e2y * v1) * r;
+			faces[o + 2] = (e1z * v2 - e2z * v1) * r;
+			faces[o + 3] = (e1x * u2 - e2x * u1) * r;
+			faces[o + 4] = (e1y * u2 - e2y * u1) * r;
+			faces[o + 5] = (e1z * u2 - e2z * u1) * r;
+		}
+	}
+
+	/**
+	 * Makes The Summed Tangent And Bitangent Of Vertices [start, end) Unit Length
+	 * And Perpendicular To The Normal And Each Other. Vertices Without A Usable
+	 * Tangent Get An Arbitrary Frame Around Their Normal.
+	 */
+	private static void orthonormalize(MeshData data, float[] v, int start, int end) {
+		boolean normals = data.hasNormals();
+		float[] n = new float[3], t = new float[3], b = new float[3];
+		for(int i = start;i < end;i++) {
+			int o = FLOATS_PER_VERTEX * i;
+			if(normals) {
+				n[0] = data.normals.get(3 * i);
+				n[1] = data.normals.get(3 * i + 1);
+				n[2] = data.normals.get(3 * i + 2);
+				if(normalize(n) == 0) n[2] = 1;
+			}
+			else {
+				n[0] = n[1] = n[2] = 0;
+			}
+			t[0] = v[o]; t[1] = v[o + 1]; t[2] = v[o + 2];
+			b[0] = v[o + 3]; b[1] = v[o + 4]; b[2] = v[o + 5];
+
+			float tLen = length(t), bLen = length(b);
+			subProjection(t, n);
+			if(normalize(t) <= PARALLEL_TOLERANCE * tLen) {
+				// Any Direction Perpendicular To The Normal
+				if(Math.abs(n[0]) < 0.9f) { t[0] = 1; t[1] = 0; t[2] = 0; }
+				else { t[0] = 0; t[1] = 1; t[2] = 0; }
+				subProjection(t, n);
+				normalize(t);
+			}
+			subProjection(b, n);
+			subProjection(b, t);
+			if(normalize(b) <= PARALLEL_TOLERANCE * bLen) {
+				b[0] = n[1] * t[2] - n[2] * t[1];
+				b[1] = n[2] * t[0] - n[0] * t[2];
+				b[2] = n[0] * t[1] - n[1] * t[0];
+				normalize(b);
+			}
+
+			v[o] = t[0]; v[o + 1] = t[1]; v[o + 2] = t[2];
+			v[o + 3] = b[0]; v[o + 4] = b[1]; v[o + 5] = b[2];
+		}
+	}
+	/**
+	 * Removes The Part Of a Along The Unit Vector u (Or Nothing For A Zero u)
+	 */
+	private static void subProjection(float[] a, float[] u) {
+		float d = a[0] * u[0] + a[1] * u[1] + a[2] * u[2];
+		a[0] -= d * u[0];
+		a[1] -= d * u[1];
+		a[2] -= d * u[2];
+	}
+	private static float length(float[] a) {
+		return (float)Math.sqrt(a[0] * a[0] + a[1] * a[1] + a[2] * a[2]);
+	}
+	/**
+	 * @return The Length Of a Before It Was Normalized, Or 0 If It Could Not Be
+	 */
+	private static float normalize(float[] a) {
+		float len = length(a);
+		if(len < 1e-20f || Float.isNaN(len) || Float.isInfinite(len)) return 0;
+		a[0] /= len;
+		a[1] /= len;
+		a[2] /= len;
+		return len;
+	}
+
+	private interface Range {
+		void run(int start, int end);
+	}
+	/**
+	 * Runs r Over [0, count) In Parallel Ranges, Or All At Once For Small Counts
+	 */
+	private static void forRanges(int count, final Range r) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		if(threads < 2 || count < MIN_PARALLEL_TRIANGLES) {
+			r.run(0, count);
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<Future<Void>> results = new ArrayList<>();
+			int step = (count + threads - 1) / threads;
+			for(int s = 0;s < count;s += step) {
+				final int start = s, end = Math.min(count, s + step);
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						r.run(start, end);
+						return null;
+					}
+				}));
+			}
+			for(Future<Void> f : results) f.get();
+		} catch (InterruptedException e) {
+			throw new Error(e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new Error(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package cs4620.ray2;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import egl.math.Colord;
+
+/**
+ * Running per-pixel sums of radiance samples, used by progressive rendering.
+ * Samples are added pass after pass and the buffer can be resolved into an
+ * Image at any point to get the current estimate.
+ *
+ * Besides the color sum, the sum of squared luminance is kept so the
+ * noise of every pixel estimate can be computed. Storage is float, which is
+ * plenty for averaging and halves the memory of the Colord based Image.
+ *
+ * Different threads may add samples to different pixels concurrently; a single
+ * pixel must only ever be written by one thread at a time.
+ */
+public class AccumulationBuffer {
+
+	/** Luminance below this is treated as this when computing relative noise. */
+	public static final double NOISE_FLOOR = 0.01;
+
+	protected final int width, height;
+
+	/** Sum of the samples of each pixel, 3 floats per pixel, row by row. */
+	protected final float[] sum;
+
+	/** Sum of the squared luminance of the samples of each pixel. */
+	protected final float[] sumSq;
+
+	/** The number of samples taken in each pixel. */
+	protected final int[] count;
+
+	public AccumulationBuffer(int width, int height) {
+		this.width = width;
+		this.height = height;
+		sum = new float[3 * width * height];
+		sumSq = new float[width * height];
+		count = new int[width * height];
+	}
+
+	public int getWidth() { return width; }
+	public int getHeight() { return height; }
+
+	/**
+	 * Add one radiance sample to pixel (x, y).
+	 */
+	public void addSample(int x, int y, Colord sample) {
+		int i = x + width * y;
+		sum[3*i] += sample.x;
+		sum[3*i+1] += sample.y;
+		sum[3*i+2] += sample.z;
+		double l = luminance(sample.x, sample.y, sample.z);
+		sumSq[i] += l * l;
+		count[i]++;
+	}
+
+	/**
+	 * @return the number of samples taken in pixel (x, y)
+	 */
+	public int getSampleCount(int x, int y) {
+		return count[x + width * y];
+	}
+
+	/**
+	 * Set outColor to the mean of the samples of pixel (x, y), or black if there are none.
+	 */
+	public void getMean(Colord outColor, int x, int y) {
+		int i = x + width * y;
+		int n = count[i];
+		if (n == 0) {
+			outColor.setZero();
+			return;
+		}
+		outColor.set(sum[3*i] / n, sum[3*i+1] / n, sum[3*i+2] / n);
+	}
+
+	/**
+	 * @return the standard error of the luminance estimate of pixel (x, y)
+	 * relative to that luminance, or +infinity with fewer than 2 samples
+	 */
+	public double getRelativeError(int x, int y) {
+		int i = x + width * y;
+		int n = count[i];
+		if (n < 2)
+			return Double.POSITIVE_INFINITY;
+		double mean = luminance(sum[3*i], sum[3*i+1], sum[3*i+2]) / n;
+		double variance = Math.max(0, (sumSq[i] / n - mean * mean) * n / (n - 1));
+		return Math.sqrt(variance / n) / Math.max(mean, NOISE_FLOOR);
+	}
+
+	/**
+	 * @return the root mean square of the relative error of all pixels, see getRelativeError()
+	 */
+	public double getNoise() {
+		double total = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double e = getRelativeError(x, y);
+				total += e * e;
+			}
+		}
+		return Math.sqrt(total / (width * height));
+	}
+
+	/**
+	 * @return the smallest number of samples taken in any pixel
+	 */
+	public int getMinSampleCount() {
+		int min = Integer.MAX_VALUE;
+		for (int n : count)
+			min = Math.min(min, n);
+		return min;
+	}
+
+	/**
+	 * Write the current estimate of every pixel, scaled by exposure, to image.
+	 */
+	public void resolve(Image image, double exposure) {
+		resolve(image, exposure, 0, 0, width, height);
+	}
+
+	/**
+	 * Write the current estimate of the pixels in a block, scaled by exposure, to image,
+	 * along with their sample counts and variances if the image records them.
+	 */
+	public void resolve(Image image, double exposure, int offsetX, int offsetY, int sizeX, int sizeY) {
+		float[] rgb = new float[3 * sizeX * sizeY];
+		int[] counts = new int[sizeX * sizeY];
+		float[] variances = new float[sizeX * sizeY];
+		for (int y = 0, k = 0; y < sizeY; y++) {
+			for (int x = 0; x < sizeX; x++, k++) {
+				int i = offsetX + x + width * (offsetY + y);
+				int n = count[i];
+				counts[k] = n;
+				if (n == 0)
+					continue;
+				rgb[3*k] = (float) (sum[3*i] / n * exposure);
+				rgb[3*k+1] = (float) (sum[3*i+1] / n * exposure);
+				rgb[3*k+2] = (float) (sum[3*i+2] / n * exposure);
+				variances[k] = (float) (getVariance(offsetX + x, offsetY + y) * exposure * exposure);
+			}
+		}
+		image.setTile(rgb, offsetX, offsetY, sizeX, sizeY);
+		image.setTileStatistics(counts, variances, offsetX, offsetY, sizeX, sizeY);
+	}
+
+	/**
+	 * @return the variance of the luminance estimate (the mean) of pixel (x, y),
+	 * or 0 with fewer than 2 samples
+	 */
+	public double getVariance(int x, int y) {
+		int i = x + width * y;
+		int n = count[i];
+		if (n < 2)
+			return 0;
+		double mean = luminance(sum[3*i], sum[3*i+1], sum[3*i+2]) / n;
+		return Math.max(0, (sumSq[i] / n - mean * mean) * n / (n - 1)) / n;
+	}
+
+	/**
+	 * Write the sums and sample counts of every pixel to out.
+	 */
+	public void write(DataOutput out) throws IOException {
+		for (float v : sum)
+			out.writeFloat(v);
+		for (float v : sumSq)
+			out.writeFloat(v);
+		for (int n : count)
+			out.writeInt(n);
+	}
+
+	/**
+	 * Replace the sums and sample counts of every pixel with ones written by write().
+	 */
+	public void read(DataInput in) throws IOException {
+		for (int i = 0; i < sum.length; i++)
+			sum[i] = in.readFloat();
+		for (int i = 0; i < sumSq.length; i++)
+			sumSq[i] = in.readFloat();
+		for (int i = 0; i < count.length; i++)
+			count[i] = in.readInt();
+	}
+
+	/**
+	 * @return the Rec. 709 luminance of a linear RGB color
+	 */
+	public static double luminance(double r, double g, double b) {
+		return 0.2126 * r + 0.7152 * g + 0.0722 * b;
+	}
+}
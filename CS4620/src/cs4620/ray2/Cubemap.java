@@ -27,11 +27,46 @@ public class Cubemap {
 
 	public Cubemap() { }
 
+	/**
+	 * Loads cubemaps for the resource cache. Cubemaps of the same file share
+	 * the pixels and the distribution for sampling them, which never change.
+	 */
+	private static final ResourceCache.Loader<Cubemap> LOADER = new ResourceCache.Loader<Cubemap>() {
+		@Override
+		public Cubemap load(String fileName) throws IOException {
+			Cubemap map = new Cubemap();
+			map.load(fileName);
+			return map;
+		}
+
+		@Override
+		public long size(Cubemap map) {
+			return 4L * (map.imageData.length + map.cumProb.length);
+		}
+	};
+
 	public void setFilename(String filename) {
 		this.filename = filename;
 
+		Cubemap loaded;
+		try {
+			loaded = ResourceCache.getInstance().get(filename, "cubemap", LOADER);
+		} catch (IOException e) {
+			throw new Error("Could not load cubemap " + filename, e);
+		}
+		width = loaded.width;
+		height = loaded.height;
+		blockSz = loaded.blockSz;
+		mapBits = loaded.mapBits;
+		imageData = loaded.imageData;
+		cumProb = loaded.cumProb;
+	}
+
+	private void load(String filename) throws IOException {
 		PNMHeaderInfo hdr = new PNMHeaderInfo();
 		imageData = readPFM(new File(filename), hdr);
+		if (imageData == null)
+			throw new IOException("Could not read " + filename);
 
 		width = hdr.width;
 		height = hdr.height;
@@ -106,8 +141,6 @@ public class Cubemap {
 			y += v*blockSz;
 		}
 		
-		System.out.println(imageData.length);
-		System.out.println(width);
 		outRadiance.x = imageData[(int) (3 *(x + width* y))];
 		outRadiance.y = imageData[(int) (3 * (x + width* y)) + 1];
 		outRadiance.z = imageData[(int) (3 * (x + width* y)) + 2];
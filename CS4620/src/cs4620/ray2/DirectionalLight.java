@@ -18,8 +18,8 @@ public class DirectionalLight extends Light {
 	public void setDirection(Vector3d direction) { this.direction.set(direction); }
 
 	/** Get direction from light to shaded point. */
-	public Vector3d getDirection(Vector3d point) {
-		return direction;
+	public Vector3d getDirection(Vector3d point, Vector3d outDir) {
+		return outDir.set(direction);
 	}
 	
 	/**Get radius square from light to shaded point. */
@@ -2,25 +2,21 @@ package cs4620.ray2;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.file.Files;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
-import edu.cornell.graphics.exr.Channel;
-import edu.cornell.graphics.exr.ChannelList;
-import edu.cornell.graphics.exr.EXROutputFile;
-import edu.cornell.graphics.exr.FrameBuffer;
-import edu.cornell.graphics.exr.Header;
-import edu.cornell.graphics.exr.PixelType;
-import edu.cornell.graphics.exr.Slice;
 import egl.math.Color;
 import egl.math.Colord;
 
 /**
- * Basic image class, containing a 2D array of Colords. Simple functionality for
- * setting pixel colors and writing to a PNG file is provided.
+ * Basic image class, storing linear RGB colors as floats in one flat array,
+ * row by row from the bottom row up. Simple functionality for setting pixel
+ * colors and writing to a PNG file is provided, along with bulk access to
+ * rectangular tiles (for the renderer) and rows (for the file writers).
+ *
+ * Optionally every pixel also records how many samples went into it and the
+ * variance of its estimate; these channels are only allocated when enabled.
  *
  * @author eschweic, nsavva
  */
@@ -32,8 +28,17 @@ public class Image {
 	/** Image height * */
 	protected int height;
 	
-	/** Data array* */
-	protected Colord[][] data;
+	/** Pixel colors, 3 floats per pixel, pixel (x, y) at 3 * (x + width * y) */
+	protected float[] data;
+
+	/** Number of samples in each pixel, or null if not recorded */
+	protected int[] sampleCounts;
+
+	/** Variance of the estimate of each pixel, or null if not recorded */
+	protected float[] variances;
+
+	/** Tile size of the OpenEXR files written by writeHDR() */
+	public static final int EXR_TILE_SIZE = 64;
 	
 	/**
 	 * Create an empty image
@@ -52,22 +57,22 @@ public class Image {
 	 */
 	public Image(Image oldImage) {
 		setSize(oldImage.getWidth(), oldImage.getHeight());
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j].set(oldImage.data[i][j]);
-			}
-		}
+		System.arraycopy(oldImage.data, 0, data, 0, data.length);
+		if (oldImage.sampleCounts != null)
+			sampleCounts = oldImage.sampleCounts.clone();
+		if (oldImage.variances != null)
+			variances = oldImage.variances.clone();
 	}
 	
 	/**
-	 * Set the image to black
+	 * Set the image to black, with no samples and no variance in any pixel
 	 */
 	public void clear() {
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j] = new Colord();
-			}
-		}
+		Arrays.fill(data, 0);
+		if (sampleCounts != null)
+			Arrays.fill(sampleCounts, 0);
+		if (variances != null)
+			Arrays.fill(variances, 0);
 	}
 	
 	/**
@@ -86,18 +91,55 @@ public class Image {
 	
 	/**
 	 * Set the size of the image by recreating it.  Destroys all current image data.
+	 * The sample count and variance channels stay enabled if they were.
 	 * @param newWidth width
 	 * @param newHeight height
 	 */
 	public void setSize(int newWidth, int newHeight) {
 		width = newWidth;
 		height = newHeight;
-		data = new Colord[width][height];
-		for (int i=0; i<width; i++) {
-			for (int j=0; j<height; j++) {
-				data[i][j] = new Colord();
-			}
-		}
+		data = new float[3 * width * height];
+		if (sampleCounts != null)
+			sampleCounts = new int[width * height];
+		if (variances != null)
+			variances = new float[width * height];
+	}
+
+	/**
+	 * Start recording the number of samples of every pixel (all zero at first).
+	 * Not safe to call while other threads write to the image.
+	 */
+	public void enableSampleCounts() {
+		if (sampleCounts == null)
+			sampleCounts = new int[width * height];
+	}
+
+	/**
+	 * Start recording the variance of every pixel (all zero at first).
+	 */
+	public void enableVariances() {
+		if (variances == null)
+			variances = new float[width * height];
+	}
+
+	/**
+	 * @return true if the image records the number of samples of every pixel
+	 */
+	public boolean hasSampleCounts() {
+		return sampleCounts != null;
+	}
+
+	/**
+	 * @return true if the image records the variance of every pixel
+	 */
+	public boolean hasVariances() {
+		return variances != null;
+	}
+
+	private int index(int inX, int inY) {
+		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
+			throw new IndexOutOfBoundsException();
+		return inX + width * inY;
 	}
 	
 	/**
@@ -108,9 +150,9 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void getPixelColor(Color outPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		Colord c = new Colord();
+		getPixelColor(c, inX, inY);
+		outPixel.set(c);
 	}
 	
 	/**
@@ -121,9 +163,8 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void getPixelColor(Colord outPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = 3 * index(inX, inY);
+		outPixel.set(data[i], data[i+1], data[i+2]);
 	}
 	
 	/**
@@ -133,9 +174,7 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void setPixelColor(Color inPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		setPixelColor(new Colord(inPixel), inX, inY);
 	}
 	
 	/**
@@ -145,9 +184,151 @@ public class Image {
 	 * @param inY inY coordinate
 	 */
 	public void setPixelColor(Colord inPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
+		int i = 3 * index(inX, inY);
+		data[i] = (float) inPixel.x;
+		data[i+1] = (float) inPixel.y;
+		data[i+2] = (float) inPixel.z;
+	}
+
+	/**
+	 * @return the number of samples recorded for pixel (inX, inY), or 0 if not recorded
+	 */
+	public int getSampleCount(int inX, int inY) {
+		int i = index(inX, inY);
+		return sampleCounts == null ? 0 : sampleCounts[i];
+	}
+
+	/**
+	 * Record the number of samples of pixel (inX, inY). The channel must be enabled.
+	 */
+	public void setSampleCount(int count, int inX, int inY) {
+		sampleCounts[index(inX, inY)] = count;
+	}
+
+	/**
+	 * @return the variance recorded for pixel (inX, inY), or 0 if not recorded
+	 */
+	public float getVariance(int inX, int inY) {
+		int i = index(inX, inY);
+		return variances == null ? 0 : variances[i];
+	}
+
+	/**
+	 * Record the variance of pixel (inX, inY). The channel must be enabled.
+	 */
+	public void setVariance(float variance, int inX, int inY) {
+		variances[index(inX, inY)] = variance;
+	}
+
+	/**
+	 * Copy the colors of a block of pixels into the image.
+	 *
+	 * @param rgb 3 floats per pixel, rows of sizeX pixels from the bottom row of the block up
+	 * @param offsetX the starting x value of the block
+	 * @param offsetY the starting y value of the block
+	 * @param sizeX the width of the block
+	 * @param sizeY the height of the block
+	 */
+	public void setTile(float[] rgb, int offsetX, int offsetY, int sizeX, int sizeY) {
+		checkTile(offsetX, offsetY, sizeX, sizeY);
+		for (int y = 0; y < sizeY; y++)
+			System.arraycopy(rgb, 3 * sizeX * y, data, 3 * (offsetX + width * (offsetY + y)), 3 * sizeX);
+	}
+
+	/**
+	 * Copy the colors of a block of pixels out of the image, laid out as for setTile().
+	 *
+	 * @param outRgb receives 3 floats per pixel of the block
+	 */
+	public void getTile(float[] outRgb, int offsetX, int offsetY, int sizeX, int sizeY) {
+		checkTile(offsetX, offsetY, sizeX, sizeY);
+		for (int y = 0; y < sizeY; y++)
+			System.arraycopy(data, 3 * (offsetX + width * (offsetY + y)), outRgb, 3 * sizeX * y, 3 * sizeX);
+	}
+
+	/**
+	 * Copy the sample counts and variances of a block of pixels into the image.
+	 * Channels that are not enabled are skipped, as is either one if its array is null.
+	 *
+	 * @param counts 1 int per pixel, laid out as for setTile()
+	 * @param vars 1 float per pixel, laid out as for setTile()
+	 */
+	public void setTileStatistics(int[] counts, float[] vars, int offsetX, int offsetY, int sizeX, int sizeY) {
+		checkTile(offsetX, offsetY, sizeX, sizeY);
+		for (int y = 0; y < sizeY; y++) {
+			int dst = offsetX + width * (offsetY + y);
+			if (counts != null && sampleCounts != null)
+				System.arraycopy(counts, sizeX * y, sampleCounts, dst, sizeX);
+			if (vars != null && variances != null)
+				System.arraycopy(vars, sizeX * y, variances, dst, sizeX);
+		}
+	}
+
+	/**
+	 * Copy the sample counts and variances of a block of pixels out of the image,
+	 * laid out as for setTile(). Channels that are not enabled read as 0; either
+	 * array may be null to skip it.
+	 *
+	 * @param outCounts receives 1 int per pixel of the block
+	 * @param outVars receives 1 float per pixel of the block
+	 */
+	public void getTileStatistics(int[] outCounts, float[] outVars, int offsetX, int offsetY, int sizeX, int sizeY) {
+		checkTile(offsetX, offsetY, sizeX, sizeY);
+		for (int y = 0; y < sizeY; y++) {
+			int src = offsetX + width * (offsetY + y);
+			if (outCounts != null) {
+				if (sampleCounts != null)
+					System.arraycopy(sampleCounts, src, outCounts, sizeX * y, sizeX);
+				else
+					Arrays.fill(outCounts, sizeX * y, sizeX * (y + 1), 0);
+			}
+			if (outVars != null) {
+				if (variances != null)
+					System.arraycopy(variances, src, outVars, sizeX * y, sizeX);
+				else
+					Arrays.fill(outVars, sizeX * y, sizeX * (y + 1), 0);
+			}
+		}
+	}
+
+	private void checkTile(int offsetX, int offsetY, int sizeX, int sizeY) {
+		if (offsetX < 0 || offsetY < 0 || sizeX < 0 || sizeY < 0 || offsetX + sizeX > width || offsetY + sizeY > height)
 			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+	}
+
+	/**
+	 * Copy the linear colors of one row of pixels, 3 floats per pixel.
+	 *
+	 * @param outRgb receives at least 3 * width floats
+	 * @param inY the row, counted from the bottom
+	 */
+	public void getRow(float[] outRgb, int inY) {
+		index(0, inY);
+		System.arraycopy(data, 3 * width * inY, outRgb, 0, 3 * width);
+	}
+
+	/**
+	 * Convert one row of pixels to 8 bit sRGB-like display values, packed as
+	 * in BufferedImage.TYPE_INT_RGB. The colors are gamma corrected, clamped to
+	 * [0, 1] and rounded, exactly as Colord.gammaCorrect() and Colord.toColor() do.
+	 *
+	 * @param outRgb receives width packed pixels
+	 * @param inY the row, counted from the bottom
+	 * @param gamma the display gamma
+	 */
+	public void getRowRGB(int[] outRgb, int inY, double gamma) {
+		index(0, inY);
+		double inverseGamma = 1.0 / gamma;
+		for (int x = 0, i = 3 * width * inY; x < width; x++, i += 3) {
+			outRgb[x] = (toByte(data[i], inverseGamma) << 16)
+					| (toByte(data[i+1], inverseGamma) << 8)
+					| toByte(data[i+2], inverseGamma);
+		}
+	}
+
+	private static int toByte(double v, double inverseGamma) {
+		double c = Math.max(Math.min(Math.pow(v, inverseGamma), 1.0), 0.0);
+		return (int) (c * 255d + 0.5) & 0xff;
 	}
 	
 	/**
@@ -158,14 +339,10 @@ public class Image {
 	public void write(String fileName) {
 		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 		
-		Colord pixelColor= new Colord();
+		int[] row = new int[width];
 		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				this.getPixelColor(pixelColor, x, y);
-				pixelColor.gammaCorrect(2.2);
-				Color c = pixelColor.toColor();
-				bufferedImage.setRGB(x, (height - 1 - y), c.toIntRGB());
-			}
+			getRowRGB(row, y, 2.2);
+			bufferedImage.setRGB(0, height - 1 - y, width, 1, row, 0, width);
 		}
 		
 		try {
@@ -179,62 +356,18 @@ public class Image {
 	}
 	
 	/**
-	 * A quick openEXR-JNI write test
-	 * Write this image to the filename.  The output is always written as HDR regardless
-	 * of the extension on the filename given.
+	 * Write this image to the filename as a tiled OpenEXR file with 32 bit float
+	 * colors, plus the sample count and variance channels if they are enabled.
+	 * The output is always written as HDR regardless of the extension on the
+	 * filename given.
 	 * @param fileName the output filename
 	 */
 	public void writeHDR(String fileName) {
-		
-		File outFile = new File(fileName);
-
-        final PixelType pixelType = PixelType.FLOAT;
-        final int numChannels = 3;
-        final int elemSize    = pixelType.byteSize();
-        final int pixelSize   = elemSize * numChannels;
-        final int numPixels   = width * height;
-    
-		Header hdrHeader = new Header(width, height);
-		
-		ChannelList channels = hdrHeader.getChannels();
-        channels.insert("R", new Channel(pixelType));
-        channels.insert("G", new Channel(pixelType));
-        channels.insert("B", new Channel(pixelType));
-        
-		Colord pixelColor= new Colord();
-        ByteBuffer pixels = ByteBuffer.allocateDirect(pixelSize * numPixels);
-        pixels.order(ByteOrder.LITTLE_ENDIAN);
-        for(int h = height-1; h >= 0; --h) {
-            for (int w = 0; w < width; ++w) {
-            	this.getPixelColor(pixelColor, w, h);
-                pixels.putFloat((float) pixelColor.x);
-                pixels.putFloat((float) pixelColor.y);
-                pixels.putFloat((float) pixelColor.z);
-            }
-        }
-        pixels.flip();
-        
-     // Build the frame buffer
-        FrameBuffer frameBuffer = new FrameBuffer();
-        final int yStride = width * pixelSize;
-        frameBuffer.insert("R", Slice.build()
-                .baseOffset(0).buffer(pixels).pixelType(pixelType)
-                .xStride(pixelSize).yStride(yStride).get());
-        frameBuffer.insert("G", Slice.build()
-                .baseOffset(elemSize).buffer(pixels).pixelType(pixelType)
-                .xStride(pixelSize).yStride(yStride).get());
-        frameBuffer.insert("B", Slice.build()
-                .baseOffset(2*elemSize).buffer(pixels).pixelType(pixelType)
-                .xStride(pixelSize).yStride(yStride).get());
-        
-        try (EXROutputFile out = new EXROutputFile(outFile.toPath(), hdrHeader)){
-             out.setFrameBuffer(frameBuffer);
-             out.writePixels(height);
-             System.out.printf("  Wrote RGB32F file %s%n", outFile);
-             
-             //System.out.printf("  File size: %d%n", Files.size(outFile.toPath()));
-             pixels.rewind();
-         }
+		try (TiledEXRWriter out = new TiledEXRWriter(fileName, width, height,
+				EXR_TILE_SIZE, EXR_TILE_SIZE, hasSampleCounts(), hasVariances())) {
+			out.writeImage(this);
+			System.out.printf("  Wrote RGB32F file %s%n", fileName);
+		}
 		catch (Exception e) {
 			System.out.println("Error occured while attempting to write file: "+fileName);
 			System.err.println(e);
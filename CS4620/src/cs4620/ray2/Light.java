@@ -14,12 +14,20 @@ import egl.math.Vector3d;
 public abstract class Light {
 	
 	
+	/** The position of this light in the light list of its scene, set by {@link Scene#addLight(Light)}. */
+	int index = -1;
+	
 	/** How bright the light is. */
 	public final Colord intensity = new Colord(Color.White);
 	public void setIntensity(Colord intensity) { this.intensity.set(intensity); }
 	
 	/** Get direction from light to shaded point. */
-	public abstract Vector3d getDirection(Vector3d point); 
+	public Vector3d getDirection(Vector3d point) {
+		return getDirection(point, new Vector3d());
+	}
+	
+	/** Get direction from light to shaded point and store it in outDir, which is returned. */
+	public abstract Vector3d getDirection(Vector3d point, Vector3d outDir);
 	
 	/**Get radius square from light to shaded point. */
 	public abstract double getRSq(Vector3d point);
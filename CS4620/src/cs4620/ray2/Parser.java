@@ -108,8 +108,8 @@ public class Parser {
 	/** Java document builder used to parse XML * */
 	private DocumentBuilder db;
 
-	/** Map of references to their names **/
-	public static HashMap<String, Object> references = new HashMap<String, Object>();
+	/** Map of references to their names, for the file being parsed **/
+	private final HashMap<String, Object> references = new HashMap<String, Object>();
 
 	/** Creates a new Parser. */
 	public Parser() {
@@ -479,6 +479,9 @@ public class Parser {
 
 		File file = new File(filename);
 
+		// Names only refer to objects of the same file
+		references.clear();
+
 		// Parse the XML
 		Object result = null;
 		try {
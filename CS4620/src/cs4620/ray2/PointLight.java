@@ -17,9 +17,8 @@ public class PointLight extends Light {
 	public void setPosition(Vector3d position) { this.position.set(position); }
 
 	/** Get direction from light to shaded point. */
-	public Vector3d getDirection(Vector3d point) {
-		Vector3d dir = position.clone().sub(point);
-		return dir;
+	public Vector3d getDirection(Vector3d point, Vector3d outDir) {
+		return outDir.set(position).sub(point);
 	}
 	
 	/**Get radius square from light to shaded point. */
@@ -29,7 +28,7 @@ public class PointLight extends Light {
 	
 
 	public double getShadowRayEnd(Vector3d point) {
-		return this.getDirection(point).len();
+		return point.dist(this.position);
 	}
 	
 	/**
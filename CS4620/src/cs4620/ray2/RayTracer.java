@@ -1,22 +1,35 @@
 package cs4620.ray2;
 
+import java.awt.GraphicsEnvironment;
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import cs4620.ray2.Image;
 import cs4620.ray2.Ray;
 import cs4620.ray2.Scene;
+import cs4620.ray2.accel.LinearBvh;
+import cs4620.ray2.accel.PrimitiveSet;
 import cs4620.ray2.camera.Camera;
 import cs4620.ray2.shader.Shader;
+import cs4620.ray2.surface.MeshInstance;
 import cs4620.ray2.surface.Surface;
+import cs4620.ray2.surface.TriangleStore;
 import cs4620.ray2.viewer.QuickViewer;
 import egl.math.Colord;
 
-public class RayTracer {
+public class RayTracer implements Cloneable {
 
 	/**
 	 * Turn the display window on or off
@@ -24,31 +37,136 @@ public class RayTracer {
 	public static final boolean DISPLAY = true;
 
 	/**
-	 * Output HDR image (using openEXR)
+	 * The maximum number of recursive tracing calls allowed
 	 */
-	public static final boolean writeHDR = false;
+	public static final int MAX_DEPTH = 12;
 
 	/**
-	 * The maximum number of recursive tracing calls allowed
+	 * The number of samples every pixel gets before adaptive sampling decides
+	 * whether it needs more
 	 */
-	public static final int MAX_DEPTH = 12;
+	public static final int ADAPTIVE_MIN_SAMPLES = 4;
 
 	//Size of image sub-blocks
 	protected static int SUB_WIDTH = 32;
 	protected static int SUB_HEIGHT = 32;
 
-	/**
-	 * Widget to draw the image spiral.
-	 */
-	private static final BlockSpiral spiral = new BlockSpiral();
-
 	/**
 	 * Useful little display window that shows rendering progress.
 	 * The window actually take a bit of time to render itself, so
 	 * you can turn it on or off by setting the DISPLAY flag at the
 	 * top of the file.
 	 */
-	private static QuickViewer viewer = null;
+	private QuickViewer viewer = null;
+
+	/**
+	 * The number of worker threads that render image blocks in parallel.
+	 */
+	protected int numThreads = Runtime.getRuntime().availableProcessors();
+	public void setNumThreads(int n) { numThreads = Math.max(1, n); }
+	public int getNumThreads() { return numThreads; }
+
+	/**
+	 * Progressive mode: instead of finishing every pixel block by block, render
+	 * the whole frame at 1 sample per pixel and keep adding passes until one of
+	 * the stop conditions below is met. The image and viewer are updated after
+	 * every pass.
+	 */
+	protected boolean progressive = false;
+	public void setProgressive(boolean progressive) { this.progressive = progressive; }
+	public boolean isProgressive() { return progressive; }
+
+	/** Progressive mode stops after this many seconds (0 = no limit). */
+	protected double timeBudget = 0;
+	public void setTimeBudget(double seconds) { timeBudget = seconds; progressive = true; }
+
+	/**
+	 * Progressive mode stops once every pixel has this many samples. If no
+	 * condition is set at all the scene's own samples per pixel are used.
+	 */
+	protected int targetSpp = 0;
+	public void setTargetSpp(int spp) { targetSpp = spp; progressive = true; }
+
+	/**
+	 * Progressive mode stops once the RMS relative standard error of the pixels
+	 * drops below this (0 = no limit), see AccumulationBuffer.getNoise(). It is
+	 * only checked from MIN_NOISE_PASSES passes on, since variance estimates from
+	 * fewer samples are too unreliable.
+	 */
+	protected double noiseThreshold = 0;
+	public static final int MIN_NOISE_PASSES = 4;
+	public void setNoiseThreshold(double noise) { noiseThreshold = noise; progressive = true; }
+
+	/** In progressive mode, write the current image to the output file at most this often, in seconds (0 = never). */
+	protected double snapshotInterval = 0;
+	public void setSnapshotInterval(double seconds) { snapshotInterval = seconds; }
+
+	/** If at least 0, overrides the adaptive sampling threshold of every scene, see Scene.setAdaptiveThreshold(). */
+	protected double adaptiveThreshold = -1;
+	public void setAdaptiveThreshold(double t) { adaptiveThreshold = t; }
+
+	/** If at least 0, overrides the adaptive sampling budget of every scene, see Scene.setAdaptiveBudget(). */
+	protected int adaptiveBudget = -1;
+	public void setAdaptiveBudget(int spp) { adaptiveBudget = spp; }
+
+	/** If set, overrides the cache directory of scenes that use a LinearBvh. */
+	protected String cacheDir = null;
+	public void setCacheDir(String dir) { cacheDir = dir; }
+
+	/**
+	 * The format images are written in: FORMAT_PNG for 8 bit sRGB, or FORMAT_EXR
+	 * for a tiled OpenEXR file with the linear floating point colors, written
+	 * block by block while the image is rendered.
+	 */
+	public static final String FORMAT_PNG = "png";
+	public static final String FORMAT_EXR = "exr";
+	protected String outputFormat = FORMAT_PNG;
+	public void setOutputFormat(String format) {
+		format = format.toLowerCase();
+		if (!format.equals(FORMAT_PNG) && !format.equals(FORMAT_EXR))
+			throw new IllegalArgumentException("Unknown output format: " + format);
+		outputFormat = format;
+	}
+	public String getOutputFormat() { return outputFormat; }
+
+	/**
+	 * Save the state of the render to <output file>.checkpoint this often, in
+	 * seconds (0 = never), and resume from that file if it was left behind by an
+	 * earlier render of the same scene with the same settings. See RenderCheckpoint.
+	 */
+	protected double checkpointInterval = 0;
+	public void setCheckpointInterval(double seconds) { checkpointInterval = seconds; }
+
+	/**
+	 * The number of scenes rendered at the same time, each with its share of the
+	 * numThreads render threads. Scenes share the resources they load from disk
+	 * through the ResourceCache either way.
+	 */
+	protected int batchSize = 1;
+	public void setBatchSize(int n) { batchSize = Math.max(1, n); }
+	public int getBatchSize() { return batchSize; }
+
+	/**
+	 * Render farm mode: if at least 0, scenes are not rendered here but by
+	 * RenderWorker processes that connect to this port (0 = any free port),
+	 * see RenderCoordinator. farmWorkers worker processes are started on this
+	 * machine, sharing the numThreads render threads. Workers render every block
+	 * once, so there is no progressive mode or checkpoint, and EXR files are
+	 * only written when the whole image is back.
+	 */
+	protected int farmPort = -1;
+	protected int farmWorkers = 0;
+	public void setFarmPort(int port) { farmPort = port; }
+	public void setFarmWorkers(int n) { farmWorkers = n; if (farmPort < 0) farmPort = 0; }
+
+	/** The file the scene being rendered is written to, without extension. */
+	private String outputFile = null;
+
+	/** The checkpoint of the render in progress, or null. */
+	private RenderCheckpoint checkpoint = null;
+
+	/** The EXR file that finished blocks are written to during a render, or null. */
+	private TiledEXRWriter tileOutput = null;
 
 	public static class ScenePath {
 		/**
@@ -118,6 +236,9 @@ public class RayTracer {
 		ArrayList<ScenePath> pathArgs = new ArrayList<>();
 		ArrayList<ScenePath> scenesToRender = new ArrayList<>();
 		String currentRoot = directory;
+		int threads = -1;
+		String coordinator = null;
+		RayTracer rayTracer = new RayTracer();
 
 		// Use All The Arguments
 		for(int i = 0;i < args.length;i++) {
@@ -131,6 +252,72 @@ public class RayTracer {
 				// Use The CWD
 				currentRoot = null;
 				break;
+			case "-t":
+				// Use A Different Number Of Render Threads
+				i++;
+				if(i < args.length) threads = Integer.parseInt(args[i]);
+				break;
+			case "-progressive":
+				// Render In Passes Until A Stop Condition Is Met
+				rayTracer.setProgressive(true);
+				break;
+			case "-time":
+				i++;
+				if(i < args.length) rayTracer.setTimeBudget(Double.parseDouble(args[i]));
+				break;
+			case "-spp":
+				i++;
+				if(i < args.length) rayTracer.setTargetSpp(Integer.parseInt(args[i]));
+				break;
+			case "-noise":
+				i++;
+				if(i < args.length) rayTracer.setNoiseThreshold(Double.parseDouble(args[i]));
+				break;
+			case "-adaptive":
+				i++;
+				if(i < args.length) rayTracer.setAdaptiveThreshold(Double.parseDouble(args[i]));
+				break;
+			case "-budget":
+				i++;
+				if(i < args.length) rayTracer.setAdaptiveBudget(Integer.parseInt(args[i]));
+				break;
+			case "-cache":
+				i++;
+				if(i < args.length) rayTracer.setCacheDir(args[i]);
+				break;
+			case "-snapshot":
+				i++;
+				if(i < args.length) rayTracer.setSnapshotInterval(Double.parseDouble(args[i]));
+				break;
+			case "-checkpoint":
+				i++;
+				if(i < args.length) rayTracer.setCheckpointInterval(Double.parseDouble(args[i]));
+				break;
+			case "-batch":
+				i++;
+				if(i < args.length) rayTracer.setBatchSize(Integer.parseInt(args[i]));
+				break;
+			case "-cachemem":
+				i++;
+				if(i < args.length) ResourceCache.getInstance().setBudget((long) (Double.parseDouble(args[i]) * 1048576));
+				break;
+			case "-serve":
+				i++;
+				if(i < args.length) rayTracer.setFarmPort(Integer.parseInt(args[i]));
+				break;
+			case "-workers":
+				i++;
+				if(i < args.length) rayTracer.setFarmWorkers(Integer.parseInt(args[i]));
+				break;
+			case "-worker":
+				// Render For A Coordinator Instead
+				i++;
+				if(i < args.length) coordinator = args[i];
+				break;
+			case "-format":
+				i++;
+				if(i < args.length) rayTracer.setOutputFormat(args[i]);
+				break;
 			default:
 				// This Must Be A File
 				pathArgs.add(new ScenePath(currentRoot, args[i]));
@@ -138,6 +325,23 @@ public class RayTracer {
 			}
 		}
 
+		if(coordinator != null) {
+			if(threads > 0) rayTracer.setNumThreads(threads);
+			int colon = coordinator.lastIndexOf(':');
+			try {
+				new RenderWorker(rayTracer, coordinator.substring(0, colon), Integer.parseInt(coordinator.substring(colon + 1))).run();
+			} catch (IOException e) {
+				System.out.println("Lost the render coordinator " + coordinator + ": " + e.getMessage());
+			}
+			return;
+		}
+
+		if(rayTracer.farmPort >= 0 && (rayTracer.progressive || rayTracer.checkpointInterval > 0)) {
+			// The Workers Render Every Block Once, So There Are No Passes To Repeat Or Resume
+			System.out.println("-progressive, -time, -spp, -noise and -checkpoint cannot be used with -serve or -workers");
+			return;
+		}
+
 		if(pathArgs.size() < 1) {
 			// Attempt To Render All The Scenes
 			pathArgs.add(new ScenePath(currentRoot, "."));
@@ -169,18 +373,49 @@ public class RayTracer {
 		}
 
 		System.out.println("Attempting To Render " + scenesToRender.size() + " Scene(s)");
-		RayTracer rayTracer = new RayTracer();
+		if(threads > 0) rayTracer.setNumThreads(threads);
 		rayTracer.run(scenesToRender);
 	}
 
 	public static void printUsage() {
-		System.out.println("Usage: java RayTracer [-p path] [directory1 directory2 ... | file1 file2 ...]");
+		System.out.println("Usage: java RayTracer [-t threads] [-progressive] [-time seconds] [-spp n] [-noise error] [-snapshot seconds]");
+		System.out.println("                      [-adaptive threshold] [-budget spp] [-cache dir] [-format png|exr]");
+		System.out.println("                      [-checkpoint seconds] [-batch n] [-cachemem megabytes]");
+		System.out.println("                      [-serve port] [-workers n] [-p path] [directory1 directory2 ... | file1 file2 ...]");
+		System.out.println("       java RayTracer -worker host:port [-t threads] [-cache dir]");
 		System.out.println("List each scene file you would like to render on the command line separated by spaces.");
 		System.out.println("You may also specify a directory, and all scene files in that directory will be rendered.");
 		System.out.println("By default, all files specified are prepended with a given path. Use the -p option to");
 		System.out.println("override this path. The path may be overriden multiple times or -pnull may be provided to set");
 		System.out.println("the path to the program's working directory. With no -p argument given, this path is: " + directory);
 		System.out.println("NB: the path is relative to the working directory of the application, which is normally the root of the CS4620 project.");
+		System.out.println("The -t option sets the number of render threads (default: one per available processor).");
+		System.out.println("-progressive renders the whole image in passes of one sample per pixel until the scene's");
+		System.out.println("samples per pixel are reached. -time, -spp and -noise also turn it on and stop it after a");
+		System.out.println("number of seconds, at a number of samples per pixel, or once the RMS relative error of");
+		System.out.println("the pixels is below the given value, whichever comes first. -snapshot writes the image so far");
+		System.out.println("to the output file every given number of seconds.");
+		System.out.println("-adaptive turns on adaptive sampling for every scene: pixels get more samples only while their");
+		System.out.println("relative error is above the threshold. -budget limits the average samples per pixel it spends");
+		System.out.println("over the whole image: blocks that converge early leave their unused samples to later blocks.");
+		System.out.println("-cache keeps built LinearBvh structures in the given directory and loads them from there when");
+		System.out.println("the scene's geometry and build options have not changed.");
+		System.out.println("-format sets the output file format: png (default) or exr, a tiled OpenEXR file with linear");
+		System.out.println("colors, and sample count and variance channels when they are known, which is written block by");
+		System.out.println("block as the render goes, so it is always up to date and -snapshot is not needed.");
+		System.out.println("-checkpoint saves the render state next to the output file every given number of seconds.");
+		System.out.println("Running the same scene with the same options again resumes from there, skipping the blocks or");
+		System.out.println("passes that were done. The checkpoint is deleted once the render completes.");
+		System.out.println("-batch renders up to n scenes at the same time, splitting the render threads between them.");
+		System.out.println("Meshes, textures and cubemaps are loaded once and shared by all scenes that use the same files;");
+		System.out.println("-cachemem sets how much memory they may take before the least recently used are dropped");
+		System.out.println("(default: a quarter of the maximum heap size).");
+		System.out.println("-serve renders the scenes on worker processes that connect to the given port (0 picks a free");
+		System.out.println("one), and -workers starts that many of them on this machine, sharing the -t threads. Workers");
+		System.out.println("are started with -worker and the coordinator's address; each loads the scene once and renders");
+		System.out.println("the blocks it is given. Blocks of workers that go away are rendered by the others. A scene");
+		System.out.println("fails once every worker failed to load or render it, or after a minute without workers. The");
+		System.out.println("farm cannot render progressively or save checkpoints, and writes EXR files once at the end.");
 	}
 
 	/**
@@ -191,89 +426,516 @@ public class RayTracer {
 	 * @param args
 	 */
 	public void run(ArrayList<ScenePath> args) {
-		Parser parser = new Parser();
-		for (ScenePath p : args) {
+		if (farmPort >= 0)
+			runFarm(args);
+		else if (batchSize > 1 && args.size() > 1)
+			runBatch(args);
+		else {
+			for (ScenePath p : args)
+				renderScene(p);
+		}
+		System.out.println(ResourceCache.getInstance().getStatistics());
+	}
+
+	/**
+	 * Render the scenes batchSize at a time. Every scene gets its own copy of
+	 * this RayTracer with an equal share of the render threads. A scene that
+	 * fails is reported and the others go on.
+	 *
+	 * @param args The scenes
+	 */
+	protected void runBatch(List<ScenePath> args) {
+		int scenes = Math.min(batchSize, args.size());
+		final int threadsPerScene = Math.max(1, numThreads / scenes);
+		System.out.println("Rendering " + scenes + " scenes at a time with " + threadsPerScene + " threads each");
+
+		ExecutorService batch = Executors.newFixedThreadPool(scenes);
+		ArrayList<Future<?>> results = new ArrayList<Future<?>>(args.size());
+		try {
+			for (final ScenePath p : args) {
+				results.add(batch.submit(new Runnable() {
+					@Override
+					public void run() {
+						RayTracer worker = copy();
+						worker.setNumThreads(threadsPerScene);
+						worker.renderScene(p);
+					}
+				}));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					results.get(i).get();
+				} catch (ExecutionException e) {
+					System.out.println("Could not render " + args.get(i).getFile() + ": " + e.getCause());
+					e.getCause().printStackTrace();
+				}
+			}
+		} catch (InterruptedException e) {
+			batch.shutdownNow();
+			Thread.currentThread().interrupt();
+		} finally {
+			batch.shutdown();
+		}
+	}
+
+	/**
+	 * Render the scenes one after the other on a farm of worker processes, see RenderCoordinator.
+	 *
+	 * @param args The scenes
+	 */
+	protected void runFarm(List<ScenePath> args) {
+		try (RenderCoordinator farm = new RenderCoordinator(this, farmPort)) {
+			if (farmWorkers > 0)
+				farm.startLocalWorkers(farmWorkers, Math.max(1, numThreads / farmWorkers));
+			for (ScenePath p : args) {
+				long startTime = System.currentTimeMillis();
+				Image image = farm.render(p);
+				if (image == null)
+					continue;
+				System.out.println("Done.  Total rendering time: "
+						+ ((System.currentTimeMillis() - startTime) / 1000.0) + " seconds");
+				writeImage(image, p.getFile());
+			}
+		} catch (IOException e) {
+			System.out.println("Could not start the render farm: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Parse, render and write out one scene.
+	 *
+	 * @param p The scene file
+	 */
+	public void renderScene(ScenePath p) {
+		Scene scene = loadScene(p);
+
+		// Render the scene, which already writes EXR files as it goes
+		outputFile = p.getFile();
+		boolean written = renderImage(scene);
+
+		// Write the image out
+		if (!written)
+			writeImage(scene.getImage(), outputFile);
+	}
+
+	/**
+	 * Parse a scene, apply the overrides of this RayTracer to it and build it.
+	 *
+	 * @param p The scene file
+	 * @return The scene, ready to render
+	 */
+	public Scene loadScene(ScenePath p) {
+		// Files are resolved against the global workspace while parsing, so one scene is parsed at a time
+		Scene scene;
+		synchronized (RayTracer.class) {
 			// Set The Current Workspace For The Scene
 			sceneWorkspace = p;
 
 			// Parse the input file
-			Scene scene = (Scene) parser.parse(sceneWorkspace.getFile(), Scene.class);
+			scene = (Scene) new Parser().parse(p.getFile(), Scene.class);
+		}
 
-			// Propagate transformation matrix through the tree hierarchy
-			scene.setTransform();
+		if (adaptiveThreshold >= 0) scene.setAdaptiveThreshold(adaptiveThreshold);
+		if (adaptiveBudget >= 0) scene.setAdaptiveBudget(adaptiveBudget);
+		if (cacheDir != null && scene.getAccelStruct() instanceof LinearBvh)
+			((LinearBvh) scene.getAccelStruct()).setCacheDir(cacheDir);
 
-			// Create the acceleration structure.
-			ArrayList<Surface> renderableSurfaces = new ArrayList<Surface>();
-			List<Surface> surfaces = scene.getSurfaces();
-			for (Iterator<Surface> iter = surfaces.iterator(); iter.hasNext();) {
-				iter.next().appendRenderableSurfaces(renderableSurfaces);
-			}
-			Surface surfaceArray[] = new Surface[renderableSurfaces.size()];
-			renderableSurfaces.toArray(surfaceArray);
-			scene.getAccelStruct().build(surfaceArray);
+		buildScene(scene);
+		return scene;
+	}
 
-			// Render the scene
-			renderImage(scene);
+	/**
+	 * @return A RayTracer with the same settings, for rendering another scene at the same time
+	 */
+	protected RayTracer copy() {
+		try {
+			return (RayTracer) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new Error(e);
+		}
+	}
 
-			// Write the image out
-			if (writeHDR)
-				scene.getImage().writeHDR(sceneWorkspace.getFile() + ".exr");
-			else
-				scene.getImage().write(sceneWorkspace.getFile() + ".png");
+	/**
+	 * Prepare a parsed scene for rendering: propagate the transformations through
+	 * the surface hierarchy and build the acceleration structure. Mesh triangles
+	 * go to a compact world space store, other surfaces are kept as they are.
+	 * Shared mesh data gets its own structures, cached in the same directory
+	 * as the scene's if that is a LinearBvh with a cache.
+	 * To render the scene again after changing transformations, call Scene.refit().
+	 */
+	public static void buildScene(Scene scene) {
+		// Propagate transformation matrix through the tree hierarchy
+		scene.setTransform();
+
+		// Meshes that share their data are traced as instances of one set of triangles
+		long buildStart = System.currentTimeMillis();
+		String cacheDir = scene.getAccelStruct() instanceof LinearBvh ? ((LinearBvh) scene.getAccelStruct()).getCacheDir() : null;
+		int instanced = MeshInstance.createInstances(scene.getSurfaces(), cacheDir);
+		if (instanced > 0)
+			System.out.println(instanced + " meshes are instanced");
+
+		// Create the acceleration structure
+		ArrayList<Surface> renderableSurfaces = new ArrayList<Surface>();
+		TriangleStore triangles = new TriangleStore();
+		List<Surface> surfaces = scene.getSurfaces();
+		for (Iterator<Surface> iter = surfaces.iterator(); iter.hasNext();) {
+			iter.next().appendRenderableSurfaces(renderableSurfaces, triangles);
 		}
+		Surface surfaceArray[] = new Surface[renderableSurfaces.size()];
+		renderableSurfaces.toArray(surfaceArray);
+		scene.getAccelStruct().build(new PrimitiveSet(triangles, surfaceArray));
+		System.out.println("Acceleration structure built in " + (System.currentTimeMillis() - buildStart) / 1000.0 + " seconds");
+		if (scene.getAccelStruct().getStats() != null)
+			System.out.println(scene.getAccelStruct().getStats());
+	}
+
+	/**
+	 * Write an image to fileName with the extension of the current output format.
+	 */
+	protected void writeImage(Image image, String fileName) {
+		if (outputFormat.equals(FORMAT_EXR))
+			image.writeHDR(fileName + ".exr");
+		else
+			image.write(fileName + ".png");
 	}
 
 	/**
-	 * The renderImage method renders the entire scene.
+	 * The renderImage method renders the entire scene. The image is cut into
+	 * SUB_WIDTH x SUB_HEIGHT blocks which are handed to a pool of numThreads
+	 * workers in spiral order, so the center of the image still finishes first.
+	 * In progressive mode this is repeated for every pass.
+	 * With EXR output and an output file set, every finished block is also
+	 * written to the output file right away.
 	 *
 	 * @param scene The scene to be rendered
+	 * @return true if the image has been written to the output file
 	 */
-	public void renderImage(Scene scene) {
+	public boolean renderImage(final Scene scene) {
 
 		// Get the output image
-		Image image = scene.getImage();
+		final Image image = scene.getImage();
 
 		// Setup viewer
-		if(DISPLAY)
+		if(DISPLAY && !GraphicsEnvironment.isHeadless())
 			viewer = QuickViewer.createImageViewer(image);
+		else
+			viewer = null;
 
 		System.err.print("Starting render...");
 
-		// Set the camera aspect ratio to match output image
-		int width = image.getWidth();
-		int height = image.getHeight();
+		// Derived camera values must be ready before workers start generating rays
+		scene.getCamera().initView();
 
-		//Setup the sub-block spiral
-		spiral.initSubblockSpiral(width, height);
+		// Renderers that take different numbers of samples per pixel report them
+		scene.resetSpareSamples();
+		if (progressive || scene.getAdaptiveThreshold() > 0) {
+			image.enableSampleCounts();
+			image.enableVariances();
+		}
+
+		// Stream finished blocks to the output file
+		tileOutput = null;
+		if (outputFormat.equals(FORMAT_EXR) && outputFile != null) {
+			String fileName = outputFile + ".exr";
+			try {
+				tileOutput = new TiledEXRWriter(fileName, image.getWidth(), image.getHeight(),
+						SUB_WIDTH, SUB_HEIGHT, image.hasSampleCounts(), image.hasVariances());
+			} catch (IOException e) {
+				System.out.println("Error occured while attempting to write file: " + fileName
+						+ ", it will be written once the render is done");
+				e.printStackTrace();
+			}
+		}
+
+		// Save the render state every so often, and pick up a saved one
+		checkpoint = null;
+		if (checkpointInterval > 0 && outputFile != null) {
+			String settings = "progressive " + progressive + ", adaptive " + scene.getAdaptiveThreshold()
+					+ " " + scene.getAdaptiveBudget();
+			try {
+				checkpoint = new RenderCheckpoint(outputFile + ".checkpoint",
+						RenderCheckpoint.key(outputFile, settings), checkpointInterval, image);
+				if (!progressive) {
+					// The spare samples of the finished blocks are part of the render state
+					if (scene.getAdaptiveThreshold() > 0)
+						checkpoint.setShare(scene.getAdaptiveShare());
+					if (checkpoint.resumeBlocks())
+						scene.addSpareSamples(checkpoint.getSpareSamples());
+				}
+			} catch (IOException e) {
+				System.out.println("Could not hash " + outputFile + ", the render will not be checkpointed: " + e.getMessage());
+			}
+		}
 
 		// Timing counters
 		long startTime = System.currentTimeMillis();
 
-		//Loop over all blocks and render
-		int offsetX, offsetY, sizeX, sizeY;
-		for(int i = 0; i < spiral.totalSubblocks; i++) {
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			if (progressive) {
+				renderProgressive(scene, image, pool);
+			}
+			else {
+				long rays = renderBlocks(image, pool, true, checkpoint, new BlockTask() {
+					@Override
+					public long render(int offsetX, int offsetY, int sizeX, int sizeY) {
+						return renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY);
+					}
+				});
+				System.out.println("Average samples per pixel: "
+						+ (double) rays / (image.getWidth() * image.getHeight()));
+			}
+		} finally {
+			pool.shutdown();
+			closeTileOutput();
+		}
+
+		// The render is complete, so a checkpoint is of no more use
+		if (checkpoint != null)
+			checkpoint.delete();
+
+		// Output time
+		long totalTime = (System.currentTimeMillis() - startTime);
+		System.out.println("Done.  Total rendering time: "
+				+ (totalTime / 1000.0) + " seconds");
+		if (tileOutput == null)
+			return false;
+		System.out.printf("  Wrote RGB32F file %s%n", outputFile + ".exr");
+		return true;
+	}
+
+	private void closeTileOutput() {
+		if (tileOutput == null)
+			return;
+		try {
+			tileOutput.close();
+		} catch (IOException e) {
+			System.out.println("Error occured while attempting to write file: " + outputFile + ".exr");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Work done for one block of the image. Called concurrently for different blocks.
+	 * Returns the number of samples taken.
+	 */
+	protected interface BlockTask {
+		long render(int offsetX, int offsetY, int sizeX, int sizeY);
+	}
+
+	/**
+	 * Run task on every block of image using pool, and return once all of them are done.
+	 * Blocks are queued in spiral order; the pool takes them first-come first-served.
+	 * Each finished block is shown in the viewer and written to the EXR output, if any.
+	 * With a checkpoint, blocks it already has are not rendered again, and every
+	 * newly finished block is added to it.
+	 *
+	 * @param image The image being rendered
+	 * @param pool The worker threads
+	 * @param report Print a line for every finished block
+	 * @param blocks The checkpoint of the finished blocks, or null
+	 * @param task The work for each block
+	 * @return The number of samples taken in all blocks, including those of the checkpoint
+	 */
+	protected long renderBlocks(final Image image, ExecutorService pool, final boolean report,
+			final RenderCheckpoint blocks, final BlockTask task) {
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+
+		//Setup the sub-block spiral
+		BlockSpiral spiral = new BlockSpiral();
+		spiral.initSubblockSpiral(width, height);
+		final int totalBlocks = spiral.totalSubblocks;
 
-			//Increment the block counter
+		final AtomicInteger finished = new AtomicInteger();
+		final AtomicLong samples = new AtomicLong(blocks != null ? blocks.getSamples() : 0);
+		ArrayList<Future<?>> results = new ArrayList<Future<?>>(totalBlocks);
+		for(int i = 0; i < totalBlocks; i++) {
 			spiral.incrementSublockSpiral();
-			offsetX = spiral.curSubX*SUB_WIDTH;
-			offsetY = spiral.curSubY*SUB_HEIGHT;
-			sizeX = Math.min(width-offsetX,SUB_WIDTH);
-			sizeY = Math.min(height-offsetY,SUB_HEIGHT);
+			final int offsetX = spiral.curSubX*SUB_WIDTH;
+			final int offsetY = spiral.curSubY*SUB_HEIGHT;
+			final int sizeX = Math.min(width-offsetX,SUB_WIDTH);
+			final int sizeY = Math.min(height-offsetY,SUB_HEIGHT);
+			if(blocks != null && blocks.isFinished(offsetX, offsetY)) {
+				// Restored from the checkpoint, only the outputs need it
+				blockDone(image, offsetX, offsetY, sizeX, sizeY);
+				finished.incrementAndGet();
+				continue;
+			}
+			results.add(pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					long n = task.render(offsetX, offsetY, sizeX, sizeY);
+					samples.addAndGet(n);
+					blockDone(image, offsetX, offsetY, sizeX, sizeY);
+					if(blocks != null)
+						blocks.blockFinished(offsetX, offsetY, n);
+
+					int count = finished.incrementAndGet();
+					if(report)
+						System.out.println("finished " + count + "/" + totalBlocks + " blocks");
+				}
+			}));
+		}
 
-			renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY);
+		// Waiting on every block also makes all of the workers' pixel writes visible here
+		try {
+			for(Future<?> f : results)
+				f.get();
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Render interrupted", e);
+		} catch (ExecutionException e) {
+			pool.shutdownNow();
+			throw new RuntimeException("Render failed", e.getCause());
+		}
+		return samples.get();
+	}
 
-			//Update display
-			if(DISPLAY)
-				viewer.setImage(image, offsetX, offsetY, offsetX+sizeX, offsetY+sizeY);
+	/**
+	 * Write a finished block to the EXR output, if any, and show it in the viewer.
+	 */
+	private void blockDone(Image image, int offsetX, int offsetY, int sizeX, int sizeY) {
+		if(tileOutput != null) {
+			try {
+				tileOutput.writeTile(image, offsetX, offsetY, sizeX, sizeY);
+			} catch (IOException e) {
+				throw new RuntimeException("Could not write block to " + outputFile + ".exr", e);
+			}
+		}
 
-			System.out.println("finished " + (i+1) + "/" + spiral.totalSubblocks + " blocks");
+		//Update display
+		if(viewer != null)
+			viewer.setImage(image, offsetX, offsetY, offsetX+sizeX, offsetY+sizeY);
+	}
 
+	/**
+	 * Render the scene in passes of one sample per pixel into an accumulation
+	 * buffer until a stop condition is met. After every pass the current estimate
+	 * is written to image, and to the output file if a snapshot is due.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param image The image to write the result to
+	 * @param pool The worker threads
+	 */
+	protected void renderProgressive(final Scene scene, final Image image, ExecutorService pool) {
+		final AccumulationBuffer accum = new AccumulationBuffer(image.getWidth(), image.getHeight());
+		final double exposure = scene.getExposure();
+
+		// Without any stop condition render as many samples as the scene asks for
+		int maxSpp = targetSpp > 0 ? targetSpp : Integer.MAX_VALUE;
+		if (targetSpp <= 0 && timeBudget <= 0 && noiseThreshold <= 0)
+			maxSpp = scene.getSamples() * scene.getSamples();
+
+		// A resumed render continues with the next pass, and the time already spent counts
+		int firstPass = 0;
+		long start = System.currentTimeMillis();
+		if (checkpoint != null) {
+			firstPass = checkpoint.resumeProgressive(accum);
+			start -= checkpoint.getElapsed();
+			accum.resolve(image, exposure);
 		}
+		final long deadline = timeBudget > 0 ? start + (long) (timeBudget * 1000) : Long.MAX_VALUE;
+		long lastSnapshot = System.currentTimeMillis();
+
+		for (int pass = firstPass; pass < maxSpp; pass++) {
+			final int p = pass;
+			renderBlocks(image, pool, false, null, new BlockTask() {
+				@Override
+				public long render(int offsetX, int offsetY, int sizeX, int sizeY) {
+					// Past the deadline the rest of the pass is skipped, leaving those pixels a sample short
+					long n = 0;
+					if (System.currentTimeMillis() < deadline) {
+						renderPass(scene, accum, p, offsetX, offsetY, sizeX, sizeY);
+						n = sizeX * sizeY;
+					}
+					accum.resolve(image, exposure, offsetX, offsetY, sizeX, sizeY);
+					return n;
+				}
+			});
 
-		// Output time
-		long totalTime = (System.currentTimeMillis() - startTime);
-		System.out.println("Done.  Total rendering time: "
-				+ (totalTime / 1000.0) + " seconds");
+			long now = System.currentTimeMillis();
+			double noise = noiseThreshold > 0 && pass + 1 >= MIN_NOISE_PASSES ? accum.getNoise() : Double.NaN;
+			System.out.println("pass " + (pass + 1) + ": " + ((now - start) / 1000.0) + " seconds"
+					+ (Double.isNaN(noise) ? "" : ", noise " + noise));
+
+			if (now >= deadline || noise <= noiseThreshold)
+				break;
+			if (checkpoint != null)
+				checkpoint.passFinished(accum, pass + 1, now - start);
+			if (snapshotInterval > 0 && outputFile != null && tileOutput == null && now - lastSnapshot >= snapshotInterval * 1000) {
+				writeImage(image, outputFile);
+				lastSnapshot = now;
+			}
+		}
+		System.out.println("Rendered at least " + accum.getMinSampleCount() + " samples per pixel");
+	}
+
+	/**
+	 * Add one sample per pixel of one block of the image to accum. The sample
+	 * position within the pixel is the pixel center in pass 0, and after that
+	 * follows a Halton sequence, offset by a different random amount in each
+	 * pixel so that neighboring pixels don't share the same pattern.
+	 *
+	 * @param scene The scene data
+	 * @param accum The accumulation buffer
+	 * @param pass The pass number, counting from 0
+	 * @param offsetX the startingX value of the block
+	 * @param offsetY the startingY value of the block
+	 * @param sizeX the width of the block
+	 * @param sizeY the height of the block
+	 */
+	public static void renderPass(Scene scene, AccumulationBuffer accum, int pass, int offsetX, int offsetY, int sizeX, int sizeY) {
+		RenderContext ctx = RenderContext.current();
+		RenderContext.Frame f = ctx.push();
+		Ray ray = f.ray;
+		Colord rayColor = f.c[0];
+
+		int width = accum.getWidth();
+		int height = accum.getHeight();
+		Camera cam = scene.getCamera();
+
+		double hx = radicalInverse(pass, 2);
+		double hy = radicalInverse(pass, 3);
+		for(int x = offsetX; x < (offsetX + sizeX); x++) {
+			for(int y = offsetY; y < (offsetY + sizeY); y++) {
+				double u = 0.5, v = 0.5;
+				if (pass > 0) {
+					int h = hash(x, y);
+					u = hx + (h & 0xFFFF) / 65536.0;
+					v = hy + (h >>> 16) / 65536.0;
+					if (u >= 1) u -= 1;
+					if (v >= 1) v -= 1;
+				}
+				cam.getRay(ray, (x + u)/width, (y + v)/height);
+				shadeRay(rayColor, scene, ray, 1, ctx);
+				accum.addSample(x, y, rayColor);
+			}
+		}
+		ctx.pop();
+	}
+
+	/**
+	 * @return i with its digits in the given base mirrored around the radix point,
+	 * the i-th element of a Halton sequence
+	 */
+	static double radicalInverse(int i, int base) {
+		double result = 0, scale = 1.0 / base;
+		for (; i > 0; i /= base, scale /= base)
+			result += (i % base) * scale;
+		return result;
+	}
+
+	/**
+	 * @return well mixed bits derived from a pixel position
+	 */
+	static int hash(int x, int y) {
+		int h = x * 0x27d4eb2d ^ y * 0x165667b1;
+		h ^= h >>> 15;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
 	}
 
 
@@ -285,30 +947,46 @@ public class RayTracer {
 	 * @param ray the ray to shade
 	 */
 	public static void shadeRay(Colord outColor, Scene scene, Ray ray, int depth) {
+		shadeRay(outColor, scene, ray, depth, RenderContext.current());
+	}
+
+	/**
+	 * This method returns the color along a single ray in outColor, taking all
+	 * temporaries from the given context.
+	 *
+	 * @param outColor output space
+	 * @param scene the scene
+	 * @param ray the ray to shade
+	 * @param ctx the scratch space of the calling thread
+	 */
+	public static void shadeRay(Colord outColor, Scene scene, Ray ray, int depth, RenderContext ctx) {
 
 		outColor.setZero();
 
 		if(depth > MAX_DEPTH)
 			return;
 
-		IntersectionRecord intersectionRecord = new IntersectionRecord();
+		RenderContext.Frame f = ctx.push();
+		IntersectionRecord intersectionRecord = f.record;
 
-		if (!scene.getFirstIntersection(intersectionRecord, ray)) {
+		if (!scene.getFirstIntersection(intersectionRecord, ray, ctx)) {
 			if(scene.cubeMap != null)
 				scene.cubeMap.evaluate(ray.direction, outColor);
 			else
 				outColor.set(scene.getBackColor());
 
+			ctx.pop();
 			return;
 		}
 
 		Shader shader = intersectionRecord.surface.getShader();
-		shader.shade(outColor, scene, ray, intersectionRecord, depth);
-
+		shader.shade(outColor, scene, ray, intersectionRecord, depth, ctx);
+		ctx.pop();
 	}
 
 	/**
-	 * Render one block of the output image.
+	 * Render one block of the output image. Blocks never overlap, so any number
+	 * of blocks of the same image may be rendered concurrently.
 	 *
 	 * @param scene The scene data
 	 * @param outImage the output image (write the output pixels here)
@@ -316,14 +994,20 @@ public class RayTracer {
 	 * @param offsetY the startingY value of the block
 	 * @param sizeX the width of the block
 	 * @param sizeY the height of the block
+	 * @return the number of camera rays traced
 	 */
-	public static void renderBlock(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
+	public static long renderBlock(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
+
+		if (scene.getAdaptiveThreshold() > 0)
+			return renderBlockAdaptive(scene, outImage, offsetX, offsetY, sizeX, sizeY);
 
 
 		// Do some basic setup
-		Ray ray = new Ray();
-		Colord pixelColor = new Colord();
-		Colord rayColor = new Colord();
+		RenderContext ctx = RenderContext.current();
+		RenderContext.Frame f = ctx.push();
+		Ray ray = f.ray;
+		Colord pixelColor = f.c[0];
+		Colord rayColor = f.c[1];
 
 		// Set the camera aspect ratio to match output image
 		int width = outImage.getWidth();
@@ -349,7 +1033,7 @@ public class RayTracer {
 					for(int q = 0; q < samples; q++){
 						
 						cam.getRay(ray, (x + ((p + 0.5)/samples))/width, (y + ((q + 0.5)/samples))/height);
-						shadeRay(rayColor, scene, ray, 1);
+						shadeRay(rayColor, scene, ray, 1, ctx);
 						pixelColor.add(rayColor);
 					}
 				}
@@ -369,5 +1053,143 @@ public class RayTracer {
 
 			}
 		}
+		ctx.pop();
+		return (long) sizeX * sizeY * samples * samples;
+	}
+
+	/**
+	 * Render one block of the output image with adaptive sampling. Every pixel
+	 * first gets a few samples; then, in rounds, the pixels whose relative error
+	 * is still above the scene's adaptive threshold have their sample count
+	 * doubled, worst first, until they all converge, reach samples^2 or the
+	 * sample budget is used up. Sample positions follow a Halton sequence offset
+	 * differently in each pixel, like progressive passes.
+	 * 
+	 * The budget holds for the whole image: every block gets its share by pixel
+	 * count, takes the samples blocks finished before it left unused once its own
+	 * share runs out, and leaves what it does not use to the blocks after it.
+	 * 
+	 * A few samples can all land on the same side of an edge and agree perfectly,
+	 * so the error of a pixel is also estimated from the luminance contrast to its
+	 * neighbors in the block, divided by the square root of its sample count.
+	 *
+	 * @param scene The scene data
+	 * @param outImage the output image (write the output pixels here)
+	 * @param offsetX the startingX value of the block
+	 * @param offsetY the startingY value of the block
+	 * @param sizeX the width of the block
+	 * @param sizeY the height of the block
+	 * @return the number of camera rays traced
+	 */
+	public static long renderBlockAdaptive(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
+		RenderContext ctx = RenderContext.current();
+		RenderContext.Frame f = ctx.push();
+		Ray ray = f.ray;
+		Colord rayColor = f.c[0];
+
+		int width = outImage.getWidth();
+		int height = outImage.getHeight();
+		Camera cam = scene.getCamera();
+		double threshold = scene.getAdaptiveThreshold();
+
+		int maxSpp = scene.getSamples() * scene.getSamples();
+		int minSpp = Math.min(ADAPTIVE_MIN_SAMPLES, maxSpp);
+		int pixels = sizeX * sizeY;
+		long remaining = (long) pixels * scene.getAdaptiveShare();
+
+		// Per-pixel sums of color and squared luminance, and sample counts
+		double[] sum = new double[3 * pixels];
+		double[] sumSq = new double[pixels];
+		int[] count = new int[pixels];
+		double[] mean = new double[pixels];
+		long[] worst = new long[pixels];
+
+		int add = minSpp;
+		int candidates = pixels;
+		for (int k = 0; k < pixels; k++)
+			worst[k] = k;
+		while (candidates > 0) {
+			// Top up the block's share with spare samples if this round needs more
+			long need = 0;
+			for (int c = 0; c < candidates; c++)
+				need += Math.min(add, maxSpp - count[(int) worst[c]]);
+			if (need > remaining)
+				remaining += scene.takeSpareSamples(need - remaining);
+			if (remaining <= 0)
+				break;
+
+			// Give more samples to the noisiest candidates first
+			for (int c = 0; c < candidates && remaining > 0; c++) {
+				int k = (int) worst[c];
+				int x = offsetX + k % sizeX, y = offsetY + k / sizeX;
+				int h = hash(x, y);
+				double ru = (h & 0xFFFF) / 65536.0, rv = (h >>> 16) / 65536.0;
+				int n = (int) Math.min(Math.min(add, maxSpp - count[k]), remaining);
+				for (int s = count[k]; s < count[k] + n; s++) {
+					double u = radicalInverse(s, 2) + ru, v = radicalInverse(s, 3) + rv;
+					if (u >= 1) u -= 1;
+					if (v >= 1) v -= 1;
+					cam.getRay(ray, (x + u)/width, (y + v)/height);
+					shadeRay(rayColor, scene, ray, 1, ctx);
+					sum[3*k] += rayColor.x;
+					sum[3*k+1] += rayColor.y;
+					sum[3*k+2] += rayColor.z;
+					double l = AccumulationBuffer.luminance(rayColor.x, rayColor.y, rayColor.z);
+					sumSq[k] += l * l;
+				}
+				count[k] += n;
+				remaining -= n;
+			}
+
+			// Collect the pixels that are still too noisy, sorted by decreasing error
+			for (int k = 0; k < pixels; k++)
+				mean[k] = count[k] == 0 ? 0 : AccumulationBuffer.luminance(sum[3*k], sum[3*k+1], sum[3*k+2]) / count[k];
+			candidates = 0;
+			for (int k = 0; k < pixels; k++) {
+				int n = count[k];
+				if (n >= maxSpp || n < 2) continue;
+				double m = mean[k];
+				double variance = Math.max(0, (sumSq[k] / n - m * m) * n / (n - 1));
+				int x = k % sizeX, y = k / sizeX;
+				double contrast = 0;
+				if (x > 0) contrast = Math.max(contrast, Math.abs(m - mean[k-1]));
+				if (x < sizeX - 1) contrast = Math.max(contrast, Math.abs(m - mean[k+1]));
+				if (y > 0) contrast = Math.max(contrast, Math.abs(m - mean[k-sizeX]));
+				if (y < sizeY - 1) contrast = Math.max(contrast, Math.abs(m - mean[k+sizeX]));
+				double error = Math.max(Math.sqrt(variance), contrast) / Math.sqrt(n) / Math.max(m, AccumulationBuffer.NOISE_FLOOR);
+				if (error > threshold)
+					worst[candidates++] = ((long) (Integer.MAX_VALUE - Float.floatToIntBits((float) error)) << 32) | k;
+			}
+			Arrays.sort(worst, 0, candidates);
+			for (int c = 0; c < candidates; c++)
+				worst[c] &= 0xFFFFFFFFL;
+			add = 0;
+			for (int c = 0; c < candidates; c++)
+				add = Math.max(add, count[(int) worst[c]]);
+		}
+		scene.addSpareSamples(remaining);
+
+		long rays = 0;
+		double exposure = scene.getExposure();
+		float[] rgb = new float[3 * pixels];
+		float[] variances = new float[pixels];
+		for (int k = 0; k < pixels; k++) {
+			int n = Math.max(1, count[k]);
+			rayColor.set(sum[3*k] / n, sum[3*k+1] / n, sum[3*k+2] / n);
+			rayColor.mul(exposure);
+			rgb[3*k] = (float) rayColor.x;
+			rgb[3*k+1] = (float) rayColor.y;
+			rgb[3*k+2] = (float) rayColor.z;
+			if (count[k] >= 2) {
+				double m = mean[k];
+				variances[k] = (float) (Math.max(0, (sumSq[k] / n - m * m) * n / (n - 1)) / n * exposure * exposure);
+			}
+			rays += count[k];
+		}
+		outImage.setTile(rgb, offsetX, offsetY, sizeX, sizeY);
+		outImage.setTileStatistics(count, variances, offsetX, offsetY, sizeX, sizeY);
+		ctx.pop();
+		return rays;
+
 	}
 }
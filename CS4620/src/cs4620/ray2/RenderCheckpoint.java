@@ -0,0 +1,435 @@
+package cs4620.ray2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Saves the state of a long render to a side file every so often, so that a
+ * render that is stopped halfway (a crash, a preempted machine) can be resumed
+ * instead of started over.
+ *
+ * When blocks are rendered one after the other, the checkpoint holds every
+ * finished block of the image, with its sample counts and variances if the
+ * image records them, and resuming skips those blocks. In progressive mode it
+ * holds the accumulation buffer after the last complete pass, with the number
+ * of passes and the time spent so far. Sample positions only depend on the
+ * pixel and the pass number, so there is no random number generator state to
+ * save: a resumed render takes exactly the samples the original one would have.
+ *
+ * The exception is adaptive sampling with a budget, where blocks spend the
+ * samples that blocks finished before them left unused. Which block gets them
+ * depends on the order blocks finish in, which varies between runs anyway. The
+ * checkpoint keeps what the finished blocks left, so a resumed render spends
+ * the same budget, though not necessarily on the same pixels.
+ *
+ * A checkpoint is only used for the scene it was made for. It is tagged with
+ * a hash of the scene file and of the render settings that change the result,
+ * and is ignored if those differ. The file is written under another name and
+ * then renamed over the old one, so a checkpoint is never seen half written.
+ * It is written by a thread that finished a block, but outside of the lock the
+ * other threads need to report theirs.
+ */
+public class RenderCheckpoint {
+
+	private static final int MAGIC = 0x52434b50;
+	private static final int VERSION = 2;
+
+	private static final byte MODE_BLOCKS = 0;
+	private static final byte MODE_PROGRESSIVE = 1;
+
+	private final File file;
+	private final byte[] key;
+	private final long interval;
+	private long lastWrite;
+	private boolean writing = false;
+
+	/** The image being rendered, and which of its blocks are done */
+	private final Image image;
+	private final int blocksX, blocksY;
+	private final boolean[] finished;
+	private int finishedCount;
+	private long samples;
+
+	/** The samples per pixel a block may spend of its own, and what finished blocks left of theirs */
+	private long share;
+	private long spare;
+
+	/** Progressive state restored by resumeProgressive() */
+	private int passes;
+	private long elapsed;
+
+	/**
+	 * @param fileName the checkpoint file
+	 * @param key identifies the scene and settings, see key()
+	 * @param interval the checkpoint is written at most this often, in seconds
+	 * @param image the image being rendered
+	 */
+	public RenderCheckpoint(String fileName, byte[] key, double interval, Image image) {
+		this.file = new File(fileName);
+		this.key = key;
+		this.interval = (long) (interval * 1000);
+		this.image = image;
+		blocksX = (image.getWidth() + RayTracer.SUB_WIDTH - 1) / RayTracer.SUB_WIDTH;
+		blocksY = (image.getHeight() + RayTracer.SUB_HEIGHT - 1) / RayTracer.SUB_HEIGHT;
+		finished = new boolean[blocksX * blocksY];
+		lastWrite = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return A digest of the contents of the scene file and of settings, which
+	 * should describe everything else the rendered image depends on
+	 */
+	public static byte[] key(String sceneFile, String settings) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error("SHA-256 is not available", e);
+		}
+		digest.update(Files.readAllBytes(new File(sceneFile).toPath()));
+		digest.update(settings.getBytes("UTF-8"));
+		return digest.digest();
+	}
+
+	/**
+	 * Load the finished blocks of a block by block render into the image.
+	 * @return true if a checkpoint for this render was found and loaded
+	 */
+	public boolean resumeBlocks() {
+		try (DataInputStream in = open(MODE_BLOCKS)) {
+			if (in == null)
+				return false;
+			long total = in.readLong();
+			long totalSpare = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				int block = in.readInt();
+				if (block < 0 || block >= finished.length)
+					throw new IOException("bad block " + block);
+				readBlock(in, block);
+				if (!finished[block])
+					finishedCount++;
+				finished[block] = true;
+			}
+			samples = total;
+			spare = totalSpare;
+			System.out.println("Resuming from " + file.getPath() + ": " + finishedCount + "/" + finished.length + " blocks done");
+			return true;
+		} catch (IOException e) {
+			System.out.println("Could not read checkpoint " + file.getPath() + ": " + e.getMessage());
+			reset();
+			return false;
+		}
+	}
+
+	/**
+	 * Load the state of a progressive render into accum.
+	 * @return the number of complete passes in the checkpoint, 0 if there is none
+	 */
+	public int resumeProgressive(AccumulationBuffer accum) {
+		try (DataInputStream in = open(MODE_PROGRESSIVE)) {
+			if (in == null)
+				return 0;
+			int p = in.readInt();
+			long t = in.readLong();
+			accum.read(in);
+			passes = p;
+			elapsed = t;
+			System.out.println("Resuming from " + file.getPath() + ": " + passes + " passes done");
+			return passes;
+		} catch (IOException e) {
+			System.out.println("Could not read checkpoint " + file.getPath() + ": " + e.getMessage());
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the render time in milliseconds already spent in the resumed progressive render
+	 */
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	/**
+	 * @return the number of samples taken in the blocks loaded by resumeBlocks()
+	 */
+	public synchronized long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return the samples the blocks loaded by resumeBlocks() left unused of their
+	 * share, see setShare()
+	 */
+	public synchronized long getSpareSamples() {
+		return spare;
+	}
+
+	/**
+	 * With adaptive sampling, set the samples per pixel each block may spend of
+	 * its own. What a finished block leaves of its share goes to the pool other
+	 * blocks draw from, and the checkpoint keeps the total of it.
+	 */
+	public synchronized void setShare(long samplesPerPixel) {
+		share = samplesPerPixel;
+	}
+
+	/**
+	 * @return true if the block starting at (offsetX, offsetY) was loaded by resumeBlocks()
+	 */
+	public synchronized boolean isFinished(int offsetX, int offsetY) {
+		return finished[blockIndex(offsetX, offsetY)];
+	}
+
+	/**
+	 * Record that the block starting at (offsetX, offsetY) is done, and write the
+	 * checkpoint if it is due. Called by the thread that rendered the block.
+	 * @param blockSamples the number of samples taken in the block
+	 */
+	public void blockFinished(int offsetX, int offsetY, long blockSamples) {
+		// Only take a snapshot under the lock, writing it can take a while
+		boolean[] done;
+		int count;
+		long total, totalSpare;
+		synchronized (this) {
+			int block = blockIndex(offsetX, offsetY);
+			if (!finished[block])
+				finishedCount++;
+			finished[block] = true;
+			samples += blockSamples;
+			if (share > 0)
+				spare += share * blockPixels(block) - blockSamples;
+			if (writing || !isDue())
+				return;
+			writing = true;
+			done = finished.clone();
+			count = finishedCount;
+			total = samples;
+			totalSpare = spare;
+		}
+
+		try {
+			DataOutputStream out = create(MODE_BLOCKS);
+			if (out == null)
+				return;
+			try {
+				out.writeLong(total);
+				out.writeLong(totalSpare);
+				out.writeInt(count);
+				for (int b = 0; b < done.length; b++) {
+					if (!done[b])
+						continue;
+					out.writeInt(b);
+					writeBlock(out, b);
+				}
+				commit(out);
+			} catch (IOException e) {
+				abort(out, e);
+			}
+		} finally {
+			synchronized (this) {
+				writing = false;
+			}
+		}
+	}
+
+	/**
+	 * Record that a pass of a progressive render is complete, and write the
+	 * checkpoint if it is due. Must not be called while samples are being added.
+	 * @param accum the samples so far
+	 * @param passCount the number of complete passes
+	 * @param elapsedMillis the render time so far
+	 */
+	public void passFinished(AccumulationBuffer accum, int passCount, long elapsedMillis) {
+		if (!isDue())
+			return;
+		DataOutputStream out = create(MODE_PROGRESSIVE);
+		if (out == null)
+			return;
+		try {
+			out.writeInt(passCount);
+			out.writeLong(elapsedMillis);
+			accum.write(out);
+			commit(out);
+		} catch (IOException e) {
+			abort(out, e);
+		}
+	}
+
+	/**
+	 * Remove the checkpoint file, once the render is complete.
+	 */
+	public void delete() {
+		if (file.exists() && !file.delete())
+			System.out.println("Could not delete checkpoint " + file.getPath());
+	}
+
+	private int blockIndex(int offsetX, int offsetY) {
+		return offsetX / RayTracer.SUB_WIDTH + blocksX * (offsetY / RayTracer.SUB_HEIGHT);
+	}
+
+	private int blockPixels(int b) {
+		int offsetX = (b % blocksX) * RayTracer.SUB_WIDTH, offsetY = (b / blocksX) * RayTracer.SUB_HEIGHT;
+		return Math.min(RayTracer.SUB_WIDTH, image.getWidth() - offsetX) * Math.min(RayTracer.SUB_HEIGHT, image.getHeight() - offsetY);
+	}
+
+	private boolean isDue() {
+		long now = System.currentTimeMillis();
+		if (now - lastWrite < interval)
+			return false;
+		lastWrite = now;
+		return true;
+	}
+
+	private void reset() {
+		Arrays.fill(finished, false);
+		finishedCount = 0;
+		samples = 0;
+		spare = 0;
+	}
+
+	/**
+	 * Open the checkpoint file and read its header.
+	 * @return a stream positioned after the header, or null if there is no
+	 * checkpoint for this render
+	 */
+	private DataInputStream open(byte mode) throws IOException {
+		if (!file.exists())
+			return null;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("not a checkpoint");
+			byte[] fileKey = new byte[in.readInt()];
+			in.readFully(fileKey);
+			if (!Arrays.equals(fileKey, key) || in.readByte() != mode
+					|| in.readInt() != image.getWidth() || in.readInt() != image.getHeight()
+					|| in.readInt() != RayTracer.SUB_WIDTH || in.readInt() != RayTracer.SUB_HEIGHT
+					|| in.readBoolean() != image.hasSampleCounts() || in.readBoolean() != image.hasVariances()) {
+				System.out.println("Ignoring checkpoint " + file.getPath() + ", the scene or the render settings have changed");
+				in.close();
+				return null;
+			}
+			return in;
+		} catch (IOException | RuntimeException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Start writing the checkpoint to a temporary file.
+	 * @return the stream, positioned after the header, or null if it could not be created
+	 */
+	private DataOutputStream create(byte mode) {
+		File tmp = tempFile();
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(key.length);
+			out.write(key);
+			out.writeByte(mode);
+			out.writeInt(image.getWidth());
+			out.writeInt(image.getHeight());
+			out.writeInt(RayTracer.SUB_WIDTH);
+			out.writeInt(RayTracer.SUB_HEIGHT);
+			out.writeBoolean(image.hasSampleCounts());
+			out.writeBoolean(image.hasVariances());
+			return out;
+		} catch (IOException e) {
+			tmp.delete();
+			System.out.println("Could not write checkpoint " + file.getPath() + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Finish the temporary file and move it over the checkpoint.
+	 */
+	private void commit(DataOutputStream out) throws IOException {
+		out.close();
+		try {
+			Files.move(tempFile().toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile().toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private void abort(DataOutputStream out, IOException e) {
+		try {
+			out.close();
+		} catch (IOException ignored) {
+		}
+		tempFile().delete();
+		System.out.println("Could not write checkpoint " + file.getPath() + ": " + e.getMessage());
+	}
+
+	private File tempFile() {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	/**
+	 * Write the pixels of block b: colors, then sample counts and variances if the image has them.
+	 */
+	private void writeBlock(DataOutputStream out, int b) throws IOException {
+		int offsetX = (b % blocksX) * RayTracer.SUB_WIDTH, offsetY = (b / blocksX) * RayTracer.SUB_HEIGHT;
+		int sizeX = Math.min(RayTracer.SUB_WIDTH, image.getWidth() - offsetX);
+		int sizeY = Math.min(RayTracer.SUB_HEIGHT, image.getHeight() - offsetY);
+		float[] rgb = new float[3 * sizeX * sizeY];
+		image.getTile(rgb, offsetX, offsetY, sizeX, sizeY);
+		for (float v : rgb)
+			out.writeFloat(v);
+		if (image.hasSampleCounts() || image.hasVariances()) {
+			int[] counts = new int[sizeX * sizeY];
+			float[] vars = new float[sizeX * sizeY];
+			image.getTileStatistics(counts, vars, offsetX, offsetY, sizeX, sizeY);
+			if (image.hasSampleCounts()) {
+				for (int n : counts)
+					out.writeInt(n);
+			}
+			if (image.hasVariances()) {
+				for (float v : vars)
+					out.writeFloat(v);
+			}
+		}
+	}
+
+	/**
+	 * Read the pixels of block b as written by writeBlock() into the image.
+	 */
+	private void readBlock(DataInputStream in, int b) throws IOException {
+		int offsetX = (b % blocksX) * RayTracer.SUB_WIDTH, offsetY = (b / blocksX) * RayTracer.SUB_HEIGHT;
+		int sizeX = Math.min(RayTracer.SUB_WIDTH, image.getWidth() - offsetX);
+		int sizeY = Math.min(RayTracer.SUB_HEIGHT, image.getHeight() - offsetY);
+		float[] rgb = new float[3 * sizeX * sizeY];
+		for (int i = 0; i < rgb.length; i++)
+			rgb[i] = in.readFloat();
+		int[] counts = null;
+		float[] vars = null;
+		if (image.hasSampleCounts()) {
+			counts = new int[sizeX * sizeY];
+			for (int i = 0; i < counts.length; i++)
+				counts[i] = in.readInt();
+		}
+		if (image.hasVariances()) {
+			vars = new float[sizeX * sizeY];
+			for (int i = 0; i < vars.length; i++)
+				vars[i] = in.readFloat();
+		}
+		image.setTile(rgb, offsetX, offsetY, sizeX, sizeY);
+		image.setTileStatistics(counts, vars, offsetX, offsetY, sizeX, sizeY);
+	}
+}
@@ -0,0 +1,180 @@
+package cs4620.ray2;
+
+import java.util.Arrays;
+
+import cs4620.ray2.accel.PrimitiveSet;
+import cs4620.ray2.accel.Qbvh;
+import egl.math.Colord;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+
+/**
+ * Scratch space for one render thread. Everything on the path of a ray --
+ * the acceleration structure, surface intersection and shading -- takes its
+ * temporary rays, records and vectors from here instead of allocating them,
+ * so once every thread has warmed up a frame renders without producing garbage.
+ * 
+ * A context must only ever be used by one thread. Use {@link #current()} to
+ * get the calling thread's context.
+ */
+public class RenderContext {
+	
+	/** The number of temporary vectors in each frame. */
+	public static final int FRAME_VECTORS = 8;
+	
+	/** The number of temporary colors in each frame. */
+	public static final int FRAME_COLORS = 4;
+	
+	/**
+	 * Temporaries for one level of shading. A shader pushes a frame when it
+	 * starts, may use anything in it until it pops the frame again, and can call
+	 * other shaders or trace more rays in between since those push frames of their own.
+	 */
+	public static final class Frame {
+		/** A ray for shadow, reflection or refraction rays. */
+		public final Ray ray = new Ray();
+		
+		/** A record for the intersection found along a ray. */
+		public final IntersectionRecord record = new IntersectionRecord();
+		
+		/** Temporary vectors. */
+		public final Vector3d[] v = new Vector3d[FRAME_VECTORS];
+		
+		/** Temporary colors. */
+		public final Colord[] c = new Colord[FRAME_COLORS];
+		
+		Frame() {
+			for (int i = 0; i < FRAME_VECTORS; i++) v[i] = new Vector3d();
+			for (int i = 0; i < FRAME_COLORS; i++) c[i] = new Colord();
+		}
+	}
+	
+	/** The frame stack; it grows to the deepest nesting seen and is then reused. */
+	private Frame[] frames = new Frame[2 * RayTracer.MAX_DEPTH + 4];
+	
+	/** The number of frames currently pushed. */
+	private int level = 0;
+	
+	/* Scratch space for intersection. Intersection code never nests, so one copy is enough. */
+	
+	/** A surface's ray after it has been transformed into object space. */
+	public final Ray objectRay = new Ray();
+	
+	/** The record an acceleration structure uses for candidate hits. */
+	public final IntersectionRecord hitRecord = new IntersectionRecord();
+	
+	/** Temporary vectors for surface intersection. */
+	public final Vector3d[] v = new Vector3d[FRAME_VECTORS];
+	
+	/** Temporary texture coordinates for surface intersection. */
+	public final Vector2d uv = new Vector2d();
+	
+	/** Entry distances of the children of a wide tree node. */
+	public final double[] childDist = new double[Qbvh.WIDTH];
+	
+	/** A node stack for tree traversal, and the entry distance of each stacked node. */
+	private int[] stack = new int[64];
+	private double[] stackDist = new double[64];
+	
+	/** The primitive that blocked the last ray for which an occlusion query returned true. */
+	public int occluder = -1;
+	
+	/** The primitive that last blocked a shadow ray towards each light, or -1. */
+	private int[] lastOccluders = new int[0];
+	
+	/** The primitives that lastOccluders refers to. */
+	private PrimitiveSet occluderPrimitives;
+	
+	/** Scratch space for a traversal that runs while this context's own one is going on. */
+	private RenderContext instanceContext;
+	
+	private static final ThreadLocal<RenderContext> current = new ThreadLocal<RenderContext>() {
+		@Override
+		protected RenderContext initialValue() {
+			return new RenderContext();
+		}
+	};
+	
+	/**
+	 * @return the context of the calling thread
+	 */
+	public static RenderContext current() {
+		return current.get();
+	}
+	
+	public RenderContext() {
+		for (int i = 0; i < FRAME_VECTORS; i++) v[i] = new Vector3d();
+	}
+	
+	/**
+	 * @return the context to use for tracing a ray through the structure of a
+	 * mesh instance, which happens in the middle of tracing it through the scene's
+	 */
+	public RenderContext getInstanceContext() {
+		if (instanceContext == null)
+			instanceContext = new RenderContext();
+		return instanceContext;
+	}
+	
+	/**
+	 * Reserve a frame of temporaries. Every push must be matched by a pop.
+	 * @return the reserved frame
+	 */
+	public Frame push() {
+		if (level == frames.length) {
+			Frame[] grown = new Frame[2 * frames.length];
+			System.arraycopy(frames, 0, grown, 0, frames.length);
+			frames = grown;
+		}
+		Frame f = frames[level];
+		if (f == null) f = frames[level] = new Frame();
+		level++;
+		return f;
+	}
+	
+	/**
+	 * Release the most recently pushed frame.
+	 */
+	public void pop() {
+		level--;
+	}
+	
+	/**
+	 * Get the last occluder cache for a set of primitives. Shadow rays towards
+	 * the same light from nearby points tend to be blocked by the same primitive,
+	 * so testing it first often answers the query without any traversal.
+	 * The cache is cleared whenever the primitives change.
+	 * @param prims the primitives the cached indices refer to
+	 * @param numLights the number of lights in the scene
+	 * @return for each light index, the primitive that last blocked a shadow ray, or -1
+	 */
+	public int[] getLastOccluders(PrimitiveSet prims, int numLights) {
+		if (prims != occluderPrimitives || lastOccluders.length < numLights) {
+			occluderPrimitives = prims;
+			lastOccluders = new int[numLights];
+			Arrays.fill(lastOccluders, -1);
+		}
+		return lastOccluders;
+	}
+	
+	/**
+	 * @param depth the depth of the tree that will be traversed
+	 * @return a node stack that can hold at least depth + 1 entries
+	 */
+	public int[] getStack(int depth) {
+		if (stack.length <= depth) {
+			stack = new int[depth + 1];
+			stackDist = new double[depth + 1];
+		}
+		return stack;
+	}
+	
+	/**
+	 * @param depth the depth of the tree that will be traversed
+	 * @return the entry distances that go with the array returned by getStack(depth)
+	 */
+	public double[] getStackDist(int depth) {
+		getStack(depth);
+		return stackDist;
+	}
+}
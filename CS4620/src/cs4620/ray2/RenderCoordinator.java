@@ -0,0 +1,487 @@
+package cs4620.ray2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cs4620.ray2.RayTracer.ScenePath;
+
+/**
+ * Renders scenes on a farm of worker processes (see RenderWorker), possibly on
+ * other machines, so that a frame is not limited by the heap of a single JVM.
+ *
+ * Workers connect over TCP. For every scene the coordinator tells each worker
+ * which scene file to load; the worker loads and builds it once and answers
+ * with the image size. The blocks of the image are then handed out in ranges,
+ * in spiral order, and workers send every finished block back as soon as it is
+ * done. The coordinator only assembles the image and never loads the scene.
+ * If a worker's connection is lost, the blocks it had not sent yet go back to
+ * the front of the queue for the other workers. Workers may join at any time.
+ * A worker that cannot load or render a scene drops out of it the same way;
+ * the scene only fails once every connected worker has given up on it, or once
+ * no worker has been working on it for WORKER_TIMEOUT seconds.
+ *
+ * The protocol is binary, through Data streams. After the worker's hello
+ * (MAGIC, VERSION, number of threads) the coordinator sends MSG_SCENE, the
+ * worker answers MSG_INFO (or MSG_ERROR), and then MSG_TILES assignments and
+ * MSG_TILE results alternate until the scene is done. MSG_QUIT ends the session.
+ */
+public class RenderCoordinator implements AutoCloseable {
+
+	static final int MAGIC = 0x52464152;
+	static final int VERSION = 2;
+
+	/** Coordinator to worker: load a scene */
+	static final byte MSG_SCENE = 1;
+	/** Coordinator to worker: render these blocks */
+	static final byte MSG_TILES = 2;
+	/** Coordinator to worker: there is nothing more to do */
+	static final byte MSG_QUIT = 3;
+	/** Worker to coordinator: the scene is loaded, this is its image */
+	static final byte MSG_INFO = 4;
+	/** Worker to coordinator: a finished block */
+	static final byte MSG_TILE = 5;
+	/** Worker to coordinator: the scene could not be loaded or rendered */
+	static final byte MSG_ERROR = 6;
+
+	/** Every worker is given this many blocks per render thread at a time */
+	public static final int BLOCKS_PER_THREAD = 2;
+
+	/** A scene fails if no worker works on it for this many seconds */
+	public static final int WORKER_TIMEOUT = 60;
+
+	/** Render settings that are passed on to the workers */
+	private final RayTracer settings;
+
+	private final ServerSocket server;
+	private final ArrayList<Process> localWorkers = new ArrayList<Process>();
+
+	/** The number of connected workers */
+	private final AtomicInteger workers = new AtomicInteger();
+
+	/** The scene being rendered, replaced by the next one when it is done; guarded by this */
+	private Job current = null;
+	private int jobCount = 0;
+	private boolean closed = false;
+
+	/**
+	 * Start accepting workers.
+	 * @param settings the render settings of the scenes
+	 * @param port the port to listen on, or 0 for any free port
+	 */
+	public RenderCoordinator(RayTracer settings, int port) throws IOException {
+		this.settings = settings;
+		server = new ServerSocket(port);
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "farm-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		System.out.println("Waiting for render workers on port " + getPort());
+	}
+
+	/**
+	 * @return The port workers connect to
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Start worker processes on this machine, running the same Java and class path as this one.
+	 * @param count the number of processes
+	 * @param threads the number of render threads in each of them
+	 */
+	public void startLocalWorkers(int count, int threads) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		for (int i = 0; i < count; i++) {
+			ArrayList<String> command = new ArrayList<String>();
+			command.add(java);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(RayTracer.class.getName());
+			command.add("-worker");
+			command.add("localhost:" + getPort());
+			command.add("-t");
+			command.add(Integer.toString(threads));
+			if (settings.cacheDir != null) {
+				command.add("-cache");
+				command.add(settings.cacheDir);
+			}
+			localWorkers.add(new ProcessBuilder(command).inheritIO().start());
+		}
+	}
+
+	/**
+	 * Render a scene on the workers. Blocks until every block has come back.
+	 * @param scene the scene file
+	 * @return The image, or null if the workers could not render the scene
+	 */
+	public Image render(ScenePath scene) {
+		Job job;
+		synchronized (this) {
+			job = new Job(++jobCount, scene, workers);
+			current = job;
+			notifyAll();
+		}
+		return job.await();
+	}
+
+	/**
+	 * Tell the workers to quit once they are idle, and stop accepting new ones.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			server.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for (Process p : localWorkers) {
+			try {
+				p.waitFor();
+			} catch (InterruptedException e) {
+				p.destroy();
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void accept() {
+		while (true) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				// The coordinator was closed
+				return;
+			}
+			Thread handler = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve(socket);
+				}
+			}, "farm-worker-" + socket.getRemoteSocketAddress());
+			// Not a daemon, so every worker is told to quit before the coordinator exits
+			handler.start();
+		}
+	}
+
+	/**
+	 * Wait for a scene other than the one just done that still needs work.
+	 * @return The scene, or null if the coordinator is closed
+	 */
+	private synchronized Job nextJob(Job done) throws InterruptedException {
+		while (!closed && (current == null || current == done || current.isDone()))
+			wait();
+		return closed ? null : current;
+	}
+
+	/**
+	 * Talk to one worker until it quits or its connection is lost.
+	 */
+	private void serve(Socket socket) {
+		String name = socket.getRemoteSocketAddress().toString();
+		Job job = null, joined = null;
+		List<int[]> assigned = null;
+		boolean connected = false;
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("not a render worker of this version");
+			int threads = in.readInt();
+			workers.incrementAndGet();
+			connected = true;
+			System.out.println("Render worker " + name + " connected with " + threads + " threads");
+
+			while ((job = nextJob(job)) != null) {
+				joined = job;
+				job.join();
+				out.writeByte(MSG_SCENE);
+				out.writeInt(job.id);
+				out.writeUTF(job.scene.getRoot() != null ? job.scene.getRoot() : "");
+				out.writeUTF(job.scene.getFile());
+				out.writeDouble(settings.adaptiveThreshold);
+				out.writeInt(settings.adaptiveBudget);
+				out.flush();
+
+				byte reply = in.readByte();
+				if (reply == MSG_ERROR) {
+					job.giveUp(name + ": " + in.readUTF());
+					joined = null;
+					continue;
+				}
+				if (reply != MSG_INFO || in.readInt() != job.id)
+					throw new IOException("unexpected message " + reply);
+				job.start(in.readInt(), in.readInt(), in.readBoolean(), in.readBoolean());
+
+				while (!(assigned = job.take(BLOCKS_PER_THREAD * threads)).isEmpty()) {
+					out.writeByte(MSG_TILES);
+					out.writeInt(assigned.size());
+					for (int[] block : assigned) {
+						for (int k = 0; k < 4; k++)
+							out.writeInt(block[k]);
+					}
+					out.flush();
+
+					while (!assigned.isEmpty()) {
+						reply = in.readByte();
+						if (reply == MSG_ERROR) {
+							// Leave the blocks to the other workers, if this one is the only one that fails
+							job.requeue(assigned);
+							job.giveUp(name + ": " + in.readUTF());
+							joined = null;
+							break;
+						}
+						if (reply != MSG_TILE)
+							throw new IOException("unexpected message " + reply);
+						job.finish(in, assigned);
+					}
+					if (joined == null || job.isDone())
+						break;
+				}
+				assigned = null;
+				if (joined != null)
+					job.leave();
+				joined = null;
+			}
+			out.writeByte(MSG_QUIT);
+			out.flush();
+		} catch (EOFException e) {
+			System.out.println("Lost render worker " + name + ": connection closed");
+		} catch (IOException e) {
+			System.out.println("Lost render worker " + name + ": " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (joined != null) {
+				if (assigned != null && !assigned.isEmpty())
+					joined.requeue(assigned);
+				joined.leave();
+			}
+			if (connected)
+				workers.decrementAndGet();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * One scene being rendered: the image, the blocks nobody is working on, the
+	 * number of blocks that have not come back yet, and the workers on it.
+	 */
+	private static class Job {
+		final int id;
+		final ScenePath scene;
+
+		/** The number of connected workers, whether they are on this scene or not */
+		final AtomicInteger workers;
+
+		Image image = null;
+		final ArrayDeque<int[]> queue = new ArrayDeque<int[]>();
+		int total = 0, remaining = -1;
+		long samples = 0;
+		String error = null;
+
+		/** The workers on this scene, and the ones that gave up on it with the last of their errors */
+		int active = 0, failed = 0;
+		String lastFailure = null;
+		/** When the last worker left, or when the scene was created */
+		long idleSince = System.currentTimeMillis();
+
+		Job(int id, ScenePath scene, AtomicInteger workers) {
+			this.id = id;
+			this.scene = scene;
+			this.workers = workers;
+		}
+
+		/**
+		 * A worker is sent the scene.
+		 */
+		synchronized void join() {
+			active++;
+		}
+
+		/**
+		 * A worker is done with the scene or its connection was lost.
+		 */
+		synchronized void leave() {
+			if (--active == 0)
+				idleSince = System.currentTimeMillis();
+			notifyAll();
+		}
+
+		/**
+		 * A worker could not load or render the scene and will not work on it again.
+		 */
+		synchronized void giveUp(String message) {
+			System.out.println("Render worker " + message);
+			failed++;
+			lastFailure = message;
+			leave();
+		}
+
+		/**
+		 * Set up the image and the blocks when the first worker has loaded the scene.
+		 */
+		synchronized void start(int width, int height, boolean sampleCounts, boolean variances) throws IOException {
+			if (image != null) {
+				if (image.getWidth() != width || image.getHeight() != height)
+					throw new IOException("the worker's image is " + width + "x" + height
+							+ " instead of " + image.getWidth() + "x" + image.getHeight());
+				return;
+			}
+			image = new Image(width, height);
+			if (sampleCounts)
+				image.enableSampleCounts();
+			if (variances)
+				image.enableVariances();
+
+			BlockSpiral spiral = new BlockSpiral();
+			spiral.initSubblockSpiral(width, height);
+			for (int i = 0; i < spiral.totalSubblocks; i++) {
+				spiral.incrementSublockSpiral();
+				int offsetX = spiral.curSubX * RayTracer.SUB_WIDTH;
+				int offsetY = spiral.curSubY * RayTracer.SUB_HEIGHT;
+				queue.add(new int[] { offsetX, offsetY,
+						Math.min(width - offsetX, RayTracer.SUB_WIDTH), Math.min(height - offsetY, RayTracer.SUB_HEIGHT) });
+			}
+			total = remaining = queue.size();
+			System.err.print("Starting render...");
+			notifyAll();
+		}
+
+		/**
+		 * Take up to count blocks to hand to a worker, waiting while other workers
+		 * hold all of the rest (one of them may still drop out).
+		 * @return The blocks, none once the scene is done
+		 */
+		synchronized List<int[]> take(int count) throws InterruptedException {
+			while (queue.isEmpty() && remaining > 0 && error == null)
+				wait();
+			ArrayList<int[]> blocks = new ArrayList<int[]>();
+			if (error != null)
+				return blocks;
+			while (blocks.size() < count && !queue.isEmpty())
+				blocks.add(queue.poll());
+			return blocks;
+		}
+
+		/**
+		 * Read a finished block from in into the image, and remove it from assigned.
+		 */
+		void finish(DataInputStream in, List<int[]> assigned) throws IOException {
+			int offsetX = in.readInt(), offsetY = in.readInt();
+			int sizeX = in.readInt(), sizeY = in.readInt();
+			long blockSamples = in.readLong();
+			int[] block = null;
+			for (int[] b : assigned) {
+				if (b[0] == offsetX && b[1] == offsetY && b[2] == sizeX && b[3] == sizeY)
+					block = b;
+			}
+			if (block == null)
+				throw new IOException("block (" + offsetX + ", " + offsetY + ") was not assigned");
+
+			// Read everything before taking the lock, the image has room for whatever was enabled
+			int n = sizeX * sizeY;
+			float[] rgb = new float[3 * n];
+			for (int i = 0; i < rgb.length; i++)
+				rgb[i] = in.readFloat();
+			int[] counts = null;
+			float[] vars = null;
+			if (in.readBoolean()) {
+				counts = new int[n];
+				for (int i = 0; i < n; i++)
+					counts[i] = in.readInt();
+			}
+			if (in.readBoolean()) {
+				vars = new float[n];
+				for (int i = 0; i < n; i++)
+					vars[i] = in.readFloat();
+			}
+
+			synchronized (this) {
+				image.setTile(rgb, offsetX, offsetY, sizeX, sizeY);
+				image.setTileStatistics(counts, vars, offsetX, offsetY, sizeX, sizeY);
+				samples += blockSamples;
+				assigned.remove(block);
+				remaining--;
+				System.out.println("finished " + (total - remaining) + "/" + total + " blocks");
+				if (remaining == 0)
+					notifyAll();
+			}
+		}
+
+		/**
+		 * Put the blocks of a lost worker back at the front of the queue.
+		 */
+		synchronized void requeue(List<int[]> blocks) {
+			for (int i = blocks.size() - 1; i >= 0; i--)
+				queue.addFirst(blocks.get(i));
+			System.out.println("Requeued " + blocks.size() + " blocks");
+			notifyAll();
+		}
+
+		/**
+		 * @return true if every block is back or the scene failed
+		 */
+		synchronized boolean isDone() {
+			return remaining == 0 || error != null;
+		}
+
+		/**
+		 * Wait until every block is back or the scene failed. It fails when no
+		 * worker is on it and every connected worker gave up on it, or when no
+		 * worker was on it for WORKER_TIMEOUT seconds.
+		 */
+		synchronized Image await() {
+			try {
+				while ((image == null || remaining > 0) && error == null) {
+					if (active == 0) {
+						long idle = System.currentTimeMillis() - idleSince;
+						if (failed > 0 && failed >= workers.get())
+							error = lastFailure;
+						else if (idle >= WORKER_TIMEOUT * 1000L)
+							error = "no render worker for " + WORKER_TIMEOUT + " seconds";
+						else
+							// Workers that connect or disconnect do not notify the scene, so check again soon
+							wait(Math.min(1000, WORKER_TIMEOUT * 1000L - idle));
+					}
+					else
+						wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				error = "interrupted";
+			}
+			if (error != null) {
+				System.out.println("Could not render " + scene.getFile() + ": " + error);
+				return null;
+			}
+			System.out.println("Average samples per pixel: " + (double) samples / (image.getWidth() * image.getHeight()));
+			return image;
+		}
+	}
+}
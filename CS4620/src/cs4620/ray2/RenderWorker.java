@@ -0,0 +1,241 @@
+package cs4620.ray2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cs4620.ray2.RayTracer.ScenePath;
+
+/**
+ * Renders blocks of scenes for a RenderCoordinator, see there for the protocol.
+ * A worker loads every scene once, renders the blocks it is given with its own
+ * pool of threads, and sends each block back as soon as it is finished.
+ */
+public class RenderWorker {
+
+	/** How long to keep trying to reach a coordinator that is not up yet, in seconds */
+	public static final int CONNECT_TIMEOUT = 30;
+
+	/** Render settings; the ones that change the image are taken from the coordinator */
+	private final RayTracer settings;
+	private final String host;
+	private final int port;
+
+	private DataOutputStream out;
+
+	/** The scene loaded last, and what it was loaded from */
+	private Scene scene = null;
+	private String sceneKey = null;
+
+	/**
+	 * @param settings the render settings, most importantly the number of threads
+	 * @param host the coordinator's host
+	 * @param port the coordinator's port
+	 */
+	public RenderWorker(RayTracer settings, String host, int port) {
+		this.settings = settings;
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Connect to the coordinator and render what it asks for until it says to quit.
+	 */
+	public void run() throws IOException {
+		Socket socket = connect();
+		ExecutorService pool = Executors.newFixedThreadPool(settings.getNumThreads());
+		try {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(RenderCoordinator.MAGIC);
+			out.writeInt(RenderCoordinator.VERSION);
+			out.writeInt(settings.getNumThreads());
+			out.flush();
+			System.out.println("Connected to render coordinator " + host + ":" + port);
+
+			while (true) {
+				byte message;
+				try {
+					message = in.readByte();
+				} catch (EOFException e) {
+					System.out.println("The render coordinator has gone away");
+					return;
+				}
+				switch (message) {
+				case RenderCoordinator.MSG_SCENE:
+					loadScene(in);
+					break;
+				case RenderCoordinator.MSG_TILES:
+					renderTiles(in, pool);
+					break;
+				case RenderCoordinator.MSG_QUIT:
+					return;
+				default:
+					throw new IOException("unexpected message " + message);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			socket.close();
+		}
+	}
+
+	/**
+	 * Connect, waiting for up to CONNECT_TIMEOUT seconds for the coordinator to start.
+	 */
+	private Socket connect() throws IOException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return new Socket(host, port);
+			} catch (ConnectException e) {
+				if (attempt >= CONNECT_TIMEOUT)
+					throw e;
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Load the scene of a MSG_SCENE message, unless it is the one loaded already,
+	 * and answer with its image size.
+	 */
+	private void loadScene(DataInputStream in) throws IOException {
+		int id = in.readInt();
+		String root = in.readUTF();
+		String file = in.readUTF();
+		double adaptiveThreshold = in.readDouble();
+		int adaptiveBudget = in.readInt();
+
+		String key = root + "\n" + file + "\n" + adaptiveThreshold + " " + adaptiveBudget;
+		if (!key.equals(sceneKey)) {
+			scene = null;
+			sceneKey = null;
+			try {
+				RayTracer sceneSettings = settings.copy();
+				sceneSettings.setAdaptiveThreshold(adaptiveThreshold);
+				sceneSettings.setAdaptiveBudget(adaptiveBudget);
+				Scene s = sceneSettings.loadScene(new ScenePath(root.isEmpty() ? null : root, file));
+				s.getCamera().initView();
+				if (s.getAdaptiveThreshold() > 0) {
+					s.getImage().enableSampleCounts();
+					s.getImage().enableVariances();
+				}
+				scene = s;
+				sceneKey = key;
+			} catch (RuntimeException | Error e) {
+				e.printStackTrace();
+				out.writeByte(RenderCoordinator.MSG_ERROR);
+				out.writeUTF("could not load " + file + ": " + e);
+				out.flush();
+				return;
+			}
+		}
+
+		Image image = scene.getImage();
+		out.writeByte(RenderCoordinator.MSG_INFO);
+		out.writeInt(id);
+		out.writeInt(image.getWidth());
+		out.writeInt(image.getHeight());
+		out.writeBoolean(image.hasSampleCounts());
+		out.writeBoolean(image.hasVariances());
+		out.flush();
+	}
+
+	/**
+	 * Render the blocks of a MSG_TILES message in parallel and send each one back
+	 * when it is done. If any of them fails, MSG_ERROR follows the blocks that worked.
+	 */
+	private void renderTiles(DataInputStream in, ExecutorService pool) throws IOException {
+		int count = in.readInt();
+		ArrayList<Future<?>> results = new ArrayList<Future<?>>(count);
+		for (int i = 0; i < count; i++) {
+			final int offsetX = in.readInt(), offsetY = in.readInt();
+			final int sizeX = in.readInt(), sizeY = in.readInt();
+			results.add(pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					long samples = RayTracer.renderBlock(scene, scene.getImage(), offsetX, offsetY, sizeX, sizeY);
+					try {
+						sendTile(offsetX, offsetY, sizeX, sizeY, samples);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}));
+		}
+
+		Throwable failure = null;
+		for (Future<?> f : results) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted", e);
+			} catch (ExecutionException e) {
+				if (failure == null)
+					failure = e.getCause();
+			}
+		}
+		if (failure != null) {
+			if (failure instanceof RuntimeException && failure.getCause() instanceof IOException)
+				throw (IOException) failure.getCause();
+			failure.printStackTrace();
+			synchronized (out) {
+				out.writeByte(RenderCoordinator.MSG_ERROR);
+				out.writeUTF("could not render: " + failure);
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Send a finished block: colors, then sample counts and variances if the image has them.
+	 */
+	private void sendTile(int offsetX, int offsetY, int sizeX, int sizeY, long samples) throws IOException {
+		Image image = scene.getImage();
+		int n = sizeX * sizeY;
+		float[] rgb = new float[3 * n];
+		int[] counts = image.hasSampleCounts() ? new int[n] : null;
+		float[] vars = image.hasVariances() ? new float[n] : null;
+		image.getTile(rgb, offsetX, offsetY, sizeX, sizeY);
+		image.getTileStatistics(counts, vars, offsetX, offsetY, sizeX, sizeY);
+
+		synchronized (out) {
+			out.writeByte(RenderCoordinator.MSG_TILE);
+			out.writeInt(offsetX);
+			out.writeInt(offsetY);
+			out.writeInt(sizeX);
+			out.writeInt(sizeY);
+			out.writeLong(samples);
+			for (float v : rgb)
+				out.writeFloat(v);
+			out.writeBoolean(counts != null);
+			if (counts != null) {
+				for (int c : counts)
+					out.writeInt(c);
+			}
+			out.writeBoolean(vars != null);
+			if (vars != null) {
+				for (float v : vars)
+					out.writeFloat(v);
+			}
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package cs4620.ray2;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Process-wide cache of the resources scenes load from disk (meshes, textures,
+ * cubemaps), so that scenes rendered one after the other, or at the same time,
+ * load each of them only once.
+ *
+ * Entries are keyed by the kind of resource and a digest of the file contents,
+ * so the same file reached through different paths, or a copy of it, is shared
+ * too. The digest of a file is remembered for as long as its size and date
+ * stay the same, so an unchanged file is only read once to hash it.
+ *
+ * Different files are hashed and loaded concurrently; only callers that want
+ * a resource while it is being loaded wait, for that one load.
+ *
+ * The cache holds at most a budget of (estimated) bytes and evicts the least
+ * recently used entries beyond that. Evicting an entry only means later scenes
+ * load it again; scenes that already got it keep using it. Loaded resources are
+ * shared between scenes and must not be changed.
+ */
+public class ResourceCache {
+
+	/** Default budget: a quarter of the memory the VM may use */
+	public static final long DEFAULT_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+
+	private static final ResourceCache instance = new ResourceCache(DEFAULT_BUDGET);
+
+	/**
+	 * @return The cache shared by all scenes
+	 */
+	public static ResourceCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * How to load one kind of resource, and how much memory it takes.
+	 */
+	public interface Loader<T> {
+		/**
+		 * @param fileName the absolute path of the file
+		 * @return the resource, never null
+		 */
+		T load(String fileName) throws IOException;
+
+		/**
+		 * @return an estimate of the bytes value takes
+		 */
+		long size(T value);
+	}
+
+	/** A resource, loaded by whoever asked for it first */
+	private static class Entry {
+		final FutureTask<Object> task;
+		long size;
+
+		Entry(FutureTask<Object> task) {
+			this.task = task;
+		}
+	}
+
+	private static class Digest {
+		final long length, modified;
+		final String hex;
+
+		Digest(long length, long modified, String hex) {
+			this.length = length;
+			this.modified = modified;
+			this.hex = hex;
+		}
+	}
+
+	private long budget;
+	private long used = 0;
+	private int hits = 0, misses = 0;
+
+	/** Entries being loaded or loaded, by key */
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/** Loaded entries from least to most recently used, guarded by this */
+	private final LinkedHashMap<String, Entry> loaded = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	/** Content digests of the files seen so far, by absolute path */
+	private final ConcurrentHashMap<String, Digest> digests = new ConcurrentHashMap<String, Digest>();
+
+	/**
+	 * @param budget the number of bytes to keep at most
+	 */
+	public ResourceCache(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Set the number of bytes to keep at most, evicting entries if the cache holds more.
+	 */
+	public synchronized void setBudget(long budget) {
+		this.budget = budget;
+		evict(null);
+	}
+
+	/**
+	 * Get the resource of the given kind from a file, loading it if it is not cached.
+	 * @param fileName the file
+	 * @param kind distinguishes resources loaded differently from the same file
+	 * @param loader loads the resource if needed
+	 * @return the shared resource
+	 */
+	public <T> T get(String fileName, String kind, final Loader<T> loader) throws IOException {
+		final String path = new File(fileName).getAbsolutePath();
+		String key = kind + ":" + digest(path);
+
+		Entry e = entries.get(key);
+		boolean loading = false;
+		if (e == null) {
+			Entry created = new Entry(new FutureTask<Object>(new Callable<Object>() {
+				@Override
+				public Object call() throws IOException {
+					return loader.load(path);
+				}
+			}));
+			e = entries.putIfAbsent(key, created);
+			if (e == null) {
+				e = created;
+				loading = true;
+				e.task.run();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		T value = (T) await(key, e);
+		synchronized (this) {
+			if (loading) {
+				misses++;
+				// Unless clear() dropped the entry while it was loading
+				if (entries.get(key) == e) {
+					e.size = loader.size(value);
+					loaded.put(key, e);
+					used += e.size;
+					evict(key);
+				}
+			} else {
+				hits++;
+				loaded.get(key);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * @return The hex SHA-1 digest of the contents of a file, which identifies
+	 * what get() loads from it
+	 */
+	public String getDigest(String fileName) throws IOException {
+		return digest(new File(fileName).getAbsolutePath());
+	}
+
+	/**
+	 * Remove every entry.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		loaded.clear();
+		used = 0;
+	}
+
+	/**
+	 * @return a line about the use of the cache so far
+	 */
+	public synchronized String getStatistics() {
+		return String.format("Resource cache: %d hits, %d loads, %d entries, %.1f of %.1f MB",
+				hits, misses, entries.size(), used / 1048576.0, budget / 1048576.0);
+	}
+
+	/**
+	 * Drop least recently used entries until the cache fits its budget, keeping
+	 * the entry under keep (the one just loaded) even if it alone is too big.
+	 */
+	private void evict(String keep) {
+		Iterator<Map.Entry<String, Entry>> it = loaded.entrySet().iterator();
+		while (used > budget && it.hasNext()) {
+			Map.Entry<String, Entry> e = it.next();
+			if (e.getKey().equals(keep))
+				continue;
+			used -= e.getValue().size;
+			entries.remove(e.getKey(), e.getValue());
+			it.remove();
+		}
+	}
+
+	/**
+	 * Wait for the load of an entry. A failed load is forgotten, so that the
+	 * next caller tries again, and its exception is thrown to every caller.
+	 */
+	private Object await(String key, Entry e) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return e.task.get();
+				} catch (InterruptedException ie) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException ee) {
+			entries.remove(key, e);
+			Throwable cause = ee.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return The hex SHA-1 digest of the contents of a file, computed again only if it changed.
+	 * No lock is held while hashing; callers that race on a new file both hash it.
+	 */
+	private String digest(String path) throws IOException {
+		File file = new File(path);
+		long length = file.length(), modified = file.lastModified();
+		Digest d = digests.get(path);
+		if (d != null && d.length == length && d.modified == modified)
+			return d.hex;
+
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error("SHA-1 is not available", e);
+		}
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buf = new byte[1 << 16];
+			for (int n; (n = in.read(buf)) > 0;)
+				md.update(buf, 0, n);
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : md.digest())
+			hex.append(String.format("%02x", b));
+		digests.put(path, new Digest(length, modified, hex.toString()));
+		return hex.toString();
+	}
+}
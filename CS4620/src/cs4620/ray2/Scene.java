@@ -3,9 +3,11 @@ package cs4620.ray2;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import cs4620.ray2.accel.AccelStruct;
 import cs4620.ray2.accel.Bvh;
+import cs4620.ray2.accel.PrimitiveSet;
 import cs4620.ray2.camera.Camera;
 import egl.math.Colord;
 import egl.math.Matrix4d;
@@ -47,7 +49,10 @@ public class Scene {
 	
 	/** The list of lights for the scene. */
 	protected ArrayList<Light> lights = new ArrayList<Light>();
-	public void addLight(Light toAdd) { lights.add(toAdd); }
+	public void addLight(Light toAdd) {
+		toAdd.index = lights.size();
+		lights.add(toAdd);
+	}
 	public List<Light> getLights() { return this.lights; }
 	
 	/** The list of surfaces for the scene. */
@@ -79,6 +84,45 @@ public class Scene {
 	protected int samples;
 	public int getSamples() { return this.samples==0 ? 1 : this.samples; }
 	public void setSamples(int n) {	samples = (int)Math.round(Math.sqrt(n)); }
+	
+	/**
+	 * Adaptive sampling: every pixel starts with a few samples, and only pixels
+	 * whose relative noise (the standard error of their luminance over the
+	 * luminance) is above this threshold get more, up to samples^2. 0 turns
+	 * adaptive sampling off, so every pixel gets samples^2.
+	 */
+	protected double adaptiveThreshold = 0;
+	public double getAdaptiveThreshold() { return this.adaptiveThreshold; }
+	public void setAdaptiveThreshold(double t) { adaptiveThreshold = Math.max(0, t); }
+	
+	/** The average number of samples per pixel adaptive sampling may spend over the image; 0 means samples^2. */
+	protected int adaptiveBudget = 0;
+	public int getAdaptiveBudget() { return this.adaptiveBudget; }
+	public void setAdaptiveBudget(int spp) { adaptiveBudget = Math.max(0, spp); }
+	
+	/** @return The samples per pixel each block may spend of its own with adaptive sampling, before it takes spare ones */
+	public int getAdaptiveShare() { return adaptiveBudget > 0 ? adaptiveBudget : getSamples() * getSamples(); }
+	
+	/**
+	 * Samples of the adaptive budget that the blocks rendered so far left unused,
+	 * which blocks that need more than their own share may spend.
+	 */
+	protected final AtomicLong spareSamples = new AtomicLong();
+	public void resetSpareSamples() { spareSamples.set(0); }
+	public void addSpareSamples(long n) { spareSamples.addAndGet(n); }
+	
+	/**
+	 * Take up to n of the spare samples.
+	 * @return the number of samples taken
+	 */
+	public long takeSpareSamples(long n) {
+		while (true) {
+			long spare = spareSamples.get();
+			long taken = Math.min(spare, n);
+			if (taken <= 0 || spareSamples.compareAndSet(spare, spare - taken))
+				return Math.max(0, taken);
+		}
+	}
 
 	/** The acceleration structure **/
 	protected AccelStruct accelStruct = new Bvh();
@@ -97,6 +141,18 @@ public class Scene {
 		}
 	}
 
+	/**
+	 * Update the scene after the transformations of its surfaces changed, e.g.
+	 * between the frames of an animation. The acceleration structure must have
+	 * been built already, and no surfaces may have been added or removed since.
+	 * This is much cheaper than building the structure again.
+	 */
+	public void refit() {
+		setTransform();
+		accelStruct.getPrimitives().update();
+		accelStruct.refit();
+	}
+
 	/**
 	 * Set outRecord to the first intersection of ray with the scene. Return true
 	 * if there was an intersection and false otherwise. If no intersection was
@@ -107,8 +163,15 @@ public class Scene {
 	 * @return true if and intersection is found.
 	 */
 	public boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray) {
-		return accelStruct.intersect(outRecord, ray, false);
-		
+		return getFirstIntersection(outRecord, ray, RenderContext.current());
+	}
+	
+	/**
+	 * Same as {@link #getFirstIntersection(IntersectionRecord, Ray)}, using the
+	 * given scratch space.
+	 */
+	public boolean getFirstIntersection(IntersectionRecord outRecord, Ray ray, RenderContext ctx) {
+		return accelStruct.intersect(outRecord, ray, false, ctx);
 	}
 	
 	/**
@@ -119,7 +182,38 @@ public class Scene {
 	 * @return true if any intersection is found
 	 */
 	public boolean getAnyIntersection(Ray ray) {
-		return accelStruct.intersect(new IntersectionRecord(), ray, true);	
+		return getAnyIntersection(ray, RenderContext.current());
+	}
+	
+	/**
+	 * Same as {@link #getAnyIntersection(Ray)}, using the given scratch space.
+	 */
+	public boolean getAnyIntersection(Ray ray, RenderContext ctx) {
+		return accelStruct.occluded(ray, ctx);
+	}
+	
+	/**
+	 * Test whether a shadow ray towards a light is blocked. The primitive that
+	 * blocked the previous shadow ray towards the same light on this thread is
+	 * tried first, and only if it misses is the acceleration structure traversed.
+	 * @param ray the shadow ray
+	 * @param light the light the ray points at
+	 * @param ctx scratch space of the calling thread
+	 * @return true if any intersection is found
+	 */
+	public boolean isOccluded(Ray ray, Light light, RenderContext ctx) {
+		if (light.index < 0 || lights.get(light.index) != light)
+			return accelStruct.occluded(ray, ctx);
+		
+		PrimitiveSet prims = accelStruct.getPrimitives();
+		int[] last = ctx.getLastOccluders(prims, lights.size());
+		int cached = last[light.index];
+		if (cached >= 0 && prims.intersect(cached, null, ray, ctx))
+			return true;
+		if (!accelStruct.occluded(ray, ctx))
+			return false;
+		last[light.index] = ctx.occluder;
+		return true;
 	}
 	
 }
\ No newline at end of file
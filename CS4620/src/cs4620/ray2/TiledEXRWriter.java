@@ -0,0 +1,235 @@
+package cs4620.ray2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Paths;
+
+import edu.cornell.graphics.exr.Channel;
+import edu.cornell.graphics.exr.ChannelList;
+import edu.cornell.graphics.exr.Compression;
+import edu.cornell.graphics.exr.EXRVersion;
+import edu.cornell.graphics.exr.Header;
+import edu.cornell.graphics.exr.LineOrder;
+import edu.cornell.graphics.exr.PixelType;
+import edu.cornell.graphics.exr.TileDescription;
+import edu.cornell.graphics.exr.attributes.TileDescriptionAttribute;
+import edu.cornell.graphics.exr.io.EXRFileOutputStream;
+import edu.cornell.graphics.exr.io.XdrOutput;
+
+/**
+ * Writes an image to a tiled OpenEXR file one block at a time, so the renderer
+ * can hand over every block as soon as it is finished instead of keeping the
+ * whole frame around for one big write at the end.
+ *
+ * The file is uncompressed, so every tile has a fixed size and place. Opening
+ * the writer lays out the complete file with black tiles, and writeTile() then
+ * overwrites them in place, in any order and as often as needed (progressive
+ * passes simply rewrite their blocks). The file is therefore a valid image at
+ * all times, even if the render is stopped halfway.
+ *
+ * Blocks are counted from the bottom of the image while EXR tiles are counted
+ * from the top, so the data window is extended above the image by the rows
+ * needed to line the two grids up; the display window is the image itself.
+ * Besides R, G and B the file gets a "samples" and a "variance" channel if the
+ * image records them.
+ */
+public class TiledEXRWriter implements AutoCloseable {
+
+	/** Bytes in front of the pixels of every tile: its x, y, x level, y level and data size */
+	private static final int TILE_HEADER_SIZE = 20;
+
+	private final int width, height;
+	private final int tileWidth, tileHeight;
+	private final int tilesX, tilesY;
+	private final boolean sampleCounts, variances;
+
+	/** Where each tile starts in the file, in the order of the file's offset table */
+	private final long[] tileOffsets;
+
+	private EXRFileOutputStream out;
+
+	/** Scratch space for the tile being written */
+	private final ByteBuffer tileBuffer;
+	private final float[] rgb;
+	private final int[] counts;
+	private final float[] vars;
+
+	/**
+	 * Create the file and fill it with black tiles.
+	 *
+	 * @param fileName the output file
+	 * @param width the image width
+	 * @param height the image height
+	 * @param tileWidth the width of the blocks that will be written
+	 * @param tileHeight the height of the blocks that will be written
+	 * @param sampleCounts add a channel for the number of samples of every pixel
+	 * @param variances add a channel for the variance of every pixel
+	 */
+	public TiledEXRWriter(String fileName, int width, int height, int tileWidth, int tileHeight,
+			boolean sampleCounts, boolean variances) throws IOException {
+		this.width = width;
+		this.height = height;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.sampleCounts = sampleCounts;
+		this.variances = variances;
+		tilesX = (width + tileWidth - 1) / tileWidth;
+		tilesY = (height + tileHeight - 1) / tileHeight;
+		int padding = tilesY * tileHeight - height;
+
+		Header header = new Header(width, height);
+		header.setDataWindow(0, -padding, width - 1, height - 1);
+		header.setCompression(Compression.NONE);
+		header.setLineOrder(LineOrder.RANDOM_Y);
+		TileDescription tiles = new TileDescription();
+		tiles.xSize = tileWidth;
+		tiles.ySize = tileHeight;
+		tiles.mode = TileDescription.LevelMode.ONE_LEVEL;
+		header.insert("tiles", new TileDescriptionAttribute(tiles));
+
+		// The channel list keeps the channels sorted by name, as the tile data must be
+		ChannelList channels = header.getChannels();
+		channels.insert("R", new Channel(PixelType.FLOAT));
+		channels.insert("G", new Channel(PixelType.FLOAT));
+		channels.insert("B", new Channel(PixelType.FLOAT));
+		if (sampleCounts)
+			channels.insert("samples", new Channel(PixelType.UINT));
+		if (variances)
+			channels.insert("variance", new Channel(PixelType.FLOAT));
+
+		tileBuffer = ByteBuffer.allocateDirect(TILE_HEADER_SIZE + tileWidth * tileHeight * bytesPerPixel());
+		tileBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		rgb = new float[3 * tileWidth * tileHeight];
+		counts = sampleCounts ? new int[tileWidth * tileHeight] : null;
+		vars = variances ? new float[tileWidth * tileHeight] : null;
+
+		out = new EXRFileOutputStream(Paths.get(fileName));
+		try {
+			XdrOutput xdr = new XdrOutput(out);
+			xdr.writeInt(EXRVersion.MAGIC);
+			xdr.writeInt(EXRVersion.makeTiled(EXRVersion.EXR_VERSION));
+			header.writeTo(xdr);
+
+			// Tiles follow the offset table row by row
+			tileOffsets = new long[tilesX * tilesY];
+			ByteBuffer table = ByteBuffer.allocate(8 * tileOffsets.length).order(ByteOrder.LITTLE_ENDIAN);
+			long offset = xdr.position() + table.capacity();
+			for (int i = 0; i < tileOffsets.length; i++) {
+				tileOffsets[i] = offset;
+				table.putLong(offset);
+				offset += TILE_HEADER_SIZE + (long) tileHeight * columns(i % tilesX) * bytesPerPixel();
+			}
+			table.flip();
+			xdr.writeBuffer(table);
+
+			for (int ty = 0; ty < tilesY; ty++) {
+				for (int tx = 0; tx < tilesX; tx++) {
+					startTile(tx, ty);
+					while (tileBuffer.position() < tileBuffer.limit())
+						tileBuffer.put((byte) 0);
+					writeBuffer(tx, ty);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			out.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Write a block of image to the file. Blocks must be tiles of the grid the
+	 * writer was created with, counted from the bottom left of the image like
+	 * the renderer's blocks; the blocks at the top and right edges may be smaller.
+	 * Safe to call from several threads.
+	 *
+	 * @param image the image to take the pixels from
+	 * @param offsetX the starting x value of the block
+	 * @param offsetY the starting y value of the block
+	 * @param sizeX the width of the block
+	 * @param sizeY the height of the block
+	 */
+	public synchronized void writeTile(Image image, int offsetX, int offsetY, int sizeX, int sizeY) throws IOException {
+		if (out == null)
+			throw new IllegalStateException("The EXR file is closed");
+		if (image.getWidth() != width || image.getHeight() != height
+				|| offsetX % tileWidth != 0 || offsetY % tileHeight != 0
+				|| sizeX != Math.min(tileWidth, width - offsetX) || sizeY != Math.min(tileHeight, height - offsetY))
+			throw new IllegalArgumentException("Block (" + offsetX + ", " + offsetY + ") of size "
+					+ sizeX + "x" + sizeY + " is not a tile of the EXR file");
+
+		image.getTile(rgb, offsetX, offsetY, sizeX, sizeY);
+		if (sampleCounts || variances)
+			image.getTileStatistics(counts, vars, offsetX, offsetY, sizeX, sizeY);
+
+		int tx = offsetX / tileWidth;
+		int ty = tilesY - 1 - offsetY / tileHeight;
+		startTile(tx, ty);
+
+		// Padding rows above the image, then the block's rows from its top down, one channel after the other
+		for (int row = sizeY; row < tileHeight; row++) {
+			for (int i = 0; i < sizeX * bytesPerPixel(); i++)
+				tileBuffer.put((byte) 0);
+		}
+		for (int y = sizeY - 1; y >= 0; y--) {
+			int start = sizeX * y;
+			for (int c = 2; c >= 0; c--) {
+				for (int x = 0; x < sizeX; x++)
+					tileBuffer.putFloat(rgb[3 * (start + x) + c]);
+			}
+			if (sampleCounts) {
+				for (int x = 0; x < sizeX; x++)
+					tileBuffer.putInt(counts[start + x]);
+			}
+			if (variances) {
+				for (int x = 0; x < sizeX; x++)
+					tileBuffer.putFloat(vars[start + x]);
+			}
+		}
+		writeBuffer(tx, ty);
+	}
+
+	/**
+	 * Write every block of image to the file.
+	 */
+	public void writeImage(Image image) throws IOException {
+		for (int y = 0; y < height; y += tileHeight) {
+			for (int x = 0; x < width; x += tileWidth)
+				writeTile(image, x, y, Math.min(tileWidth, width - x), Math.min(tileHeight, height - y));
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	/**
+	 * Start the tile buffer with the header of tile (tx, ty), counted from the top left,
+	 * and limit it to the tile's size.
+	 */
+	private void startTile(int tx, int ty) {
+		int dataSize = tileHeight * columns(tx) * bytesPerPixel();
+		tileBuffer.clear();
+		tileBuffer.limit(TILE_HEADER_SIZE + dataSize);
+		tileBuffer.putInt(tx).putInt(ty).putInt(0).putInt(0).putInt(dataSize);
+	}
+
+	private void writeBuffer(int tx, int ty) throws IOException {
+		tileBuffer.flip();
+		out.position(tileOffsets[tx + tilesX * ty]);
+		out.write(tileBuffer);
+	}
+
+	/** The number of pixel columns in the tiles of column tx, which is less than tileWidth at the right edge */
+	private int columns(int tx) {
+		return Math.min(tileWidth, width - tx * tileWidth);
+	}
+
+	private int bytesPerPixel() {
+		return 4 * (3 + (sampleCounts ? 1 : 0) + (variances ? 1 : 0));
+	}
+}
@@ -2,7 +2,7 @@ package cs4620.ray2.accel;
 
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
-import cs4620.ray2.surface.Surface;
+import cs4620.ray2.RenderContext;
 
 /**
  * A class representing an arbitrary data structure for accessing surfaces and intersecting
@@ -11,11 +11,11 @@ import cs4620.ray2.surface.Surface;
  */
 public interface AccelStruct {
 	/**
-	 * Given a set of surfaces, perform the necessary initialization steps to prepare for future
-	 * intersect() calls.
-	 * @param surfaces The surfaces of the scene.
+	 * Given a set of primitives, perform the necessary initialization steps to prepare for future
+	 * intersect() calls. The structure may reorder the primitives.
+	 * @param prims The triangles and other surfaces of the scene.
 	 */
-	void build(Surface[] surfaces);
+	void build(PrimitiveSet prims);
 	
 	/**
 	 * Given a ray, intersect it surfaces in the scene. This will be called many times by the ray tracer,
@@ -26,7 +26,39 @@ public interface AccelStruct {
 	 * @param rayIn The ray that is intersected with the scene.
 	 * @param anyIntersection A boolean that is true if the caller is only concerned with finding any
 	 * ray-surface intersection rather than the first; otherwise, the first intersection must be recorded.
+	 * @param ctx Scratch space of the calling thread.
 	 * @return true if the ray intersects a surface in the scene; false otherwise.
 	 */
-	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection);
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection, RenderContext ctx);
+	
+	/**
+	 * Check whether anything lies on a ray between ray.start and ray.end. This is
+	 * the query used for shadow rays: it stops at the first hit found, in whatever
+	 * order, and never fills out an intersection record. When it returns true the
+	 * blocking primitive's index is left in ctx.occluder.
+	 * 
+	 * @param ray The ray that is tested; it is not modified.
+	 * @param ctx Scratch space of the calling thread.
+	 * @return true if the ray hits any primitive.
+	 */
+	public boolean occluded(Ray ray, RenderContext ctx);
+	
+	/**
+	 * Update the structure after its primitives have moved, i.e. after
+	 * {@link PrimitiveSet#update()}. The tree is kept and only its boxes are
+	 * recomputed, except where that has made it much slower than a new tree
+	 * would be; those parts are built again.
+	 */
+	public void refit();
+	
+	/**
+	 * @return The primitives this structure was built over.
+	 */
+	public PrimitiveSet getPrimitives();
+	
+	/**
+	 * @return Statistics about the structure after the last build or refit, or
+	 * null if it is not a tree.
+	 */
+	public BvhStats getStats();
 }
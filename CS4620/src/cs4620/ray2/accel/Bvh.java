@@ -1,12 +1,12 @@
 
 package cs4620.ray2.accel;
 
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
-import cs4620.ray2.surface.Surface;
+import cs4620.ray2.RenderContext;
 import egl.math.Vector3d;
 
 /**
@@ -15,16 +15,62 @@ import egl.math.Vector3d;
  * @author ss932, pramook
  */
 public class Bvh implements AccelStruct {   
-	/** A shared surfaces array that will be used across every node in the tree. */
-	private Surface[] surfaces;
-
-	/** A comparator class that can sort surfaces by x, y, or z coordinate.
-	 *  See the subclass declaration below for details.
+	/**
+	 * Subtrees over at least this many primitives are built as separate fork-join
+	 * tasks. Both builders only ever touch the part of the primitive order under
+	 * the node they are building, so sibling subtrees can be built at the same
+	 * time and the tree comes out exactly as a serial build would make it.
 	 */
-	static MyComparator cmp = new MyComparator();
+	static final int PARALLEL_THRESHOLD = 4096;
+	
+	/** The pool that runs the build tasks; its threads are daemons. */
+	static final ForkJoinPool BUILD_POOL = new ForkJoinPool();
+	
+	/** The primitives shared by every node in the tree. */
+	private PrimitiveSet prims;
+	
+	/*
+	 * Builder state: primitive bounding boxes and centers, and the order being built.
+	 * The median builder uses it during build(), both builders during refit().
+	 */
+	private double[] boxes;
+	private double[] centroids;
+	private int[] order;
 	
 	/** The root of the BVH tree. */
 	BvhNode root;
+	
+	/**
+	 * How the tree is built: "median" splits every node at the median surface along
+	 * its widest axis, "sah" picks splits with a binned Surface Area Heuristic.
+	 */
+	protected String builder = "median";
+	public void setBuilder(String builder) { this.builder = builder.trim().toLowerCase(); }
+	public String getBuilder() { return builder; }
+	
+	/** The number of bins per axis used by the SAH builder. */
+	protected int bins = 16;
+	public void setBins(int bins) { this.bins = bins; }
+	public int getBins() { return bins; }
+	
+	/**
+	 * The largest leaf either builder will create; the SAH builder may exceed it
+	 * only when the surfaces cannot be separated.
+	 */
+	protected int maxLeafSize = 10;
+	public void setMaxLeafSize(int maxLeafSize) { this.maxLeafSize = maxLeafSize; }
+	public int getMaxLeafSize() { return maxLeafSize; }
+	
+	/**
+	 * refit() rebuilds the subtrees whose SAH cost has grown by more than this
+	 * factor since they were built.
+	 */
+	protected double rebuildThreshold = 1.5;
+	public void setRebuildThreshold(double rebuildThreshold) { this.rebuildThreshold = rebuildThreshold; }
+	
+	/** Statistics about the tree from the last call to build() or refit(). */
+	protected BvhStats stats;
+	public BvhStats getStats() { return stats; }
 
 	public Bvh() { }
 
@@ -36,136 +82,255 @@ public class Bvh implements AccelStruct {
 	 * @param outRecord the output IntersectionRecord
 	 * @param ray the ray to intersect
 	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @param ctx scratch space of the calling thread
 	 * @return true if and intersection is found.
 	 */
-	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
-		return intersectHelper(root, outRecord, rayIn, anyIntersection);
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection, RenderContext ctx) {
+		// The ray is shortened to the closest hit while searching and restored afterwards
+		double end = rayIn.end;
+		boolean ret = intersectHelper(root, outRecord, rayIn, anyIntersection, ctx);
+		rayIn.end = end;
+		return ret;
+	}
+	
+	public boolean occluded(Ray ray, RenderContext ctx) {
+		return occludedHelper(root, ray, ctx);
+	}
+	
+	/**
+	 * A helper method to occluded(). Returns as soon as anything under node blocks the ray.
+	 */
+	private boolean occludedHelper(BvhNode node, Ray ray, RenderContext ctx) {
+		if (!node.intersects(ray)) {
+			return false;
+		}
+		else if (node.isLeaf()) {
+			for (int i = node.surfaceIndexStart; i < node.surfaceIndexEnd; i++) {
+				if (prims.intersect(i, null, ray, ctx)) {
+					ctx.occluder = i;
+					return true;
+				}
+			}
+			return false;
+		}
+		return occludedHelper(node.child[0], ray, ctx) || occludedHelper(node.child[1], ray, ctx);
+	}
+	
+	public PrimitiveSet getPrimitives() {
+		return prims;
 	}
 	
 	/**
 	 * A helper method to the main intersect method. It finds the intersection with
-	 * any of the surfaces under the given BVH node.  
+	 * any of the surfaces under the given BVH node. Whenever a hit is found, rayIn.end
+	 * is moved up to it, so anything found later is closer.
 	 *   
 	 * @param node a BVH node that we would like to find an intersection with surfaces under it
 	 * @param outRecord the output InsersectionMethod
 	 * @param rayIn the ray to intersect
 	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @param ctx scratch space of the calling thread
 	 * @return true if an intersection is found with any surface under the given node
 	 */
-	private boolean intersectHelper(BvhNode node, IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection)
+	private boolean intersectHelper(BvhNode node, IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection, RenderContext ctx)
 	{
-		// TODO#A7: fill in this function.
-		// Hint: For a leaf node, use a normal linear search. Otherwise, search in the left and right children.
-		// Another hint: save time by checking if the ray intersects the node first before checking the childrens.
-		boolean ret = false;
-		boolean intersectsNode = node.intersects(rayIn);
-		
-		if (!intersectsNode) {
-			return ret;
+		if (!node.intersects(rayIn)) {
+			return false;
 		}
-		else if (node.child[0] == null && node.child[1] == null) {
+		else if (node.isLeaf()) {
+			boolean ret = false;
+			IntersectionRecord tmp = ctx.hitRecord;
 			for (int i = node.surfaceIndexStart; i < node.surfaceIndexEnd; i++) {
-				Surface current = surfaces[i];
-				IntersectionRecord tempRecord = new IntersectionRecord();
-				boolean intersected = current.intersect(tempRecord, rayIn);
-				if (intersected && anyIntersection) {
-					outRecord.set(tempRecord);
-					return true;
-				}
-				else if (intersected) {
-					if (!ret) {
-						outRecord.set(tempRecord);
-					}
-					else if (tempRecord.t < outRecord.t) {
-						outRecord.set(tempRecord);
-					}
+				if (prims.intersect(i, tmp, rayIn, ctx) && tmp.t <= rayIn.end) {
+					outRecord.set(tmp);
 					ret = true;
+					if (anyIntersection)
+						return true;
+					rayIn.end = tmp.t;
 				}
 			}
+			return ret;
 		}
 		else {
-			IntersectionRecord out1 = new IntersectionRecord();
-			//out1.set(outRecord);
-			IntersectionRecord out2 = new IntersectionRecord();
-			//out2.set(outRecord);
-			boolean left = intersectHelper(node.child[0], out1, rayIn, anyIntersection);
-			boolean right = intersectHelper(node.child[1], out2, rayIn, anyIntersection);
-//			boolean left = intersectHelper(node.child[0], outRecord, rayIn, anyIntersection);
-//			boolean right = intersectHelper(node.child[1], outRecord, rayIn, anyIntersection);
-			ret = left || right;
-			if (left && right) {
-				if (out1.t < out2.t) {
-					outRecord.set(out1);
-				}
-				else {
-					outRecord.set(out2);
-				}
-			}
-			else if (left) {
-				outRecord.set(out1);
-			}
-			else if (right) {
-				outRecord.set(out2);
-			}
+			boolean left = intersectHelper(node.child[0], outRecord, rayIn, anyIntersection, ctx);
+			if (left && anyIntersection)
+				return true;
+			boolean right = intersectHelper(node.child[1], outRecord, rayIn, anyIntersection, ctx);
+			return left || right;
 		}
-		return ret;
 	}
 
 
 	@Override
-	public void build(Surface[] surfaces) {
-		this.surfaces = surfaces;
-		root = createTree(0, surfaces.length);
+	public void build(PrimitiveSet prims) {
+		this.prims = prims;
+		prims.prepare();
+		if (builder.equals("sah")) {
+			root = new SahBuilder(prims, bins, maxLeafSize).build();
+		}
+		else if (builder.equals("median")) {
+			boxes = prims.getBounds();
+			centroids = SahBuilder.centroids(boxes);
+			order = SahBuilder.identity(prims.size());
+			root = BUILD_POOL.invoke(subtree(0, order.length));
+			prims.reorder(order);
+			boxes = centroids = null;
+			order = null;
+		}
+		else
+			throw new Error("Unknown BVH builder: " + builder);
+		
+		updateBounds(root, new double[6]);
+		markBuilt(root);
+		stats = BvhStats.compute(root);
+	}
+	
+	/**
+	 * Recompute the boxes bottom-up for the primitives' new positions, then
+	 * rebuild every subtree, topmost first, whose SAH cost grew past
+	 * rebuildThreshold times its cost when it was built.
+	 */
+	public void refit() {
+		double[] box = new double[6];
+		updateBounds(root, box);
+		int[] rebuilt = new int[1];
+		root = rebuildDegraded(root, rebuilt, box);
+		boxes = centroids = null;
+		order = null;
+		stats = BvhStats.compute(root);
+	}
+	
+	/**
+	 * Set the boxes under node to enclose their primitives and compute sahCost.
+	 * @param box Scratch space for the box of one primitive
+	 * @return The SAH cost of the subtree
+	 */
+	private double updateBounds(BvhNode node, double[] box) {
+		if (node.isLeaf()) {
+			node.minBound.set(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+			node.maxBound.set(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+			for (int i = node.surfaceIndexStart; i < node.surfaceIndexEnd; i++) {
+				prims.getBounds(i, box, 0);
+				node.minBound.x = Math.min(node.minBound.x, box[0]);
+				node.minBound.y = Math.min(node.minBound.y, box[1]);
+				node.minBound.z = Math.min(node.minBound.z, box[2]);
+				node.maxBound.x = Math.max(node.maxBound.x, box[3]);
+				node.maxBound.y = Math.max(node.maxBound.y, box[4]);
+				node.maxBound.z = Math.max(node.maxBound.z, box[5]);
+			}
+			return node.sahCost = SahBuilder.INTERSECTION_COST * (node.surfaceIndexEnd - node.surfaceIndexStart);
+		}
+		
+		BvhNode left = node.child[0], right = node.child[1];
+		double leftCost = updateBounds(left, box);
+		double rightCost = updateBounds(right, box);
+		node.minBound.set(left.minBound);
+		node.maxBound.set(left.maxBound);
+		node.minBound.x = Math.min(node.minBound.x, right.minBound.x);
+		node.minBound.y = Math.min(node.minBound.y, right.minBound.y);
+		node.minBound.z = Math.min(node.minBound.z, right.minBound.z);
+		node.maxBound.x = Math.max(node.maxBound.x, right.maxBound.x);
+		node.maxBound.y = Math.max(node.maxBound.y, right.maxBound.y);
+		node.maxBound.z = Math.max(node.maxBound.z, right.maxBound.z);
+		
+		double area = area(node);
+		if (area > 0)
+			node.sahCost = SahBuilder.TRAVERSAL_COST + (area(left) * leftCost + area(right) * rightCost) / area;
+		else
+			node.sahCost = SahBuilder.TRAVERSAL_COST + leftCost + rightCost;
+		return node.sahCost;
+	}
+	
+	private static double area(BvhNode node) {
+		double dx = node.maxBound.x - node.minBound.x;
+		double dy = node.maxBound.y - node.minBound.y;
+		double dz = node.maxBound.z - node.minBound.z;
+		return dx * dy + dy * dz + dz * dx;
+	}
+	
+	/**
+	 * Record the current SAH costs under node as the costs the subtree was built with.
+	 */
+	private void markBuilt(BvhNode node) {
+		node.builtSahCost = node.sahCost;
+		if (!node.isLeaf()) {
+			markBuilt(node.child[0]);
+			markBuilt(node.child[1]);
+		}
+	}
+	
+	/**
+	 * Replace the topmost degraded subtrees under node by new ones.
+	 * @param rebuilt rebuilt[0] is incremented for every subtree that is rebuilt
+	 * @param box Scratch space for updateBounds()
+	 * @return node, or the subtree that replaces it
+	 */
+	private BvhNode rebuildDegraded(BvhNode node, int[] rebuilt, double[] box) {
+		if (node.isLeaf())
+			return node;
+		if (node.sahCost > rebuildThreshold * node.builtSahCost) {
+			rebuilt[0]++;
+			BvhNode subtree = buildRange(node.surfaceIndexStart, node.surfaceIndexEnd);
+			updateBounds(subtree, box);
+			markBuilt(subtree);
+			return subtree;
+		}
+		node.child[0] = rebuildDegraded(node.child[0], rebuilt, box);
+		node.child[1] = rebuildDegraded(node.child[1], rebuilt, box);
+		return node;
+	}
+	
+	/**
+	 * Build a new subtree over primitives start to end-1 with the current builder,
+	 * reordering only those primitives. The boxes and centers of the primitives
+	 * are computed for the first range rebuilt by a refit and shared by the rest:
+	 * the ranges never overlap, so each one still finds its own entries as they were.
+	 */
+	private BvhNode buildRange(int start, int end) {
+		if (boxes == null) {
+			boxes = prims.getBounds();
+			centroids = SahBuilder.centroids(boxes);
+			order = SahBuilder.identity(prims.size());
+		}
+		if (builder.equals("sah"))
+			return new SahBuilder(prims, boxes, centroids, order, bins, maxLeafSize).build(start, end);
+		
+		BvhNode node = BUILD_POOL.invoke(subtree(start, end));
+		prims.reorder(start, end, order);
+		return node;
 	}
 	
 	/**
 	 * Create a BVH [sub]tree.  This tree node will be responsible for storing
-	 * and processing surfaces[start] to surfaces[end-1]. If the range is small enough,
-	 * this will create a leaf BvhNode. Otherwise, the surfaces will be sorted according
-	 * to the axis of the axis-aligned bounding box that is widest, and split into 2
-	 * children.
+	 * and processing primitives order[start] to order[end-1]. If the range is small enough,
+	 * this will create a leaf BvhNode. Otherwise, the primitives will be split at
+	 * the median along the axis of the axis-aligned bounding box that is widest,
+	 * into 2 children.
 	 * 
-	 * @param start The start index of surfaces
-	 * @param end The end index of surfaces
+	 * @param start The start index of primitives
+	 * @param end The end index of primitives
 	 */
 	private BvhNode createTree(int start, int end) {
-		// TODO#A7: fill in this function.
-
 		// ==== Step 1 ====
-		// Find out the BIG bounding box enclosing all the surfaces in the range [start, end)
+		// Find out the BIG bounding box enclosing all the primitives in the range [start, end)
 		// and store them in minB and maxB.
-		// Hint: To find the bounding box for each surface, use getMinBound() and getMaxBound() */
 		Vector3d minB = new Vector3d(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY); 
 		Vector3d maxB = new Vector3d(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
 
 		for(int i = start; i < end; i++) {
-			Surface current = surfaces[i];
-			Vector3d currentMinB = current.getMinBound();
-			Vector3d currentMaxB = current.getMaxBound();
-			if (currentMinB.x < minB.x) {
-				minB.x = currentMinB.x;
-			}
-			if (currentMinB.y < minB.y) {
-				minB.y = currentMinB.y;
-			}
-			if (currentMinB.z < minB.z) {
-				minB.z = currentMinB.z;
-			}
-			if (currentMaxB.x > maxB.x) {
-				maxB.x = currentMaxB.x;
-			}
-			if (currentMaxB.y > maxB.y) {
-				maxB.y = currentMaxB.y;
-			}
-			if (currentMaxB.z > maxB.z) {
-				maxB.z = currentMaxB.z;
-			}
+			int b = 6 * order[i];
+			minB.x = Math.min(minB.x, boxes[b]);
+			minB.y = Math.min(minB.y, boxes[b+1]);
+			minB.z = Math.min(minB.z, boxes[b+2]);
+			maxB.x = Math.max(maxB.x, boxes[b+3]);
+			maxB.y = Math.max(maxB.y, boxes[b+4]);
+			maxB.z = Math.max(maxB.z, boxes[b+5]);
 		}
 
 		// ==== Step 2 ====
 		// Check for the base case. 
-		// If the range [start, end) is small enough (e.g. less than or equal to 10), just return a new leaf node.
-		if (end - start <= 10) {
+		// If the range [start, end) is small enough (no more than maxLeafSize), just return a new leaf node.
+		if (end - start <= Math.max(1, maxLeafSize)) {
 			return new BvhNode(minB, maxB, null, null, start, end);
 		}
 
@@ -175,51 +340,73 @@ public class Bvh implements AccelStruct {
 		double xDif = maxB.x - minB.x;
 		double yDif = maxB.y - minB.y;
 		double zDif = maxB.z - minB.z;
+		int widestDim;
 		if (xDif <= yDif && zDif <= yDif) {
-			cmp.setIndex(1);
+			widestDim = 1;
 		}
 		else if (xDif <= zDif && yDif <= zDif) {
-			cmp.setIndex(2);
+			widestDim = 2;
 		}
 		else {
-			cmp.setIndex(0);
+			widestDim = 0;
 		}
 
 		// ==== Step 4 ====
-		// Sort surfaces according to the widest dimension.
-		Arrays.sort(surfaces, start, end, cmp);
+		// Partition the primitives around the median of the widest dimension.
+		int mid = (start + end)/2;
+		select(start, end, mid, widestDim);
 
 		// ==== Step 5 ====
 		// Recursively create left and right children.
-		int mid = (start + end)/2;
-		
-		BvhNode left = createTree(start, mid);
-		BvhNode right = createTree(mid, end);
+		BvhNode left, right;
+		if (end - start >= PARALLEL_THRESHOLD) {
+			RecursiveTask<BvhNode> leftTask = subtree(start, mid);
+			leftTask.fork();
+			right = createTree(mid, end);
+			left = leftTask.join();
+		}
+		else {
+			left = createTree(start, mid);
+			right = createTree(mid, end);
+		}
 		
 		return new BvhNode(minB, maxB, left, right, start, end);
 	}
-}
-
-/**
- * A subclass that compares the average position two surfaces by a given
- * axis. Use the setIndex(i) method to select which axis should be considered.
- * i=0 -> x-axis, i=1 -> y-axis, and i=2 -> z-axis.  
- *
- */
-class MyComparator implements Comparator<Surface> {
-	int index;
-	public MyComparator() {  }
-
-	public void setIndex(int index) {
-		this.index = index;
+	
+	/**
+	 * @return A task that runs createTree(start, end) in the build pool
+	 */
+	private RecursiveTask<BvhNode> subtree(final int start, final int end) {
+		return new RecursiveTask<BvhNode>() {
+			@Override
+			protected BvhNode compute() {
+				return createTree(start, end);
+			}
+		};
 	}
-
-	public int compare(Surface o1, Surface o2) {
-		double v1 = o1.getAveragePosition().get(index);
-		double v2 = o2.getAveragePosition().get(index);
-		if(v1 < v2) return 1;
-		if(v1 > v2) return -1;
-		return 0;
+	
+	/**
+	 * Reorder order[start..end-1] so that order[k] holds the primitive whose center
+	 * would be there if the range were sorted along axis, with no larger center
+	 * before it and no smaller one after it.
+	 */
+	private void select(int start, int end, int k, int axis) {
+		int lo = start, hi = end - 1;
+		while (lo < hi) {
+			double pivot = centroids[3*order[(lo + hi) >>> 1] + axis];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (centroids[3*order[i] + axis] < pivot) i++;
+				while (centroids[3*order[j] + axis] > pivot) j--;
+				if (i <= j) {
+					int t = order[i]; order[i] = order[j]; order[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) hi = j;
+			else if (k >= i) lo = i;
+			else return;
+		}
 	}
-
 }
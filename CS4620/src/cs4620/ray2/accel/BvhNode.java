@@ -33,6 +33,13 @@ public class BvhNode {
 	 */
 	public int surfaceIndexEnd; 
 	
+	/**
+	 * The SAH cost of the subtree under this node relative to this node's box,
+	 * as of the last refit, and as of when the subtree was built. Refitting
+	 * compares the two to find subtrees that have become too slow.
+	 */
+	public double sahCost, builtSahCost;
+	
 	/**
 	 * Default constructor
 	 */
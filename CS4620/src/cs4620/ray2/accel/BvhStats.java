@@ -0,0 +1,75 @@
+package cs4620.ray2.accel;
+
+/**
+ * Summary of the quality of a built BVH: its size, depth, leaf sizes, and the
+ * Surface Area Heuristic cost of the whole tree. The SAH cost is the expected
+ * cost of tracing a random ray that hits the root box, measured with the same
+ * constants the SAH builder uses, so lower is better.
+ *
+ * @see SahBuilder
+ */
+public class BvhStats {
+	/** Leaves holding this many surfaces or more share the last histogram bucket. */
+	public static final int HISTOGRAM_SIZE = 16;
+	
+	public int interiorNodes;
+	public int leafNodes;
+	public int maxDepth;
+	public double sahCost;
+	
+	/** leafHistogram[k] is the number of leaves holding k surfaces. */
+	public final int[] leafHistogram = new int[HISTOGRAM_SIZE + 1];
+	
+	/**
+	 * Compute the statistics of the tree under root.
+	 * @param root The root of a BVH
+	 * @return The statistics of the tree
+	 */
+	public static BvhStats compute(BvhNode root) {
+		BvhStats stats = new BvhStats();
+		double rootArea = area(root);
+		stats.visit(root, 1, rootArea > 0 ? 1.0 / rootArea : 0);
+		return stats;
+	}
+	
+	private void visit(BvhNode node, int depth, double invRootArea) {
+		maxDepth = Math.max(maxDepth, depth);
+		double p = area(node) * invRootArea;
+		if (node.isLeaf()) {
+			int count = node.surfaceIndexEnd - node.surfaceIndexStart;
+			leafNodes++;
+			leafHistogram[Math.min(count, HISTOGRAM_SIZE)]++;
+			sahCost += p * count * SahBuilder.INTERSECTION_COST;
+		}
+		else {
+			interiorNodes++;
+			sahCost += p * SahBuilder.TRAVERSAL_COST;
+			visit(node.child[0], depth + 1, invRootArea);
+			visit(node.child[1], depth + 1, invRootArea);
+		}
+	}
+	
+	private static double area(BvhNode node) {
+		double dx = node.maxBound.x - node.minBound.x;
+		double dy = node.maxBound.y - node.minBound.y;
+		double dz = node.maxBound.z - node.minBound.z;
+		if (!(dx >= 0 && dy >= 0 && dz >= 0)) return 0;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+	
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("BVH: ").append(interiorNodes).append(" interior nodes, ")
+		  .append(leafNodes).append(" leaves, depth ").append(maxDepth)
+		  .append(String.format(", SAH cost %.2f", sahCost));
+		sb.append("\n  leaf sizes:");
+		for(int k = 0; k <= HISTOGRAM_SIZE; k++) {
+			if (leafHistogram[k] == 0) continue;
+			sb.append(' ').append(k).append(k == HISTOGRAM_SIZE ? "+" : "").append(':').append(leafHistogram[k]);
+		}
+		return sb.toString();
+	}
+}
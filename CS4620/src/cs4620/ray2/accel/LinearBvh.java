@@ -0,0 +1,522 @@
+package cs4620.ray2.accel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
+
+/**
+ * A bounding volume hierarchy packed into flat primitive arrays. The tree is
+ * built exactly like a {@link Bvh} (median or SAH split) and then laid out in
+ * depth-first order, so a node's left child always directly follows it and only
+ * the index of the right child has to be stored.
+ * 
+ * Traversal uses an explicit stack instead of recursion, always descends into
+ * the nearer child first, and shortens the ray every time a hit is found so
+ * that boxes further away than the closest hit so far are skipped entirely.
+ * The stack and scratch records come from the caller's {@link RenderContext},
+ * so a traversal never allocates.
+ *
+ * If a cache directory is set, the built structure is saved there and loaded
+ * again instead of being rebuilt, see {@link #setCacheDir(String)}.
+ */
+public class LinearBvh implements AccelStruct {
+	
+	/** The primitives, in the order the leaves refer to them. */
+	private PrimitiveSet prims;
+	
+	/** Node bounding boxes, 6 doubles per node: min x, y, z followed by max x, y, z. */
+	private double[] bounds;
+	
+	/**
+	 * Node links, 2 ints per node. For interior node i this is the index of its
+	 * right child (the left child is i+1) and INTERIOR. For a leaf it is the index
+	 * of its first primitive and the number of primitives it holds, which is 0
+	 * only for the root of an empty scene.
+	 */
+	private int[] links;
+	private static final int INTERIOR = -1;
+	
+	/** The depth of the tree, which bounds the size of the traversal stack. */
+	private int depth;
+	
+	/** The tree used to build this structure; its build options are exposed below. */
+	private final Bvh tree = new Bvh();
+	public void setBuilder(String builder) { tree.setBuilder(builder); }
+	public void setBins(int bins) { tree.setBins(bins); }
+	public void setMaxLeafSize(int maxLeafSize) { tree.setMaxLeafSize(maxLeafSize); }
+	
+	/** refit() builds the whole tree again once its SAH cost has grown by more than this factor. */
+	protected double rebuildThreshold = 1.5;
+	public void setRebuildThreshold(double rebuildThreshold) { this.rebuildThreshold = rebuildThreshold; }
+	
+	/** The SAH cost of the tree when it was built. */
+	private double builtSahCost;
+	
+	/** Statistics about the tree from the last call to build() or refit(). */
+	private BvhStats stats;
+	public BvhStats getStats() { return stats; }
+	
+	/**
+	 * The directory built structures are cached in, or null to always build.
+	 * A cached structure is used only for primitives made the same way as the ones
+	 * it was built over (see {@link PrimitiveSet#digest(MessageDigest)}: the same
+	 * mesh files under the same transformations, and other surfaces with the same
+	 * boxes, in the same order) with the same build options. The file holds the
+	 * reordered triangles as well, so loading it skips working them out, and the
+	 * key is found without looking at them.
+	 */
+	protected String cacheDir = null;
+	public void setCacheDir(String cacheDir) { this.cacheDir = cacheDir; }
+	public String getCacheDir() { return cacheDir; }
+	
+	/*
+	 * Cache file layout, in the machine's byte order: a header of 6 ints and the SAH cost,
+	 * then bounds, links, primitive order and the triangles as PrimitiveSet.writeTriangles() puts them.
+	 */
+	private static final int CACHE_MAGIC = 0x4c425648;
+	private static final int CACHE_VERSION = 4;
+	private static final int CACHE_HEADER_SIZE = 6 * 4 + 8;
+	
+	public LinearBvh() { }
+	
+	/**
+	 * Build the structure over prims, or load it from the cache directory if it
+	 * was built over the same primitives before.
+	 */
+	@Override
+	public void build(PrimitiveSet prims) {
+		if (cacheDir == null) {
+			buildTree(prims);
+			return;
+		}
+		File cache = new File(cacheDir, cacheKey(prims) + ".lbvh");
+		if (cache.exists() && readCache(cache, prims)) {
+			System.out.println("Loaded BVH from " + cache.getPath());
+			return;
+		}
+		int[] before = prims.getOriginalIndices();
+		buildTree(prims);
+		writeCache(cache, before);
+	}
+	
+	/**
+	 * Build the tree over prims and lay it out in the arrays.
+	 */
+	private void buildTree(PrimitiveSet prims) {
+		tree.build(prims);
+		this.prims = prims;
+		
+		BvhStats stats = tree.getStats();
+		int numNodes = stats.interiorNodes + stats.leafNodes;
+		bounds = new double[6 * numNodes];
+		links = new int[2 * numNodes];
+		depth = stats.maxDepth;
+		flatten(tree.root, 0);
+		builtSahCost = updateBounds();
+		this.stats = computeStats(builtSahCost);
+		
+		// The object tree is no longer needed
+		tree.root = null;
+	}
+	
+	/**
+	 * Recompute the boxes for the primitives' new positions. The nodes can only
+	 * be laid out as a whole, so if the tree has become too slow it is built again.
+	 */
+	public void refit() {
+		double cost = updateBounds();
+		if (cost > rebuildThreshold * builtSahCost)
+			buildTree(prims);
+		else
+			stats = computeStats(cost);
+	}
+	
+	/**
+	 * @param sahCost The SAH cost of the tree as computed by updateBounds()
+	 * @return The statistics of the tree as it is laid out in the arrays
+	 */
+	private BvhStats computeStats(double sahCost) {
+		BvhStats s = new BvhStats();
+		int numNodes = links.length / 2;
+		int[] level = new int[numNodes];
+		level[0] = 1;
+		for (int node = 0; node < numNodes; node++) {
+			s.maxDepth = Math.max(s.maxDepth, level[node]);
+			int count = links[2*node+1];
+			if (count != INTERIOR) {
+				s.leafNodes++;
+				s.leafHistogram[Math.min(count, BvhStats.HISTOGRAM_SIZE)]++;
+			}
+			else {
+				s.interiorNodes++;
+				level[node+1] = level[links[2*node]] = level[node] + 1;
+			}
+		}
+		s.sahCost = sahCost;
+		return s;
+	}
+	
+	/**
+	 * Set every node's box to enclose its primitives. Children always come after
+	 * their parent, so going through the nodes backwards handles them first.
+	 * @return The SAH cost of the tree
+	 */
+	private double updateBounds() {
+		int numNodes = links.length / 2;
+		double[] cost = new double[numNodes];
+		double[] box = new double[6];
+		for (int node = numNodes - 1; node >= 0; node--) {
+			int b = 6 * node;
+			int count = links[2*node+1];
+			if (count != INTERIOR) {
+				for (int k = 0; k < 3; k++) {
+					bounds[b+k] = Double.POSITIVE_INFINITY;
+					bounds[b+k+3] = Double.NEGATIVE_INFINITY;
+				}
+				int first = links[2*node];
+				for (int i = first; i < first + count; i++)
+					grow(b, i, box);
+				cost[node] = SahBuilder.INTERSECTION_COST * count;
+			}
+			else {
+				int left = node + 1, right = links[2*node];
+				for (int k = 0; k < 3; k++) {
+					bounds[b+k] = Math.min(bounds[6*left+k], bounds[6*right+k]);
+					bounds[b+k+3] = Math.max(bounds[6*left+k+3], bounds[6*right+k+3]);
+				}
+				double area = SahBuilder.surfaceArea(bounds, b);
+				if (area > 0)
+					cost[node] = SahBuilder.TRAVERSAL_COST + (SahBuilder.surfaceArea(bounds, 6*left) * cost[left]
+							+ SahBuilder.surfaceArea(bounds, 6*right) * cost[right]) / area;
+				else
+					cost[node] = SahBuilder.TRAVERSAL_COST + cost[left] + cost[right];
+			}
+		}
+		return cost[0];
+	}
+	
+	/**
+	 * @return A hex digest of the build options and of what prims are made from
+	 */
+	private String cacheKey(PrimitiveSet prims) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error("SHA-1 is not available", e);
+		}
+		digest.update((CACHE_VERSION + " " + tree.getBuilder() + " " + tree.getBins() + " " + tree.getMaxLeafSize()).getBytes());
+		prims.digest(digest);
+		
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest())
+			key.append(String.format("%02x", b));
+		return key.toString();
+	}
+	
+	/**
+	 * Load the structure and the reordered triangles from a cache file by mapping
+	 * it into memory. prims must be newly created.
+	 * @return false if the file is not a usable cache for prims
+	 */
+	private boolean readCache(File file, PrimitiveSet prims) {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			buf.order(ByteOrder.nativeOrder());
+			if (buf.getInt() != CACHE_MAGIC || buf.getInt() != CACHE_VERSION || buf.getInt() != prims.size())
+				return false;
+			int numNodes = buf.getInt();
+			int newDepth = buf.getInt();
+			buf.getInt();
+			double cost = buf.getDouble();
+			if (channel.size() != cacheSize(numNodes, prims))
+				return false;
+			
+			double[] newBounds = new double[6 * numNodes];
+			int[] newLinks = new int[2 * numNodes];
+			int[] order = new int[prims.size()];
+			buf.asDoubleBuffer().get(newBounds);
+			buf.position(buf.position() + 48 * numNodes);
+			buf.asIntBuffer().get(newLinks);
+			buf.position(buf.position() + 8 * numNodes);
+			buf.asIntBuffer().get(order);
+			buf.position(buf.position() + 4 * order.length);
+			
+			prims.load(order, buf);
+			this.prims = prims;
+			bounds = newBounds;
+			links = newLinks;
+			depth = newDepth;
+			builtSahCost = cost;
+			stats = computeStats(cost);
+			return true;
+		} catch (IOException e) {
+			System.out.println("Could not read BVH cache " + file.getPath() + ": " + e.getMessage());
+			return false;
+		}
+	}
+	
+	/**
+	 * Save the structure to a cache file. The file is written under another name
+	 * and then renamed, so a cache file is never seen half written.
+	 * @param before The original indices of the primitives before they were
+	 * reordered by the build
+	 */
+	private void writeCache(File file, int[] before) {
+		// The order in which the build left the primitives, relative to the order they came in
+		int[] position = new int[before.length];
+		for (int i = 0; i < before.length; i++)
+			position[before[i]] = i;
+		int[] after = prims.getOriginalIndices();
+		int[] order = new int[after.length];
+		for (int i = 0; i < after.length; i++)
+			order[i] = position[after[i]];
+		
+		int numNodes = links.length / 2;
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tmp = new File(dir, file.getName() + ".tmp");
+		dir.mkdirs();
+		try {
+			try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+				long size = cacheSize(numNodes, prims);
+				if (size > Integer.MAX_VALUE)
+					throw new IOException("the structure is too large to map");
+				raf.setLength(size);
+				MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+				buf.order(ByteOrder.nativeOrder());
+				buf.putInt(CACHE_MAGIC).putInt(CACHE_VERSION).putInt(order.length);
+				buf.putInt(numNodes).putInt(depth).putInt(0);
+				buf.putDouble(builtSahCost);
+				buf.asDoubleBuffer().put(bounds);
+				buf.position(buf.position() + 48 * numNodes);
+				buf.asIntBuffer().put(links);
+				buf.position(buf.position() + 8 * numNodes);
+				buf.asIntBuffer().put(order);
+				buf.position(buf.position() + 4 * order.length);
+				prims.writeTriangles(buf);
+				buf.force();
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file))
+					throw new IOException("cannot rename " + tmp.getPath());
+			}
+			System.out.println("Saved BVH to " + file.getPath());
+		} catch (IOException e) {
+			tmp.delete();
+			System.out.println("Could not write BVH cache " + file.getPath() + ": " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * @return The size of the cache file of a structure with numNodes nodes over prims
+	 */
+	private static long cacheSize(int numNodes, PrimitiveSet prims) {
+		return CACHE_HEADER_SIZE + 56L * numNodes + 4L * prims.size() + prims.triangleDataSize();
+	}
+	
+	/**
+	 * Grow the box at bounds[b..b+5] to enclose primitive i.
+	 * @param box Scratch space for the primitive's box
+	 */
+	private void grow(int b, int i, double[] box) {
+		prims.getBounds(i, box, 0);
+		for (int k = 0; k < 3; k++) {
+			bounds[b+k] = Math.min(bounds[b+k], box[k]);
+			bounds[b+k+3] = Math.max(bounds[b+k+3], box[k+3]);
+		}
+	}
+	
+	/**
+	 * Write node and its subtree into the arrays starting at index.
+	 * @return The index after the last node written
+	 */
+	private int flatten(BvhNode node, int index) {
+		int b = 6 * index;
+		bounds[b] = node.minBound.x;
+		bounds[b+1] = node.minBound.y;
+		bounds[b+2] = node.minBound.z;
+		bounds[b+3] = node.maxBound.x;
+		bounds[b+4] = node.maxBound.y;
+		bounds[b+5] = node.maxBound.z;
+		
+		if (node.isLeaf()) {
+			links[2*index] = node.surfaceIndexStart;
+			links[2*index+1] = node.surfaceIndexEnd - node.surfaceIndexStart;
+			return index + 1;
+		}
+		int right = flatten(node.child[0], index + 1);
+		links[2*index] = right;
+		links[2*index+1] = INTERIOR;
+		return flatten(node.child[1], right);
+	}
+	
+	/**
+	 * Set outRecord to the first intersection of ray with the scene. Return true
+	 * if there was an intersection and false otherwise. If no intersection was
+	 * found outRecord is unchanged.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param rayIn the ray to intersect
+	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @param ctx scratch space of the calling thread
+	 * @return true if and intersection is found.
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection, RenderContext ctx) {
+		int[] stack = ctx.getStack(depth);
+		double[] dist = ctx.getStackDist(depth);
+		IntersectionRecord tmp = ctx.hitRecord;
+		
+		double ox = rayIn.origin.x, oy = rayIn.origin.y, oz = rayIn.origin.z;
+		double idx = 1.0 / rayIn.direction.x;
+		double idy = 1.0 / rayIn.direction.y;
+		double idz = 1.0 / rayIn.direction.z;
+		
+		// The ray is shortened to the closest hit while searching and restored afterwards
+		double end = rayIn.end;
+		boolean hit = false;
+		
+		int top = 0;
+		int node = 0;
+		if (slab(0, ox, oy, oz, idx, idy, idz, rayIn.start, rayIn.end) == Double.POSITIVE_INFINITY)
+			return false;
+		
+		while (true) {
+			int count = links[2*node+1];
+			if (count != INTERIOR) {
+				// Leaf: test every primitive
+				int first = links[2*node];
+				for (int i = first; i < first + count; i++) {
+					if (prims.intersect(i, tmp, rayIn, ctx) && tmp.t <= rayIn.end) {
+						hit = true;
+						outRecord.set(tmp);
+						if (anyIntersection) {
+							rayIn.end = end;
+							return true;
+						}
+						rayIn.end = tmp.t;
+					}
+				}
+			}
+			else {
+				// Interior: go to the nearer child and save the other one for later
+				int left = node + 1;
+				int right = links[2*node];
+				double tLeft = slab(left, ox, oy, oz, idx, idy, idz, rayIn.start, rayIn.end);
+				double tRight = slab(right, ox, oy, oz, idx, idy, idz, rayIn.start, rayIn.end);
+				if (tLeft != Double.POSITIVE_INFINITY) {
+					if (tRight != Double.POSITIVE_INFINITY) {
+						if (tRight < tLeft) {
+							dist[top] = tLeft;
+							stack[top++] = left;
+							node = right;
+						}
+						else {
+							dist[top] = tRight;
+							stack[top++] = right;
+							node = left;
+						}
+					}
+					else {
+						node = left;
+					}
+					continue;
+				}
+				else if (tRight != Double.POSITIVE_INFINITY) {
+					node = right;
+					continue;
+				}
+			}
+			
+			// Pop the next node that is still in front of the closest hit
+			node = -1;
+			while (top > 0) {
+				top--;
+				if (dist[top] <= rayIn.end) {
+					node = stack[top];
+					break;
+				}
+			}
+			if (node < 0) break;
+		}
+		
+		rayIn.end = end;
+		return hit;
+	}
+	
+	public boolean occluded(Ray ray, RenderContext ctx) {
+		int[] stack = ctx.getStack(depth);
+		
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double idx = 1.0 / ray.direction.x;
+		double idy = 1.0 / ray.direction.y;
+		double idz = 1.0 / ray.direction.z;
+		double tMin = ray.start, tMax = ray.end;
+		
+		// Any hit will do, so children are visited in a fixed order
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (slab(node, ox, oy, oz, idx, idy, idz, tMin, tMax) == Double.POSITIVE_INFINITY)
+				continue;
+			int count = links[2*node+1];
+			if (count != INTERIOR) {
+				int first = links[2*node];
+				for (int i = first; i < first + count; i++) {
+					if (prims.intersect(i, null, ray, ctx)) {
+						ctx.occluder = i;
+						return true;
+					}
+				}
+			}
+			else {
+				stack[top++] = links[2*node];
+				stack[top++] = node + 1;
+			}
+		}
+		return false;
+	}
+	
+	public PrimitiveSet getPrimitives() {
+		return prims;
+	}
+	
+	/**
+	 * Intersect a ray with the box of a node.
+	 * @return The distance to where the ray enters the box, or positive infinity
+	 * if the ray misses it within [tMin, tMax]
+	 */
+	private double slab(int node, double ox, double oy, double oz, double idx, double idy, double idz, double tMin, double tMax) {
+		int b = 6 * node;
+		double t0 = (bounds[b] - ox) * idx;
+		double t1 = (bounds[b+3] - ox) * idx;
+		if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		
+		t0 = (bounds[b+1] - oy) * idy;
+		t1 = (bounds[b+4] - oy) * idy;
+		if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		
+		t0 = (bounds[b+2] - oz) * idz;
+		t1 = (bounds[b+5] - oz) * idz;
+		if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+		if (t0 > tMin) tMin = t0;
+		if (t1 < tMax) tMax = t1;
+		
+		return tMin <= tMax ? tMin : Double.POSITIVE_INFINITY;
+	}
+}
@@ -2,7 +2,7 @@ package cs4620.ray2.accel;
 
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
-import cs4620.ray2.surface.Surface;
+import cs4620.ray2.RenderContext;
 /**
  * Provide a fake AABB that performs a linear search.
  * 
@@ -10,8 +10,8 @@ import cs4620.ray2.surface.Surface;
  */
 public class NaiveAccelStruct implements AccelStruct {
 	
-	/** A shared surfaces array that will be used across every node in the tree */
-	private Surface []surfaces;
+	/** The primitives of the scene */
+	private PrimitiveSet prims;
 
 	public NaiveAccelStruct() { }
 	
@@ -23,29 +23,56 @@ public class NaiveAccelStruct implements AccelStruct {
 	 * @param outRecord the output IntersectionRecord
 	 * @param ray the ray to intersect
 	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @param ctx scratch space of the calling thread
 	 * @return true if and intersection is found.
 	 */
-	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection, RenderContext ctx) {
 		boolean ret = false;
-		IntersectionRecord tmp = new IntersectionRecord();
-		Ray ray = new Ray(rayIn.origin, rayIn.direction);
-		ray.start = rayIn.start;
-		ray.end = rayIn.end;
-		for(int i = 0; i < surfaces.length; i++) {
-			if(surfaces[i].intersect(tmp, ray) && tmp.t < ray.end ) {
-				if(anyIntersection) return true;
+		IntersectionRecord tmp = ctx.hitRecord;
+		// The ray is shortened to the closest hit while searching and restored afterwards
+		double end = rayIn.end;
+		for(int i = 0; i < prims.size(); i++) {
+			if(prims.intersect(i, tmp, rayIn, ctx) && tmp.t < rayIn.end ) {
+				if(anyIntersection) {
+					rayIn.end = end;
+					return true;
+				}
 				ret = true;
-				ray.end = tmp.t;
+				rayIn.end = tmp.t;
 				if(outRecord != null)
 					outRecord.set(tmp);
 			}
 		}
+		rayIn.end = end;
 		return ret;
 	}
 	
 	@Override
-	public void build(Surface[] surfaces) {
-		this.surfaces = surfaces;
+	public void build(PrimitiveSet prims) {
+		this.prims = prims;
+		prims.prepare();
+	}
+	
+	public void refit() {
+		// Nothing depends on where the primitives are
+	}
+	
+	public PrimitiveSet getPrimitives() {
+		return prims;
+	}
+	
+	public BvhStats getStats() {
+		return null;
+	}
+	
+	public boolean occluded(Ray ray, RenderContext ctx) {
+		for(int i = 0; i < prims.size(); i++) {
+			if(prims.intersect(i, null, ray, ctx)) {
+				ctx.occluder = i;
+				return true;
+			}
+		}
+		return false;
 	}
 }
 
@@ -0,0 +1,254 @@
+package cs4620.ray2.accel;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
+import cs4620.ray2.surface.Surface;
+import cs4620.ray2.surface.TriangleStore;
+import egl.math.Vector3d;
+
+/**
+ * Everything an acceleration structure is built over: the triangles of all
+ * meshes, kept in a {@link TriangleStore}, plus any other surfaces such as
+ * spheres and cylinders. Each of them is a primitive with an index in
+ * 0 .. size()-1, and an acceleration structure only deals with these indices.
+ *
+ * Building a structure may reorder the primitives with {@link #reorder(int[])}
+ * so that every node refers to a contiguous range of indices. It starts with
+ * {@link #prepare()}, since the triangles are only worked out when needed.
+ */
+public class PrimitiveSet {
+
+	/** The triangles of all meshes. */
+	private final TriangleStore triangles;
+
+	/** All other surfaces. */
+	private final Surface[] surfaces;
+
+	/**
+	 * What each primitive is: an index into triangles if it is at least 0,
+	 * otherwise the bitwise complement of an index into surfaces.
+	 */
+	private int[] ids;
+
+	/** The index each primitive had when the set was created. */
+	private int[] originalIndices;
+
+	/**
+	 * @param triangles The triangles of all meshes
+	 * @param surfaces All other surfaces
+	 */
+	public PrimitiveSet(TriangleStore triangles, Surface[] surfaces) {
+		this.triangles = triangles;
+		this.surfaces = surfaces;
+		ids = new int[triangles.size() + surfaces.length];
+		for (int i = 0; i < triangles.size(); i++)
+			ids[i] = i;
+		for (int i = 0; i < surfaces.length; i++)
+			ids[triangles.size() + i] = ~i;
+		originalIndices = new int[ids.length];
+		for (int i = 0; i < ids.length; i++)
+			originalIndices[i] = i;
+	}
+
+	/**
+	 * A set of surfaces without a triangle store.
+	 */
+	public PrimitiveSet(Surface[] surfaces) {
+		this(new TriangleStore(), surfaces);
+	}
+
+	/**
+	 * Fill in the triangles if that has not happened yet. Structures call this
+	 * before they look at the primitives, unless they load() them.
+	 */
+	public void prepare() {
+		triangles.fill();
+	}
+
+	/**
+	 * Feed everything the primitives are made from to a digest: the triangles'
+	 * meshes and the boxes of the other surfaces. Sets that were created alike
+	 * end up with the same primitives, so a structure built over one of them can
+	 * be loaded for the other. The triangles need not be filled in for this.
+	 */
+	public void digest(MessageDigest digest) {
+		triangles.digest(digest);
+		ByteBuffer buf = ByteBuffer.allocate(6 * 8);
+		double[] box = new double[6];
+		for (int i = 0; i < surfaces.length; i++) {
+			getBounds(triangles.size() + i, box, 0);
+			buf.clear();
+			for (int k = 0; k < 6; k++)
+				buf.putDouble(box[k]);
+			digest.update(buf.array());
+		}
+	}
+
+	/**
+	 * @return The number of bytes writeTriangles() puts out
+	 */
+	public long triangleDataSize() {
+		return triangles.dataSize();
+	}
+
+	/**
+	 * Write the triangles, in their current order, to buf, see {@link TriangleStore#write(ByteBuffer)}.
+	 */
+	public void writeTriangles(ByteBuffer buf) {
+		triangles.write(buf);
+	}
+
+	/**
+	 * Set up a newly created set the way an earlier set with the same digest was
+	 * left by reorder(order), taking the reordered triangles from buf instead of
+	 * filling them in and moving them around.
+	 * @param order The composition of the reorderings the earlier set went through
+	 * @param buf What writeTriangles() wrote for the earlier set
+	 */
+	public void load(int[] order, ByteBuffer buf) {
+		triangles.read(buf);
+		ids = reorderedIds(order, null);
+		originalIndices = order.clone();
+	}
+
+	/**
+	 * @return The number of primitives.
+	 */
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * Write the bounding box of primitive i to box[off..off+5] as min x, y, z
+	 * followed by max x, y, z.
+	 */
+	public void getBounds(int i, double[] box, int off) {
+		int id = ids[i];
+		if (id >= 0) {
+			triangles.getBounds(id, box, off);
+		}
+		else {
+			Vector3d minB = surfaces[~id].getMinBound();
+			Vector3d maxB = surfaces[~id].getMaxBound();
+			box[off] = minB.x; box[off+1] = minB.y; box[off+2] = minB.z;
+			box[off+3] = maxB.x; box[off+4] = maxB.y; box[off+5] = maxB.z;
+		}
+	}
+
+	/**
+	 * @return The bounding boxes of all primitives, 6 doubles each as in getBounds().
+	 */
+	public double[] getBounds() {
+		double[] boxes = new double[6 * ids.length];
+		for (int i = 0; i < ids.length; i++)
+			getBounds(i, boxes, 6 * i);
+		return boxes;
+	}
+
+	/**
+	 * Intersect a ray with primitive i.
+	 * @see Surface#intersect(IntersectionRecord, Ray, RenderContext)
+	 */
+	public boolean intersect(int i, IntersectionRecord outRecord, Ray ray, RenderContext ctx) {
+		int id = ids[i];
+		if (id >= 0)
+			return triangles.intersect(id, outRecord, ray, ctx);
+		return surfaces[~id].intersect(outRecord, ray, ctx);
+	}
+
+	/**
+	 * Bring the primitives up to date after the transformations of the surfaces
+	 * they come from changed: triangles are transformed to world space again and
+	 * all other surfaces recompute their bounds.
+	 */
+	public void update() {
+		triangles.update();
+		for (Surface s : surfaces)
+			s.computeBoundingBox();
+	}
+
+	/**
+	 * Reorder the primitives so that primitive i becomes the old primitive order[i].
+	 * The triangle store is reordered to match, so triangles that end up close
+	 * together here are also close together in memory.
+	 * @param order A permutation of 0 .. size()-1.
+	 */
+	public void reorder(int[] order) {
+		int[] triangleOrder = new int[triangles.size()];
+		int[] newIds = reorderedIds(order, triangleOrder);
+		triangles.reorder(triangleOrder);
+		ids = newIds;
+		int[] newOriginal = new int[ids.length];
+		for (int i = 0; i < ids.length; i++)
+			newOriginal[i] = originalIndices[order[i]];
+		originalIndices = newOriginal;
+	}
+
+	/**
+	 * @return The ids after reorder(order): triangles are numbered in their new order
+	 * @param triangleOrder If not null, receives the matching order of the triangles
+	 */
+	private int[] reorderedIds(int[] order, int[] triangleOrder) {
+		int[] newIds = new int[ids.length];
+		int t = 0;
+		for (int i = 0; i < ids.length; i++) {
+			int id = ids[order[i]];
+			if (id >= 0) {
+				if (triangleOrder != null)
+					triangleOrder[t] = id;
+				id = t++;
+			}
+			newIds[i] = id;
+		}
+		return newIds;
+	}
+
+	/**
+	 * Reorder primitives start to end-1 only, so that primitive i becomes the old
+	 * primitive order[i] for i in that range. The triangles of the range trade
+	 * places among themselves in the same way, and everything else stays put,
+	 * so this takes time in proportion to the size of the range.
+	 * @param order order[start .. end-1] is a permutation of start .. end-1
+	 */
+	public void reorder(int start, int end, int[] order) {
+		int n = end - start;
+		int[] newIds = new int[n];
+		int[] newOriginal = new int[n];
+
+		// The places of the range's triangles in the store, in increasing order
+		int[] slots = new int[n];
+		int[] sources = new int[n];
+		int t = 0;
+		for (int i = start; i < end; i++) {
+			if (ids[i] >= 0)
+				slots[t++] = ids[i];
+		}
+		Arrays.sort(slots, 0, t);
+
+		t = 0;
+		for (int i = 0; i < n; i++) {
+			int id = ids[order[start + i]];
+			if (id >= 0) {
+				sources[t] = id;
+				id = slots[t++];
+			}
+			newIds[i] = id;
+			newOriginal[i] = originalIndices[order[start + i]];
+		}
+		triangles.reorder(slots, sources, t);
+		System.arraycopy(newIds, 0, ids, start, n);
+		System.arraycopy(newOriginal, 0, originalIndices, start, n);
+	}
+
+	/**
+	 * @return For each primitive, the index it had before any call to reorder().
+	 */
+	public int[] getOriginalIndices() {
+		return originalIndices.clone();
+	}
+}
@@ -0,0 +1,413 @@
+package cs4620.ray2.accel;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
+
+/**
+ * A 4-wide bounding volume hierarchy. A binary tree is built exactly like a
+ * {@link Bvh} (median or SAH split) and then collapsed: every node takes the
+ * place of up to four nodes of the binary tree, which roughly halves the depth.
+ *
+ * The four child boxes of a node are stored component by component, so all of
+ * them are tested against a ray in one short loop over adjacent array entries.
+ * A child is either another node or a leaf, which is just a range of primitives.
+ * Like {@link LinearBvh}, traversal uses an explicit stack from the caller's
+ * {@link RenderContext}, visits nearer children first and never allocates.
+ */
+public class Qbvh implements AccelStruct {
+
+	/** The number of children of a node. */
+	public static final int WIDTH = 4;
+
+	/** The primitives, in the order the leaves refer to them. */
+	private PrimitiveSet prims;
+
+	/**
+	 * Child boxes, 6 * WIDTH doubles per node: the min x of all four children,
+	 * then their min y, min z, max x, max y and max z.
+	 */
+	private double[] bounds;
+
+	/**
+	 * WIDTH ints per node. If the matching count is a number of primitives the
+	 * child is a leaf and this is the index of its first primitive; for a NODE
+	 * it is the index of the child node, and for an EMPTY slot it is -1.
+	 */
+	private int[] children;
+
+	/**
+	 * WIDTH ints per node: the number of primitives of each leaf child (which
+	 * is 0 for the only leaf of an empty scene), or NODE or EMPTY.
+	 */
+	private int[] counts;
+	private static final int NODE = -1, EMPTY = -2;
+
+	/** The number of nodes written so far while building. */
+	private int numNodes;
+
+	/** The depth of the tree, which bounds the size of the traversal stack. */
+	private int depth;
+
+	/** The tree used to build this structure; its build options are exposed below. */
+	private final Bvh tree = new Bvh();
+	public void setBuilder(String builder) { tree.setBuilder(builder); }
+	public void setBins(int bins) { tree.setBins(bins); }
+	public void setMaxLeafSize(int maxLeafSize) { tree.setMaxLeafSize(maxLeafSize); }
+
+	/** refit() builds the whole tree again once its SAH cost has grown by more than this factor. */
+	protected double rebuildThreshold = 1.5;
+	public void setRebuildThreshold(double rebuildThreshold) { this.rebuildThreshold = rebuildThreshold; }
+
+	/** The SAH cost of the tree when it was built. */
+	private double builtSahCost;
+
+	/** Statistics about the tree from the last call to build() or refit(), counting wide nodes. */
+	private BvhStats stats;
+	public BvhStats getStats() { return stats; }
+
+	public Qbvh() { }
+
+	@Override
+	public void build(PrimitiveSet prims) {
+		tree.build(prims);
+		this.prims = prims;
+
+		// A wide node replaces at least one binary interior node, and the root always gets one
+		int maxNodes = tree.getStats().interiorNodes + 1;
+		bounds = new double[6 * WIDTH * maxNodes];
+		children = new int[WIDTH * maxNodes];
+		counts = new int[WIDTH * maxNodes];
+		numNodes = 0;
+		depth = collapse(tree.root);
+		builtSahCost = updateBounds();
+		stats = computeStats(builtSahCost);
+
+		// The binary tree is no longer needed
+		tree.root = null;
+	}
+
+	/**
+	 * Write a node for the binary subtree under node, and the nodes below it.
+	 * The node's children are found by repeatedly replacing the interior child
+	 * with the largest box by its two children until there are WIDTH of them.
+	 * @return The depth of the wide subtree
+	 */
+	private int collapse(BvhNode node) {
+		BvhNode[] slots = new BvhNode[WIDTH];
+		int used = 0;
+		if (node.isLeaf()) {
+			slots[used++] = node;
+		}
+		else {
+			slots[used++] = node.child[0];
+			slots[used++] = node.child[1];
+		}
+		while (used < WIDTH) {
+			int largest = -1;
+			double largestArea = -1;
+			for (int k = 0; k < used; k++) {
+				if (slots[k].isLeaf()) continue;
+				double area = area(slots[k]);
+				if (area > largestArea) {
+					largest = k;
+					largestArea = area;
+				}
+			}
+			if (largest < 0) break;
+			BvhNode expanded = slots[largest];
+			slots[largest] = expanded.child[0];
+			slots[used++] = expanded.child[1];
+		}
+
+		int index = numNodes++;
+		int b = 6 * WIDTH * index;
+		int subtreeDepth = 0;
+		for (int k = 0; k < WIDTH; k++) {
+			int c = WIDTH * index + k;
+			if (k >= used) {
+				children[c] = -1;
+				counts[c] = EMPTY;
+				continue;
+			}
+			BvhNode child = slots[k];
+			bounds[b + k] = child.minBound.x;
+			bounds[b + WIDTH + k] = child.minBound.y;
+			bounds[b + 2*WIDTH + k] = child.minBound.z;
+			bounds[b + 3*WIDTH + k] = child.maxBound.x;
+			bounds[b + 4*WIDTH + k] = child.maxBound.y;
+			bounds[b + 5*WIDTH + k] = child.maxBound.z;
+			if (child.isLeaf()) {
+				children[c] = child.surfaceIndexStart;
+				counts[c] = child.surfaceIndexEnd - child.surfaceIndexStart;
+			}
+			else {
+				// collapse() gives the child the next free index
+				counts[c] = NODE;
+				children[c] = numNodes;
+				subtreeDepth = Math.max(subtreeDepth, collapse(child));
+			}
+		}
+		return subtreeDepth + 1;
+	}
+
+	/**
+	 * Recompute the child boxes for the primitives' new positions. If the tree
+	 * has become too slow it is built again.
+	 */
+	public void refit() {
+		double cost = updateBounds();
+		if (cost > rebuildThreshold * builtSahCost)
+			build(prims);
+		else
+			stats = computeStats(cost);
+	}
+
+	/**
+	 * @param sahCost The SAH cost of the tree as computed by updateBounds()
+	 * @return The statistics of the wide tree: every node is an interior node,
+	 * and every leaf child a leaf
+	 */
+	private BvhStats computeStats(double sahCost) {
+		BvhStats s = new BvhStats();
+		int[] level = new int[numNodes];
+		level[0] = 1;
+		for (int node = 0; node < numNodes; node++) {
+			s.interiorNodes++;
+			s.maxDepth = Math.max(s.maxDepth, level[node]);
+			for (int k = 0; k < WIDTH; k++) {
+				int c = WIDTH * node + k;
+				if (counts[c] >= 0) {
+					s.leafNodes++;
+					s.leafHistogram[Math.min(counts[c], BvhStats.HISTOGRAM_SIZE)]++;
+					s.maxDepth = Math.max(s.maxDepth, level[node] + 1);
+				}
+				else if (counts[c] == NODE) {
+					level[children[c]] = level[node] + 1;
+				}
+			}
+		}
+		s.sahCost = sahCost;
+		return s;
+	}
+
+	/**
+	 * Set every child box to enclose its primitives. Nodes are numbered before
+	 * the nodes below them, so going through them backwards handles children first.
+	 * @return The SAH cost of the tree
+	 */
+	private double updateBounds() {
+		double[] cost = new double[numNodes];
+		double[] nodeBox = new double[6 * numNodes];
+		double[] box = new double[6];
+		double[] primBox = new double[6];
+		double[] slotCost = new double[WIDTH];
+		double[] slotArea = new double[WIDTH];
+		for (int node = numNodes - 1; node >= 0; node--) {
+			int b = 6 * WIDTH * node;
+			int nb = 6 * node;
+			for (int a = 0; a < 3; a++) {
+				nodeBox[nb+a] = Double.POSITIVE_INFINITY;
+				nodeBox[nb+a+3] = Double.NEGATIVE_INFINITY;
+			}
+			for (int k = 0; k < WIDTH; k++) {
+				int c = WIDTH * node + k;
+				slotCost[k] = slotArea[k] = 0;
+				if (counts[c] >= 0) {
+					for (int a = 0; a < 3; a++) {
+						box[a] = Double.POSITIVE_INFINITY;
+						box[a+3] = Double.NEGATIVE_INFINITY;
+					}
+					for (int i = children[c]; i < children[c] + counts[c]; i++) {
+						prims.getBounds(i, primBox, 0);
+						for (int a = 0; a < 3; a++) {
+							box[a] = Math.min(box[a], primBox[a]);
+							box[a+3] = Math.max(box[a+3], primBox[a+3]);
+						}
+					}
+					slotCost[k] = SahBuilder.INTERSECTION_COST * counts[c];
+				}
+				else if (counts[c] == NODE) {
+					System.arraycopy(nodeBox, 6 * children[c], box, 0, 6);
+					slotCost[k] = cost[children[c]];
+				}
+				else {
+					continue;
+				}
+				for (int a = 0; a < 6; a++)
+					bounds[b + a*WIDTH + k] = box[a];
+				for (int a = 0; a < 3; a++) {
+					nodeBox[nb+a] = Math.min(nodeBox[nb+a], box[a]);
+					nodeBox[nb+a+3] = Math.max(nodeBox[nb+a+3], box[a+3]);
+				}
+				slotArea[k] = SahBuilder.surfaceArea(box, 0);
+			}
+			double area = SahBuilder.surfaceArea(nodeBox, nb);
+			double sum = 0;
+			for (int k = 0; k < WIDTH; k++)
+				sum += area > 0 ? slotArea[k] / area * slotCost[k] : slotCost[k];
+			cost[node] = SahBuilder.TRAVERSAL_COST + sum;
+		}
+		return cost[0];
+	}
+
+	private static double area(BvhNode node) {
+		double dx = node.maxBound.x - node.minBound.x;
+		double dy = node.maxBound.y - node.minBound.y;
+		double dz = node.maxBound.z - node.minBound.z;
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	/**
+	 * Set outRecord to the first intersection of ray with the scene. Return true
+	 * if there was an intersection and false otherwise. If no intersection was
+	 * found outRecord is unchanged.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param rayIn the ray to intersect
+	 * @param anyIntersection if true, will immediately return when found an intersection
+	 * @param ctx scratch space of the calling thread
+	 * @return true if and intersection is found.
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection, RenderContext ctx) {
+		// Every node pushes at most WIDTH - 1 entries more than it pops
+		int[] stack = ctx.getStack(WIDTH * depth);
+		double[] dist = ctx.getStackDist(WIDTH * depth);
+		double[] near = ctx.childDist;
+		IntersectionRecord tmp = ctx.hitRecord;
+
+		double ox = rayIn.origin.x, oy = rayIn.origin.y, oz = rayIn.origin.z;
+		double idx = 1.0 / rayIn.direction.x;
+		double idy = 1.0 / rayIn.direction.y;
+		double idz = 1.0 / rayIn.direction.z;
+
+		// The ray is shortened to the closest hit while searching and restored afterwards
+		double end = rayIn.end;
+		boolean hit = false;
+
+		// Stack entries are node indices, or the bitwise complement of a slot for leaves
+		int top = 0;
+		dist[top] = rayIn.start;
+		stack[top++] = 0;
+		while (top > 0) {
+			top--;
+			if (dist[top] > rayIn.end) continue;
+			int entry = stack[top];
+
+			if (entry < 0) {
+				// Leaf: test every primitive
+				int first = children[~entry];
+				int count = counts[~entry];
+				for (int i = first; i < first + count; i++) {
+					if (prims.intersect(i, tmp, rayIn, ctx) && tmp.t <= rayIn.end) {
+						hit = true;
+						outRecord.set(tmp);
+						if (anyIntersection) {
+							rayIn.end = end;
+							return true;
+						}
+						rayIn.end = tmp.t;
+					}
+				}
+				continue;
+			}
+
+			// Node: test all child boxes, then push the ones hit farthest first
+			slab(entry, ox, oy, oz, idx, idy, idz, rayIn.start, rayIn.end, near);
+			int base = top;
+			for (int k = 0; k < WIDTH; k++) {
+				double t = near[k];
+				if (t == Double.POSITIVE_INFINITY) continue;
+				int c = WIDTH * entry + k;
+				int item = counts[c] >= 0 ? ~c : children[c];
+
+				// Insertion sort by decreasing distance
+				int j = top++;
+				while (j > base && dist[j-1] < t) {
+					dist[j] = dist[j-1];
+					stack[j] = stack[j-1];
+					j--;
+				}
+				dist[j] = t;
+				stack[j] = item;
+			}
+		}
+
+		rayIn.end = end;
+		return hit;
+	}
+
+	public boolean occluded(Ray ray, RenderContext ctx) {
+		int[] stack = ctx.getStack(WIDTH * depth);
+		double[] near = ctx.childDist;
+
+		double ox = ray.origin.x, oy = ray.origin.y, oz = ray.origin.z;
+		double idx = 1.0 / ray.direction.x;
+		double idy = 1.0 / ray.direction.y;
+		double idz = 1.0 / ray.direction.z;
+
+		// Any hit will do, so children are visited in a fixed order
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			slab(node, ox, oy, oz, idx, idy, idz, ray.start, ray.end, near);
+			for (int k = 0; k < WIDTH; k++) {
+				if (near[k] == Double.POSITIVE_INFINITY) continue;
+				int c = WIDTH * node + k;
+				int count = counts[c];
+				if (count == NODE) {
+					stack[top++] = children[c];
+					continue;
+				}
+				int first = children[c];
+				for (int i = first; i < first + count; i++) {
+					if (prims.intersect(i, null, ray, ctx)) {
+						ctx.occluder = i;
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	public PrimitiveSet getPrimitives() {
+		return prims;
+	}
+
+	/**
+	 * Intersect a ray with the four child boxes of a node. Unused slots are
+	 * reported as missed.
+	 * @param near Receives, for each child, the distance to where the ray enters
+	 * its box, or positive infinity if the ray misses it within [tMin, tMax]
+	 */
+	private void slab(int node, double ox, double oy, double oz, double idx, double idy, double idz,
+			double tMin, double tMax, double[] near) {
+		int b = 6 * WIDTH * node;
+		for (int k = 0; k < WIDTH; k++) {
+			double lo = tMin, hi = tMax;
+
+			double t0 = (bounds[b + k] - ox) * idx;
+			double t1 = (bounds[b + 3*WIDTH + k] - ox) * idx;
+			if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+			if (t0 > lo) lo = t0;
+			if (t1 < hi) hi = t1;
+
+			t0 = (bounds[b + WIDTH + k] - oy) * idy;
+			t1 = (bounds[b + 4*WIDTH + k] - oy) * idy;
+			if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+			if (t0 > lo) lo = t0;
+			if (t1 < hi) hi = t1;
+
+			t0 = (bounds[b + 2*WIDTH + k] - oz) * idz;
+			t1 = (bounds[b + 5*WIDTH + k] - oz) * idz;
+			if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+			if (t0 > lo) lo = t0;
+			if (t1 < hi) hi = t1;
+
+			boolean used = counts[WIDTH * node + k] != EMPTY;
+			near[k] = used && lo <= hi ? lo : Double.POSITIVE_INFINITY;
+		}
+	}
+}
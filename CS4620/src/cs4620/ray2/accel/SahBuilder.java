@@ -0,0 +1,292 @@
+package cs4620.ray2.accel;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+
+import egl.math.Vector3d;
+
+/**
+ * Builds a BVH by choosing each split with a binned Surface Area Heuristic.
+ * Surface centroids are dropped into a fixed number of equal-width bins along
+ * each axis, and the cheapest plane between two bins is chosen using
+ * 
+ *   cost = TRAVERSAL_COST + (A_left * n_left + A_right * n_right) / A * INTERSECTION_COST
+ *   
+ * A node becomes a leaf when intersecting all of its surfaces is no more
+ * expensive than the best split (and it is not larger than maxLeafSize).
+ * 
+ * The primitives are reordered so that every node refers to the
+ * contiguous range [surfaceIndexStart, surfaceIndexEnd), just like the
+ * median split in {@link Bvh}. Large subtrees are built in parallel.
+ */
+class SahBuilder {
+	/** Estimated cost of visiting one interior node, relative to INTERSECTION_COST. */
+	static final double TRAVERSAL_COST = 1.0;
+	
+	/** Estimated cost of intersecting a ray with one surface. */
+	static final double INTERSECTION_COST = 1.5;
+	
+	private final PrimitiveSet prims;
+	private final int numBins;
+	private final int maxLeafSize;
+	
+	/** Bounding boxes of the surfaces, 6 doubles each (min xyz, max xyz). */
+	private final double[] boxes;
+	
+	/** Centroids of the surfaces, 3 doubles each. */
+	private final double[] centroids;
+	
+	/** Primitive order being built. order[i] is an index into the original primitives. */
+	private final int[] order;
+	
+	/** Per-bin scratch space, reused by every node built on the same task. */
+	private static final class Bins {
+		final int[] counts;
+		final double[] boxes;
+		final double[] rightAreas;
+		final int[] rightCounts;
+		
+		Bins(int numBins) {
+			counts = new int[numBins];
+			boxes = new double[6 * numBins];
+			rightAreas = new double[numBins];
+			rightCounts = new int[numBins];
+		}
+	}
+	
+	/**
+	 * @param prims The primitives to build over; reordered by build()
+	 * @param numBins The number of bins per axis
+	 * @param maxLeafSize Leaves never hold more than this many primitives unless they cannot be split
+	 */
+	SahBuilder(PrimitiveSet prims, int numBins, int maxLeafSize) {
+		this(prims, prims.getBounds(), numBins, maxLeafSize);
+	}
+	
+	private SahBuilder(PrimitiveSet prims, double[] boxes, int numBins, int maxLeafSize) {
+		this(prims, boxes, centroids(boxes), identity(prims.size()), numBins, maxLeafSize);
+	}
+	
+	/**
+	 * A builder that shares the boxes, centroids and order of primitives that
+	 * were set up already, so that rebuilding several ranges of the same
+	 * primitives computes them only once. build(start, end) only changes
+	 * order[start .. end-1].
+	 * @param order The identity permutation, except on ranges built already
+	 */
+	SahBuilder(PrimitiveSet prims, double[] boxes, double[] centroids, int[] order, int numBins, int maxLeafSize) {
+		this.prims = prims;
+		this.numBins = Math.max(2, numBins);
+		this.maxLeafSize = Math.max(1, maxLeafSize);
+		this.boxes = boxes;
+		this.centroids = centroids;
+		this.order = order;
+	}
+	
+	/**
+	 * Build the tree and reorder the primitives to match it.
+	 * @return The root of the new tree
+	 */
+	BvhNode build() {
+		BvhNode root = Bvh.BUILD_POOL.invoke(subtree(0, order.length));
+		prims.reorder(order);
+		return root;
+	}
+	
+	/**
+	 * Build a tree over primitives start to end-1 only and reorder those to match it.
+	 * @return The root of the new tree
+	 */
+	BvhNode build(int start, int end) {
+		BvhNode root = Bvh.BUILD_POOL.invoke(subtree(start, end));
+		prims.reorder(start, end, order);
+		return root;
+	}
+	
+	/**
+	 * @return A task that builds the subtree for order[start] to order[end-1]
+	 */
+	private RecursiveTask<BvhNode> subtree(final int start, final int end) {
+		return new RecursiveTask<BvhNode>() {
+			@Override
+			protected BvhNode compute() {
+				return createTree(start, end, new Bins(numBins));
+			}
+		};
+	}
+	
+	/**
+	 * Create the subtree for order[start] to order[end-1].
+	 */
+	private BvhNode createTree(int start, int end, Bins bins) {
+		int[] binCounts = bins.counts;
+		double[] binBoxes = bins.boxes;
+		double[] rightAreas = bins.rightAreas;
+		int[] rightCounts = bins.rightCounts;
+		
+		double[] box = emptyBox();
+		double[] cBox = emptyBox();
+		for(int i = start; i < end; i++) {
+			int s = order[i];
+			growBox(box, boxes, 6*s, 6*s+3);
+			growBox(cBox, centroids, 3*s, 3*s);
+		}
+		Vector3d minB = new Vector3d(box[0], box[1], box[2]);
+		Vector3d maxB = new Vector3d(box[3], box[4], box[5]);
+		
+		int count = end - start;
+		if (count <= 1) {
+			return new BvhNode(minB, maxB, null, null, start, end);
+		}
+		
+		// Find the cheapest binned split over all three axes
+		double area = surfaceArea(box, 0);
+		double bestCost = Double.POSITIVE_INFINITY;
+		int bestAxis = -1, bestSplit = -1;
+		for(int axis = 0; axis < 3; axis++) {
+			double cMin = cBox[axis], cMax = cBox[axis+3];
+			if (!(cMax > cMin)) continue;
+			double scale = numBins / (cMax - cMin);
+			
+			// Fill the bins
+			Arrays.fill(binCounts, 0);
+			for(int b = 0; b < numBins; b++)
+				setEmpty(binBoxes, 6*b);
+			for(int i = start; i < end; i++) {
+				int s = order[i];
+				int b = binOf(centroids[3*s+axis], cMin, scale);
+				binCounts[b]++;
+				growBox(binBoxes, 6*b, boxes, 6*s, 6*s+3);
+			}
+			
+			// Sweep from the right, remembering the area and count right of each plane
+			double[] acc = emptyBox();
+			int accCount = 0;
+			for(int b = numBins - 1; b > 0; b--) {
+				growBox(acc, 0, binBoxes, 6*b, 6*b+3);
+				accCount += binCounts[b];
+				rightAreas[b] = accCount == 0 ? 0 : surfaceArea(acc, 0);
+				rightCounts[b] = accCount;
+			}
+			
+			// Sweep from the left, evaluating the plane between bins b-1 and b
+			acc = emptyBox();
+			accCount = 0;
+			for(int b = 1; b < numBins; b++) {
+				growBox(acc, 0, binBoxes, 6*(b-1), 6*(b-1)+3);
+				accCount += binCounts[b-1];
+				if (accCount == 0 || rightCounts[b] == 0) continue;
+				double cost = TRAVERSAL_COST + INTERSECTION_COST *
+						(surfaceArea(acc, 0) * accCount + rightAreas[b] * rightCounts[b]) / area;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestSplit = b;
+				}
+			}
+		}
+		
+		// Make a leaf if splitting doesn't pay off
+		double leafCost = INTERSECTION_COST * count;
+		if (count <= maxLeafSize && (bestAxis < 0 || leafCost <= bestCost)) {
+			return new BvhNode(minB, maxB, null, null, start, end);
+		}
+		
+		int mid;
+		if (bestAxis < 0) {
+			// All centroids coincide; just cut the range in half
+			mid = (start + end) / 2;
+		}
+		else {
+			// Partition the range in place around the chosen plane
+			double cMin = cBox[bestAxis];
+			double scale = numBins / (cBox[bestAxis+3] - cMin);
+			int lo = start, hi = end - 1;
+			while (lo <= hi) {
+				if (binOf(centroids[3*order[lo]+bestAxis], cMin, scale) < bestSplit) {
+					lo++;
+				}
+				else {
+					int t = order[lo]; order[lo] = order[hi]; order[hi] = t;
+					hi--;
+				}
+			}
+			mid = lo;
+		}
+		
+		BvhNode left, right;
+		if (count >= Bvh.PARALLEL_THRESHOLD) {
+			RecursiveTask<BvhNode> leftTask = subtree(start, mid);
+			leftTask.fork();
+			right = createTree(mid, end, bins);
+			left = leftTask.join();
+		}
+		else {
+			left = createTree(start, mid, bins);
+			right = createTree(mid, end, bins);
+		}
+		
+		return new BvhNode(minB, maxB, left, right, start, end);
+	}
+	
+	private int binOf(double c, double cMin, double scale) {
+		int b = (int) ((c - cMin) * scale);
+		return b < 0 ? 0 : (b >= numBins ? numBins - 1 : b);
+	}
+	
+	private static double[] emptyBox() {
+		double[] box = new double[6];
+		setEmpty(box, 0);
+		return box;
+	}
+	
+	private static void setEmpty(double[] box, int off) {
+		box[off] = box[off+1] = box[off+2] = Double.POSITIVE_INFINITY;
+		box[off+3] = box[off+4] = box[off+5] = Double.NEGATIVE_INFINITY;
+	}
+	
+	/** Grow box to include the points src[minOff..minOff+2] and src[maxOff..maxOff+2]. */
+	private static void growBox(double[] box, double[] src, int minOff, int maxOff) {
+		growBox(box, 0, src, minOff, maxOff);
+	}
+	
+	private static void growBox(double[] box, int off, double[] src, int minOff, int maxOff) {
+		for(int k = 0; k < 3; k++) {
+			if (src[minOff+k] < box[off+k]) box[off+k] = src[minOff+k];
+			if (src[maxOff+k] > box[off+k+3]) box[off+k+3] = src[maxOff+k];
+		}
+	}
+	
+	/**
+	 * @return the centers of boxes stored as by {@link PrimitiveSet#getBounds()}, 3 doubles each
+	 */
+	static double[] centroids(double[] boxes) {
+		int n = boxes.length / 6;
+		double[] centroids = new double[3 * n];
+		for(int i = 0; i < n; i++)
+			for(int k = 0; k < 3; k++)
+				centroids[3*i+k] = 0.5 * (boxes[6*i+k] + boxes[6*i+k+3]);
+		return centroids;
+	}
+	
+	/**
+	 * @return the permutation 0 .. n-1
+	 */
+	static int[] identity(int n) {
+		int[] order = new int[n];
+		for(int i = 0; i < n; i++)
+			order[i] = i;
+		return order;
+	}
+	
+	/**
+	 * @return the surface area of the box stored at box[off..off+5]
+	 */
+	static double surfaceArea(double[] box, int off) {
+		double dx = box[off+3] - box[off];
+		double dy = box[off+4] - box[off+1];
+		double dz = box[off+5] - box[off+2];
+		if (!(dx >= 0 && dy >= 0 && dz >= 0)) return 0;
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+}
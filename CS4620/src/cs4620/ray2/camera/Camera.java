@@ -52,6 +52,12 @@ public abstract class Camera {
 	protected double viewHeight = 1.0;
 	public void setViewHeight(double viewHeight) { this.viewHeight = viewHeight; }
 	
+	/**
+	 * Initialize the derived view variables to prepare for using the camera.
+	 * The renderer calls this once before handing out work to its threads.
+	 */
+	public abstract void initView();
+	
 	/**
 	 * Generate a ray that points out into the scene for the given (u,v) coordinate.
 	 * This coordinate corresponds to a point on the viewing window, where (0,0) is the
@@ -1,7 +1,6 @@
 package cs4620.ray2.shader;
 
 import cs4620.ray2.shader.Texture;
-import egl.math.Color;
 import egl.math.Colord;
 import egl.math.Vector2d;
 
@@ -13,10 +12,11 @@ import egl.math.Vector2d;
  */
 public class ClampTexture extends Texture {
 
-	public Colord getTexColor(Vector2d texCoord) {
+	public Colord getTexColor(Vector2d texCoord, Colord outColor) {
 		if (image == null) {
 			System.err.println("Warning: Texture uninitialized!");
-			return new Colord();
+			outColor.setZero();
+			return outColor;
 		}
 				
 				
@@ -26,8 +26,7 @@ public class ClampTexture extends Texture {
 		x = Math.max(0, Math.min(image.getWidth()-1, x));
 		y = Math.max(0, Math.min(image.getHeight()-1, y));
 			
-		Color c = Color.fromIntRGB(image.getRGB(x, y));
-		return new Colord(c);
+		return unpackRGB(image.getRGB(x, y), outColor);
 	}
 
 }
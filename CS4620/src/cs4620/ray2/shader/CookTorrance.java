@@ -3,6 +3,7 @@ package cs4620.ray2.shader;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Light;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.Scene;
 import egl.math.Color;
 import egl.math.Colord;
@@ -45,9 +46,10 @@ public class CookTorrance extends Shader {
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
+	 * @param ctx The scratch space of the calling thread.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth, RenderContext ctx) {
 		// TODO#A7 Fill in this function.
 		// 1) Loop through each light in the scene.
 		// 2) If the intersection point is shadowed, skip the calculation for the light.
@@ -57,37 +59,31 @@ public class CookTorrance extends Shader {
 		// 4) Compute the color of the point using the CookTorrance shading model. Add this value
 		//    to the output.
 
-		Vector3d incoming = new Vector3d();
-		Vector3d outgoing = new Vector3d();
+		RenderContext.Frame f = ctx.push();
+		Vector3d incoming = f.v[0];
+		Vector3d outgoing = f.v[1];
 		outgoing.set(ray.origin).sub(record.location).normalize();
 
-		Colord color = new Colord();
-		Ray shadowRay = new Ray();
+		Colord color = f.c[0];
+		Ray shadowRay = f.ray;
 		
 		outIntensity.setZero();
 		for(Light light : scene.getLights()) {
-			if(!isShadowed(scene, light, record, shadowRay)) {
-				incoming.set(light.getDirection(record.location).normalize());
+			if(!isShadowed(scene, light, record, shadowRay, ctx)) {
+				light.getDirection(record.location, incoming).normalize();
 				
 				double dotProd = record.normal.dot(incoming);
 				if (dotProd <= 0)
 					continue;
 				else {
-					Vector3d halfVec = new Vector3d();
+					Vector3d halfVec = f.v[2];
 					halfVec.set(incoming).add(outgoing).normalize();
 					
-					double halfDotNormal = Math.max(0.0, halfVec.dot(record.normal));
+					Vector3d N = record.normal;
+					Vector3d V = outgoing;
 					
-					
-					
-					Vector3d N = record.normal.clone();
-					
-					
-					Vector3d V = outgoing.clone();
-					
-					 float r = (float) ray.origin.clone().sub(record.location).len();
-					  Vector3d L = incoming.clone();
-					  Vector3d H = halfVec.clone();
+					  Vector3d L = incoming;
+					  Vector3d H = halfVec;
 					  float nDotL = (float) N.dot(L);
 					  float nDotV = (float) N.dot(V);
 					  float nDotH = (float) N.dot(H);
@@ -107,7 +103,6 @@ public class CookTorrance extends Shader {
 					  float mainDenom = denom * nDotH * nDotH;
 					  float distribution = euler/mainDenom;
 					  
-					  double factor = Math.pow(halfDotNormal, exponent);
 						double rSq = light.getRSq(record.location);
 					  
 					  // calculate attenuation
@@ -127,15 +122,15 @@ public class CookTorrance extends Shader {
 					  //vec4 Iamb = getDiffuseColor(fUV);
 					 // Iamb = clamp(Iamb, 0.0, 1.0);
 					  
-					  Vector3d a = ks.clone().mul(fresnal).mul(attenuation).mul(distribution);
+					  Vector3d a = f.c[1].set(ks).mul(fresnal).mul(attenuation).mul(distribution);
 					  float b = (float) (nDotV * nDotL * Math.PI);
 					  Vector3d c = a.div(b).add(kd);
-					color.set(c.mul(Math.max(nDotL, 0.0)).mul(light.intensity.div(rSq)));
+					color.set(c.mul(Math.max(nDotL, 0.0)).mul(light.intensity).div(rSq));
 					//  finalColor += vec4(lightIntensity[i], 0.0) * (Idiff + Ispec) / (r*r) + vec4(ambientLightIntensity, 0.0) * Iamb;
 					outIntensity.add(color);
 				}
 			}
 		}
-
+		ctx.pop();
 	}
 }
@@ -4,6 +4,7 @@ import cs4620.ray2.Light;
 import cs4620.ray2.RayTracer;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.Scene;
 import egl.math.Colord;
 import egl.math.Vector3d;
@@ -41,36 +42,33 @@ public class Glass extends Shader {
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
+	 * @param ctx The scratch space of the calling thread.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth, RenderContext ctx) {
 
-		Vector3d outgoing = new Vector3d();
-		outgoing.set(ray.origin).sub(record.location).normalize();
-
-		Colord color = new Colord();
-		
 		outIntensity.setZero();
 	
 		if (depth <= RayTracer.MAX_DEPTH) {
+			RenderContext.Frame f = ctx.push();
+			
+			Vector3d outgoing = f.v[0];
+			outgoing.set(ray.origin).sub(record.location).normalize();
 			
-			Colord reflectedColor = new Colord();
+			Colord reflectedColor = f.c[0];
 			
-//						IntersectionRecord reflectRecord = new IntersectionRecord();
-			Vector3d normal = record.normal.clone();
-			Vector3d d = ray.direction.clone();
-			Vector3d n = record.normal.clone();
-			Vector3d t = new Vector3d();
+			Vector3d normal = f.v[1].set(record.normal);
+			Vector3d d = ray.direction;
+			Vector3d t = f.v[2];
 			double nDotV = normal.dot(outgoing);
 			
 			double n1, n2;
 			double fresnel;
 			if (nDotV < 0) {	
 				n1 = refractiveIndex;
-					n2 = 1f;
+				n2 = 1f;
 					
 				normal.negate();
-				n.negate();
 				fresnel = fresnel(normal, outgoing, n2);
 			}
 			else {
@@ -78,45 +76,36 @@ public class Glass extends Shader {
 				n1 = 1f;
 				fresnel = fresnel(normal, outgoing, n2);
 			}
-			double dDotN =  d.dot(n);
+			double dDotN =  d.dot(normal);
 			
 			double numerator = n1*n1*(1 - dDotN*dDotN);
 			double denominator = n2*n2;
 			
-			
-			
 			double dscr = 1 - numerator/denominator;
 			
+			Ray secondary = f.ray;
 			if (dscr >= 0) {
-				
-				Vector3d first = d. clone(). sub(n. clone(). mul(dDotN). div(n2)).mul(n1);
-				//t.set(d. clone(). sub(n. clone(). mul(dDotN). div(refractiveIndex)));
-			
-				Vector3d second =  (dscr == 0) ? new Vector3d() : n.clone().mul(-1*Math.sqrt(dscr));
-				System.out.println(second);
-				//t.set(first);
-				t.set(first.add(second));
-			//	t.set(d. clone(). sub(n. clone(). mul(dDotN). div(refractiveIndex)).sub(n.clone().mul(Math.sqrt(dscr))));
+				// t = n1 * (d - n (d.n) / n2) - n sqrt(dscr)
+				t.set(normal).mul(dDotN).div(n2).negate().add(d).mul(n1);
+				if (dscr != 0)
+					t.addMultiple(-Math.sqrt(dscr), normal);
 				t.normalize();
-				Ray refraction = new Ray(record.location.clone(), t);
-				refraction.start = Ray.EPSILON;
-				refraction.end = Double.POSITIVE_INFINITY;
-			//	refraction.end = ray.end;
-				Colord refractedColor = new Colord();
-				RayTracer.shadeRay(refractedColor, scene, refraction, depth+1);
+				secondary.set(record.location, t);
+				secondary.makeOffsetRay();
+				Colord refractedColor = f.c[1];
+				RayTracer.shadeRay(refractedColor, scene, secondary, depth+1, ctx);
 				outIntensity.add(refractedColor.mul(1.0 - fresnel));
 			}
 			
-			
-			
-			Ray reflection = new Ray(record.location.clone(), ray.direction.clone().sub(normal.clone().mul(2.0).mul(ray.direction.clone().dot(normal.clone()))).normalize());
-			reflection.start = Ray.EPSILON;
-			reflection.end = Double.POSITIVE_INFINITY;
-			RayTracer.shadeRay(reflectedColor, scene, reflection, depth+1);
+			// reflect d about the normal
+			secondary.origin.set(record.location);
+			secondary.direction.set(d).addMultiple(-2.0 * d.dot(normal), normal).normalize();
+			secondary.makeOffsetRay();
+			RayTracer.shadeRay(reflectedColor, scene, secondary, depth+1, ctx);
 			outIntensity.add(reflectedColor.mul(fresnel));
 			
-			}
+			ctx.pop();
 		}
+	}
 
-
-}
\ No newline at end of file
+}
@@ -5,6 +5,7 @@ import cs4620.ray2.Light;
 import cs4620.ray2.RayTracer;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.Scene;
 import egl.math.Colord;
 import egl.math.Vector3d;
@@ -48,49 +49,48 @@ public class Glazed extends Shader {
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
+	 * @param ctx The scratch space of the calling thread.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth, RenderContext ctx) {
 		// TODO#A7: fill in this function.
 		
-		Vector3d outgoing = new Vector3d();
-		outgoing.set(ray.origin).sub(record.location).normalize();
-
-		Colord color = new Colord();
-		
 		outIntensity.setZero();
 	
 		if (depth <= RayTracer.MAX_DEPTH) {
+			RenderContext.Frame f = ctx.push();
+			
+			Vector3d outgoing = f.v[0];
+			outgoing.set(ray.origin).sub(record.location).normalize();
 			
-			Colord reflectedColor = new Colord();
+			Colord color = f.c[0];
+			Colord reflectedColor = f.c[1];
 			
-			Vector3d normal = record.normal.clone();
-			Vector3d d = ray.direction.clone();
+			Vector3d normal = record.normal;
+			Vector3d d = ray.direction;
 			double nDotV = normal.dot(outgoing);
 			
-			double n1, n2;
+			double n2;
 			double fresnel;
 			if (nDotV < 0) {	
-				n1 = refractiveIndex;
-					n2 = 1f;
+				n2 = 1f;
 				fresnel = fresnel(normal, outgoing, n2);	
-		//		normal.negate();
-				
 			}
 			else {
 				n2 = refractiveIndex;
-				n1 = 1f;
 				fresnel = fresnel(normal, outgoing, n2);
-				Ray reflection = new Ray(record.location.clone(), ray.direction.clone().sub(normal.clone().mul(2.0).mul(ray.direction.clone().dot(normal.clone()))).normalize());
-				reflection.start = Ray.EPSILON;
-				reflection.end = Double.POSITIVE_INFINITY;
-				RayTracer.shadeRay(reflectedColor, scene, reflection, depth+1);
+				Ray reflection = f.ray;
+				reflection.origin.set(record.location);
+				reflection.direction.set(d).addMultiple(-2.0 * d.dot(normal), normal).normalize();
+				reflection.makeOffsetRay();
+				RayTracer.shadeRay(reflectedColor, scene, reflection, depth+1, ctx);
 				outIntensity.add(reflectedColor.mul(fresnel));
 			}
 			
-			substrate.shade(color, scene, ray, record, depth);
+			substrate.shade(color, scene, ray, record, depth, ctx);
 			outIntensity.add(color.mul(1.0 - fresnel));
-
+			
+			ctx.pop();
 		}
 	}
-}
\ No newline at end of file
+}
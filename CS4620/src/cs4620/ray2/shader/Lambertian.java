@@ -3,6 +3,7 @@ package cs4620.ray2.shader;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Light;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.Scene;
 import egl.math.Color;
 import egl.math.Colord;
@@ -37,18 +38,20 @@ public class Lambertian extends Shader {
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
+	 * @param ctx The scratch space of the calling thread.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth, RenderContext ctx) {
 			
-		Vector3d incoming = new Vector3d();
-		Colord color = new Colord();
-		Ray shadowRay = new Ray();
+		RenderContext.Frame f = ctx.push();
+		Vector3d incoming = f.v[0];
+		Colord color = f.c[0];
+		Ray shadowRay = f.ray;
 		
 		outIntensity.setZero();
 		for(Light light : scene.getLights()) {
-			if(!isShadowed(scene, light, record, shadowRay)) {
-				incoming.set(light.getDirection(record.location)).normalize();
+			if(!isShadowed(scene, light, record, shadowRay, ctx)) {
+				light.getDirection(record.location, incoming).normalize();
 								
 				double dotProd = record.normal.dot(incoming);
 				if (dotProd <= 0)
@@ -57,7 +60,7 @@ public class Lambertian extends Shader {
 					double rSq= light.getRSq(record.location);
 					
 					color.set((texture == null) ? diffuseColor :
-						texture.getTexColor(record.texCoords))
+						texture.getTexColor(record.texCoords, color))
 						 .mul(dotProd)
 						 .mul(light.intensity)
 						 .div(rSq);		
@@ -66,6 +69,7 @@ public class Lambertian extends Shader {
 				}
 			}
 		}
+		ctx.pop();
 	}
 
 }
\ No newline at end of file
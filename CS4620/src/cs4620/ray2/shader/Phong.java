@@ -3,6 +3,7 @@ package cs4620.ray2.shader;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Light;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.Scene;
 import egl.math.Color;
 import egl.math.Colord;
@@ -44,27 +45,29 @@ public class Phong extends Shader {
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
+	 * @param ctx The scratch space of the calling thread.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth, RenderContext ctx) {
 		
-		Vector3d incoming = new Vector3d();
-		Vector3d outgoing = new Vector3d();
+		RenderContext.Frame f = ctx.push();
+		Vector3d incoming = f.v[0];
+		Vector3d outgoing = f.v[1];
 		outgoing.set(ray.origin).sub(record.location).normalize();
 
-		Colord color = new Colord();
-		Ray shadowRay = new Ray();
+		Colord color = f.c[0];
+		Ray shadowRay = f.ray;
 		
 		outIntensity.setZero();
 		for(Light light : scene.getLights()) {
-			if(!isShadowed(scene, light, record, shadowRay)) {
-				incoming.set(light.getDirection(record.location)).normalize();
+			if(!isShadowed(scene, light, record, shadowRay, ctx)) {
+				light.getDirection(record.location, incoming).normalize();
 				
 				double dotProd = record.normal.dot(incoming);
 				if (dotProd <= 0)
 					continue;
 				else {
-					Vector3d halfVec = new Vector3d();
+					Vector3d halfVec = f.v[2];
 					halfVec.set(incoming).add(outgoing).normalize();
 					
 					double halfDotNormal = Math.max(0.0, halfVec.dot(record.normal));
@@ -72,7 +75,7 @@ public class Phong extends Shader {
 					double rSq = light.getRSq(record.location);
 					
 					color.set((texture == null) ? diffuseColor :
-						texture.getTexColor(record.texCoords))
+						texture.getTexColor(record.texCoords, color))
 						 .mul(dotProd)
 						 .addMultiple(factor, specularColor)
 						 .mul(light.intensity)
@@ -82,6 +85,7 @@ public class Phong extends Shader {
 				}
 			}
 		}
+		ctx.pop();
 	}
 
 }
\ No newline at end of file
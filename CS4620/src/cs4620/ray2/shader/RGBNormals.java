@@ -2,6 +2,7 @@ package cs4620.ray2.shader;
 
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.Scene;
 import egl.math.Colord;
 
@@ -23,8 +24,9 @@ public class RGBNormals extends Shader {
 	 * @param scene The scene in which the surface exists.
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
+	 * @param ctx The scratch space of the calling thread.
 	 */
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth, RenderContext ctx) {
 		outIntensity.x = (record.normal.x + 1) / 2;
 		outIntensity.y = (record.normal.y + 1) / 2;
 		outIntensity.z = (record.normal.z + 1) / 2;
@@ -1,7 +1,6 @@
 package cs4620.ray2.shader;
 
 import cs4620.ray2.shader.Texture;
-import egl.math.Color;
 import egl.math.Colord;
 import egl.math.Vector2d;
 
@@ -14,10 +13,11 @@ import egl.math.Vector2d;
  */
 public class RepeatTexture extends Texture {
 
-	public Colord getTexColor(Vector2d texCoord) {
+	public Colord getTexColor(Vector2d texCoord, Colord outColor) {
 		if (image == null) {
 			System.err.println("Warning: Texture uninitialized!");
-			return new Colord();
+			outColor.setZero();
+			return outColor;
 		}
 							
 		int x = (int) (texCoord.x * image.getWidth() + 0.5);
@@ -28,8 +28,7 @@ public class RepeatTexture extends Texture {
 		y = y % image.getHeight();
 		if (y < 0) y += image.getHeight();
 		
-		Color c = Color.fromIntRGB(image.getRGB(x, y));
-		return new Colord(c);
+		return unpackRGB(image.getRGB(x, y), outColor);
 	}
 
 }
@@ -3,6 +3,7 @@ package cs4620.ray2.shader;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Light;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.Scene;
 import egl.math.Colord;
 import egl.math.Vector3d;
@@ -33,8 +34,24 @@ public abstract class Shader {
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
 	 */
+	public void shade(Colord outIntensity, Scene scene, Ray ray, 
+			IntersectionRecord record, int depth) {
+		shade(outIntensity, scene, ray, record, depth, RenderContext.current());
+	}
+	
+	/**	
+	 * Calculate the intensity (color) for this material at the intersection described in
+	 * the record. Temporaries are taken from a frame pushed on ctx, so nothing is allocated.
+	 * 	 
+	 * @param outIntensity The color returned towards the source of the incoming ray.
+	 * @param scene The scene in which the surface exists.
+	 * @param ray The ray which intersected the surface.
+	 * @param record The intersection record of where the ray intersected the surface.
+	 * @param depth The recursion depth.
+	 * @param ctx The scratch space of the calling thread.
+	 */
 	public abstract void shade(Colord outIntensity, Scene scene, Ray ray, 
-			IntersectionRecord record, int depth);
+			IntersectionRecord record, int depth, RenderContext ctx);
 	
 	/**
 	 * A utility method to check if there is any surface between the given intersection
@@ -49,10 +66,19 @@ public abstract class Shader {
 	 * @return true if there is any surface between the intersection point and the light;
 	 * false otherwise.
 	 */
-	protected boolean isShadowed(Scene scene, Light light, IntersectionRecord record, Ray shadowRay) {		
+	protected boolean isShadowed(Scene scene, Light light, IntersectionRecord record, Ray shadowRay) {
+		return isShadowed(scene, light, record, shadowRay, RenderContext.current());
+	}
+	
+	/**
+	 * Same as {@link #isShadowed(Scene, Light, IntersectionRecord, Ray)}, but uses
+	 * the given context for the intersection test.
+	 */
+	protected boolean isShadowed(Scene scene, Light light, IntersectionRecord record, Ray shadowRay,
+			RenderContext ctx) {
 		// Setup the shadow ray to start at surface and end at light
 		shadowRay.origin.set(record.location);
-		shadowRay.direction.set(light.getDirection(record.location));
+		light.getDirection(record.location, shadowRay.direction);
 
 		double end = light.getShadowRayEnd(record.location);//shadowRay.direction.len();
 		shadowRay.direction.normalize();
@@ -60,7 +86,7 @@ public abstract class Shader {
 		// Set the ray to end at the light
 		shadowRay.makeOffsetSegment(end);
 		
-		return scene.getAnyIntersection(shadowRay);
+		return scene.isOccluded(shadowRay, light, ctx);
 	}
 	
 	protected double fresnel(Vector3d normal, Vector3d outgoing, double refractiveIndex) {
@@ -84,8 +110,7 @@ public abstract class Shader {
 		else if(nDotv < 0){
 			n1 = refractiveIndex;
 			n2 = 1;
-			Vector3d negNorm = normal.clone().negate();
-			theta1 = Math.acos(negNorm.dot(outgoing));
+			theta1 = Math.acos(-nDotv);
 			theta2 = Math.asin( (n1*Math.sin(theta1)) / n2);
 		}
 		
@@ -1,11 +1,14 @@
 package cs4620.ray2.shader;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
 import java.io.File;
+import java.io.IOException;
 
 import javax.imageio.ImageIO;
 
 import cs4620.ray2.RayTracer;
+import cs4620.ray2.ResourceCache;
 import egl.math.Colord;
 import egl.math.Vector2d;
 
@@ -21,18 +24,33 @@ public abstract class Texture {
 	protected BufferedImage image;
 	/** Return the BufferedImage used for lookup. */
 	public BufferedImage getImage() { return image; }
-	/** Set the BufferedImage from a given file on disk. */
+	/** Set the BufferedImage from a given file on disk, shared with other textures of the same file. */
 	public void setImage(String filename) {
-		System.out.println("Loading: " + RayTracer.sceneWorkspace.resolve(filename));
 		try {
-			File f = new File(RayTracer.sceneWorkspace.resolve(filename));
-			image = ImageIO.read(f);
+			image = ResourceCache.getInstance().get(RayTracer.sceneWorkspace.resolve(filename), "texture", LOADER);
 		} catch (Exception e) {
 			System.err.println("Error loading texture: " + e);
 			System.exit(1);
 		}
 	}
 	
+	/** Loads texture images for the resource cache. */
+	private static final ResourceCache.Loader<BufferedImage> LOADER = new ResourceCache.Loader<BufferedImage>() {
+		@Override
+		public BufferedImage load(String fileName) throws IOException {
+			BufferedImage image = ImageIO.read(new File(fileName));
+			if (image == null)
+				throw new IOException("Unknown image format: " + fileName);
+			return image;
+		}
+
+		@Override
+		public long size(BufferedImage image) {
+			DataBuffer data = image.getRaster().getDataBuffer();
+			return (long) data.getSize() * data.getNumBanks() * DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+		}
+	};
+	
 	/** Default constructor. Creates an empty Texture object. */
 	public Texture() {	}
 	
@@ -42,5 +60,25 @@ public abstract class Texture {
 	 * @param texCoord The UV texture coordinates.
 	 * @return The color at the given point.
 	 */
-	public abstract Colord getTexColor(Vector2d texCoord); 
+	public Colord getTexColor(Vector2d texCoord) {
+		return getTexColor(texCoord, new Colord());
+	}
+	
+	/**
+	 * Get the texture color at a given UV coordinate without allocating.
+	 * 
+	 * @param texCoord The UV texture coordinates.
+	 * @param outColor Set to the color at the given point.
+	 * @return outColor
+	 */
+	public abstract Colord getTexColor(Vector2d texCoord, Colord outColor);
+	
+	/**
+	 * Convert a packed RGB pixel as returned by BufferedImage.getRGB to a color
+	 * with components in [0, 1].
+	 */
+	protected static Colord unpackRGB(int rgb, Colord outColor) {
+		outColor.set(((rgb >> 16) & 0xFF) / 255.0, ((rgb >> 8) & 0xFF) / 255.0, (rgb & 0xFF) / 255.0);
+		return outColor;
+	}
 }
@@ -7,6 +7,8 @@ import org.lwjgl.BufferUtils;
 import cs4620.mesh.MeshData;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
+import egl.math.Matrix4d;
 import egl.math.Vector3d;
 
 /**
@@ -67,6 +69,13 @@ public class Box extends Surface {
 		this.mesh.shader = this.shader;
 	}
 
+	public void setTransformation(Matrix4d a, Matrix4d aInv, Matrix4d aTInv) {
+		super.setTransformation(a, aInv, aTInv);
+		// The triangles of an already built box follow it
+		if (mesh != null)
+			mesh.setTransformation(a, aInv, aTInv);
+	}
+
 	public void computeBoundingBox() {
 		// TODO#A7: Compute the bounding box and store the result in
 		// averagePosition, minBound, and maxBound.
@@ -101,7 +110,7 @@ public class Box extends Surface {
 		averagePosition.set(minPt.clone().add(maxPt).div(2f));
 	}
 
-	public boolean intersect(IntersectionRecord outRecord, Ray ray) {
+	public boolean intersect(IntersectionRecord outRecord, Ray ray, RenderContext ctx) {
 		return false;
 	}
 
@@ -110,6 +119,11 @@ public class Box extends Surface {
 		mesh.appendRenderableSurfaces(in);
 	}
 
+	public void appendRenderableSurfaces(ArrayList<Surface> in, TriangleStore triangles) {
+		buildMesh();
+		mesh.appendRenderableSurfaces(in, triangles);
+	}
+
 	/**
 	 * @see Object#toString()
 	 */
@@ -2,6 +2,7 @@ package cs4620.ray2.surface;
 
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import egl.math.Vector3d;
 
 public class Cylinder extends Surface {
@@ -40,13 +41,15 @@ public class Cylinder extends Surface {
 	 *            the output IntersectionRecord
 	 * @param ray
 	 *            the ray to intersect
+	 * @param ctx
+	 *            scratch space of the calling thread
 	 * @return true if the surface intersects the ray
 	 */
-	  public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+	  public boolean intersect(IntersectionRecord outRecord, Ray rayIn, RenderContext ctx) {
 		  	//TODO#A7: Modify the intersect method: 
 		  	//1. transform the ray to object space (use untransformRay)
 		  	//2. transform the resulting intersection point and normal to world space		  
-		    Ray ray = untransformRay(rayIn);
+		    Ray ray = untransformRay(rayIn, ctx.objectRay);
 
 		    // Rename the common vectors so I don't have to type so much
 		    Vector3d d = ray.direction;
@@ -106,9 +109,9 @@ public class Cylinder extends Surface {
 		      t = t2;
 		    }
 
-		    Vector3d thit1 = new Vector3d(0); 
+		    Vector3d thit1 = ctx.v[0]; 
 		    ray.evaluate(thit1, tMin);
-		    Vector3d thit2 = new Vector3d(0); 
+		    Vector3d thit2 = ctx.v[1]; 
 		    ray.evaluate(thit2, tMax);
 
 		    double dx1 = thit1.x-c.x;  
@@ -139,10 +142,9 @@ public class Cylinder extends Surface {
 		        outRecord.normal.negate();
 
 		      outRecord.surface = this;
-
+		      tMat.mulDir(outRecord.normal);
+		      tMat.mulPos(outRecord.location);
 		    }
-		    outRecord.normal.set(tMat.mulDir(outRecord.normal));
-			outRecord.location.set(tMat.mulPos(outRecord.location));
 		    return true;
 		  }
 
@@ -5,6 +5,7 @@ import java.util.Iterator;
 
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import egl.math.Matrix4d;
 import egl.math.Vector3d;
 
@@ -16,8 +17,8 @@ public class Group extends Surface {
   /** The transformation matrix associated with this group. */
   private Matrix4d transformMat;
   
-  /** A shared temporary matrix */
-  static Matrix4d tmp = new Matrix4d();
+  /** A temporary matrix used while accumulating transformMat */
+  private final Matrix4d tmp = new Matrix4d();
   
   public Group() {
     transformMat = new Matrix4d();
@@ -62,6 +63,15 @@ public class Group extends Surface {
   }
   
   
+  /**
+   * Replace the transformation of this group, e.g. to animate it. Call
+   * Scene.refit() afterwards to update a scene that was already built.
+   */
+  public void setTransformMatrix(Matrix4d m) {
+    transformMat.set(m);
+  }
+  public Matrix4d getTransformMatrix() { return transformMat; }
+  
   public void setTranslate(Vector3d T) {
 	Matrix4d.createTranslation(T, tmp);
     transformMat.mulAfter(tmp);
@@ -85,11 +95,16 @@ public class Group extends Surface {
     objs.add(a);
   }
   
-  public boolean intersect(IntersectionRecord outRecord, Ray ray) { return false; }
+  public boolean intersect(IntersectionRecord outRecord, Ray ray, RenderContext ctx) { return false; }
   public void computeBoundingBox() {  }
 
   public void appendRenderableSurfaces (ArrayList<Surface> in) {
     for (Iterator<Surface> iter = objs.iterator(); iter.hasNext();)
       iter.next().appendRenderableSurfaces(in);
   }
+
+  public void appendRenderableSurfaces (ArrayList<Surface> in, TriangleStore triangles) {
+    for (Iterator<Surface> iter = objs.iterator(); iter.hasNext();)
+      iter.next().appendRenderableSurfaces(in, triangles);
+  }
 }
\ No newline at end of file
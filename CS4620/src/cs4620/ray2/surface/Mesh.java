@@ -1,12 +1,16 @@
 package cs4620.ray2.surface;
 
+import java.io.IOException;
 import java.util.ArrayList;
 
 import cs4620.mesh.MeshData;
-import cs4620.mesh.OBJParser;
+import cs4620.mesh.MeshFile;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.RayTracer;
+import cs4620.ray2.ResourceCache;
+import cs4620.ray2.accel.AccelStruct;
 import egl.math.Vector2d;
 import egl.math.Vector3d;
 import egl.math.Vector3i;
@@ -14,8 +18,8 @@ import egl.math.Vector3i;
 /**
  * An interface between a MeshData and the ray tracer. When the Scene calls
  * appendRenderableSurfaces on this object, it appends all Triangles on the
- * mesh onto the given ArrayList. This way, the Scene has direct access to
- * all intersectable Surfaces in the scene.
+ * mesh onto the given ArrayList, or adds the mesh to the given TriangleStore.
+ * This way, the Scene has direct access to all intersectable Surfaces in the scene.
  * 
  * @author eschweic
  *
@@ -24,6 +28,39 @@ public class Mesh extends Surface {
 
 	/** The underlying data of this Mesh. */
 	private MeshData mesh = null;
+	
+	/** A digest of the file the data was loaded from, or null if it was not loaded from a file. */
+	private String dataDigest = null;
+	
+	/**
+	 * Loads mesh files for the resource cache. Meshes that load the same file
+	 * share its data, which lets the ray tracer store the triangles only once.
+	 */
+	private static final ResourceCache.Loader<MeshData> LOADER = new ResourceCache.Loader<MeshData>() {
+		@Override
+		public MeshData load(String fileName) throws IOException {
+			MeshData data = MeshFile.load(fileName);
+			if (data == null)
+				throw new IOException("Could not load mesh " + fileName);
+			return data;
+		}
+
+		@Override
+		public long size(MeshData data) {
+			long floats = data.positions.capacity();
+			if (data.hasNormals())
+				floats += data.normals.capacity();
+			if (data.hasUVs())
+				floats += data.uvs.capacity();
+			return 4 * (floats + data.indices.capacity());
+		}
+	};
+	
+	/**
+	 * If this mesh's data is shared with other meshes, the structure over the
+	 * shared triangles set up by {@link MeshInstance#createInstances(java.util.List, String)}.
+	 */
+	AccelStruct instanceAccel = null;
 
 	/**
 	 * Default constructor; creates an empty mesh.
@@ -40,14 +77,33 @@ public class Mesh extends Surface {
 	
 	/**
 	 * Set the data in this mesh to the data of a mesh on disk.
-	 * @param fileName the name of a .obj file on disk.
+	 * @param fileName the name of a .obj file or a binary mesh file on disk.
 	 */
 	public void setData(String fileName) {
-		System.out.println("Loading " + RayTracer.sceneWorkspace.resolve(fileName));
-		mesh = (OBJParser.parse(RayTracer.sceneWorkspace.resolve(fileName))).flatten();
+		String file = RayTracer.sceneWorkspace.resolve(fileName);
+		try {
+			mesh = ResourceCache.getInstance().get(file, "mesh", LOADER);
+			dataDigest = ResourceCache.getInstance().getDigest(file);
+		} catch (IOException e) {
+			throw new Error("Could not load mesh " + file, e);
+		}
 	}
 	
-	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {	return false; }
+	/**
+	 * @return The underlying data of this mesh, which may be shared with other meshes.
+	 */
+	public MeshData getData() {
+		return mesh;
+	}
+	
+	/**
+	 * @return A digest that identifies the data if it was loaded from a file, or null
+	 */
+	public String getDataDigest() {
+		return dataDigest;
+	}
+	
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, RenderContext ctx) {	return false; }
 	public void computeBoundingBox() {	}
 
 	public void appendRenderableSurfaces (ArrayList<Surface> in) {
@@ -65,6 +121,31 @@ public class Mesh extends Surface {
 		}
 	}
 	
+	public void appendRenderableSurfaces (ArrayList<Surface> in, TriangleStore triangles) {
+		if (instanceAccel != null)
+			in.add(new MeshInstance(this, instanceAccel));
+		else
+			triangles.addMesh(this);
+	}
+	
+	/**
+	 * @return The number of triangles in the mesh.
+	 */
+	public int getFaceCount() {
+		return mesh.indexCount / 3;
+	}
+	
+	/**
+	 * Get the vertex indices of a triangle.
+	 * @param index The triangle index.
+	 * @param outFace Where to write the 3 vertex indices.
+	 */
+	public void getFace(int index, int[] outFace) {
+		outFace[0] = mesh.indices.get(3*index);
+		outFace[1] = mesh.indices.get(3*index+1);
+		outFace[2] = mesh.indices.get(3*index+2);
+	}
+	
 	/**
 	 * @return True if the mesh has per-vertex normals specified.
 	 */
@@ -85,9 +166,19 @@ public class Mesh extends Surface {
 	 * @return The position of the specified vertex.
 	 */
 	public Vector3d getPosition(int index) {
-		return new Vector3d(mesh.positions.get(3*index),
-							mesh.positions.get(3*index+1),
-							mesh.positions.get(3*index+2));
+		return getPosition(index, new Vector3d());
+	}
+	
+	/**
+	 * Get the position of a vertex without allocating.
+	 * @param index The vertex index.
+	 * @param outPosition Where to write the position.
+	 * @return outPosition, set to the position of the specified vertex.
+	 */
+	public Vector3d getPosition(int index, Vector3d outPosition) {
+		return outPosition.set(mesh.positions.get(3*index),
+							   mesh.positions.get(3*index+1),
+							   mesh.positions.get(3*index+2));
 	}
 	
 	/**
@@ -96,8 +187,18 @@ public class Mesh extends Surface {
 	 * @return The UV-coordinates of the specified vertex.
 	 */
 	public Vector2d getUV(int index) {
-		return new Vector2d(mesh.uvs.get(2*index),
-							mesh.uvs.get(2*index+1));
+		return getUV(index, new Vector2d());
+	}
+	
+	/**
+	 * Get the UV-coordinates of a vertex without allocating, assuming the coordinates exist.
+	 * @param index The vertex index.
+	 * @param outUV Where to write the coordinates.
+	 * @return outUV, set to the UV-coordinates of the specified vertex.
+	 */
+	public Vector2d getUV(int index, Vector2d outUV) {
+		return outUV.set(mesh.uvs.get(2*index),
+						 mesh.uvs.get(2*index+1));
 	}
 	
 	/**
@@ -106,9 +207,19 @@ public class Mesh extends Surface {
 	 * @return The normal at the specified vertex.
 	 */
 	public Vector3d getNormal(int index) {
-		return new Vector3d(mesh.normals.get(3*index),
-							mesh.normals.get(3*index+1),
-							mesh.normals.get(3*index+2));
+		return getNormal(index, new Vector3d());
+	}
+	
+	/**
+	 * Get the normal of a vertex without allocating, assuming it exists.
+	 * @param index The vertex index.
+	 * @param outNormal Where to write the normal.
+	 * @return outNormal, set to the normal at the specified vertex.
+	 */
+	public Vector3d getNormal(int index, Vector3d outNormal) {
+		return outNormal.set(mesh.normals.get(3*index),
+							 mesh.normals.get(3*index+1),
+							 mesh.normals.get(3*index+2));
 	}
 	
 }
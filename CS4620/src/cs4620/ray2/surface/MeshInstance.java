@@ -0,0 +1,153 @@
+package cs4620.ray2.surface;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cs4620.mesh.MeshData;
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
+import cs4620.ray2.accel.AccelStruct;
+import cs4620.ray2.accel.LinearBvh;
+import cs4620.ray2.accel.PrimitiveSet;
+import egl.math.Vector3d;
+
+/**
+ * One placement of a mesh whose data is shared with other meshes in the scene.
+ * The triangles of shared data are stored once, in object space, with one
+ * acceleration structure over them; every Mesh that uses the data becomes a
+ * MeshInstance in the scene's structure instead of adding its own copy of the
+ * triangles. A ray that reaches an instance is transformed into object space
+ * once and then traced through the shared structure.
+ *
+ * The shared structure is traversed while the scene's own traversal is still
+ * going on, so it uses the nested scratch space of
+ * {@link RenderContext#getInstanceContext()}.
+ */
+public class MeshInstance extends Surface {
+
+	/** The mesh that is placed; its transformation is the instance's. */
+	private final Mesh mesh;
+
+	/** The structure over the shared triangles, in object space. */
+	private final AccelStruct accel;
+
+	/** The object space bounds of the shared triangles. */
+	private final double[] objectBounds = new double[6];
+
+	public MeshInstance(Mesh mesh, AccelStruct accel) {
+		this.mesh = mesh;
+		this.accel = accel;
+		this.shader = mesh.getShader();
+
+		double[] box = new double[6];
+		for (int k = 0; k < 3; k++) {
+			objectBounds[k] = Double.POSITIVE_INFINITY;
+			objectBounds[k+3] = Double.NEGATIVE_INFINITY;
+		}
+		PrimitiveSet prims = accel.getPrimitives();
+		for (int i = 0; i < prims.size(); i++) {
+			prims.getBounds(i, box, 0);
+			for (int k = 0; k < 3; k++) {
+				objectBounds[k] = Math.min(objectBounds[k], box[k]);
+				objectBounds[k+3] = Math.max(objectBounds[k+3], box[k+3]);
+			}
+		}
+		computeBoundingBox();
+	}
+
+	/**
+	 * Find the meshes under surfaces that share their data with another mesh,
+	 * and give each group of them one acceleration structure over the shared
+	 * triangles. Those meshes then add themselves to the scene as instances.
+	 * @param surfaces The top level surfaces of a scene
+	 * @param cacheDir The directory the shared structures are cached in, or null to always build them
+	 * @return The number of meshes that will be instanced
+	 */
+	public static int createInstances(List<Surface> surfaces, String cacheDir) {
+		Map<MeshData, List<Mesh>> users = new IdentityHashMap<MeshData, List<Mesh>>();
+		for (Surface s : surfaces)
+			collectMeshes(s, users);
+
+		int instanced = 0;
+		for (List<Mesh> meshes : users.values()) {
+			if (meshes.size() < 2) {
+				meshes.get(0).instanceAccel = null;
+				continue;
+			}
+			TriangleStore triangles = new TriangleStore(true);
+			triangles.addMesh(meshes.get(0));
+			LinearBvh accel = new LinearBvh();
+			accel.setBuilder("sah");
+			accel.setCacheDir(cacheDir);
+			accel.build(new PrimitiveSet(triangles, new Surface[0]));
+			for (Mesh m : meshes)
+				m.instanceAccel = accel;
+			instanced += meshes.size();
+		}
+		return instanced;
+	}
+
+	private static void collectMeshes(Surface s, Map<MeshData, List<Mesh>> users) {
+		if (s instanceof Group) {
+			for (Surface child : ((Group) s).objs)
+				collectMeshes(child, users);
+		}
+		else if (s instanceof Mesh) {
+			Mesh m = (Mesh) s;
+			List<Mesh> list = users.get(m.getData());
+			if (list == null) {
+				list = new ArrayList<Mesh>();
+				users.put(m.getData(), list);
+			}
+			list.add(m);
+		}
+	}
+
+	/**
+	 * Intersect the ray with the shared triangles in the mesh's object space.
+	 * The record is filled out as if the mesh's own triangles had been hit.
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray ray, RenderContext ctx) {
+		Ray objectRay = mesh.untransformRay(ray, ctx.objectRay);
+		RenderContext inner = ctx.getInstanceContext();
+		if (outRecord == null)
+			return accel.occluded(objectRay, inner);
+		if (!accel.intersect(outRecord, objectRay, false, inner))
+			return false;
+
+		// t is the same in both spaces since the direction is not renormalized
+		outRecord.surface = mesh;
+		mesh.tMat.mulPos(outRecord.location);
+		mesh.tMatTInv.mulDir(outRecord.normal);
+		return true;
+	}
+
+	/**
+	 * The bounds are the object space bounds of the shared triangles, transformed
+	 * by the mesh's current transformation.
+	 */
+	public void computeBoundingBox() {
+		minBound = new Vector3d(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+		maxBound = new Vector3d(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		Vector3d p = new Vector3d();
+		for (int c = 0; c < 8; c++) {
+			p.set(objectBounds[(c & 1) == 0 ? 0 : 3],
+				  objectBounds[(c & 2) == 0 ? 1 : 4],
+				  objectBounds[(c & 4) == 0 ? 2 : 5]);
+			mesh.tMat.mulPos(p);
+			minBound.set(Math.min(minBound.x, p.x), Math.min(minBound.y, p.y), Math.min(minBound.z, p.z));
+			maxBound.set(Math.max(maxBound.x, p.x), Math.max(maxBound.y, p.y), Math.max(maxBound.z, p.z));
+		}
+		averagePosition = minBound.clone().add(maxBound).mul(0.5);
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "MeshInstance of " + mesh;
+	}
+}
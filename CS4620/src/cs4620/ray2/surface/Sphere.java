@@ -2,6 +2,7 @@ package cs4620.ray2.surface;
 
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import egl.math.Vector3d;
 
 /**
@@ -40,14 +41,16 @@ public class Sphere extends Surface {
 	 *            the output IntersectionRecord
 	 * @param ray
 	 *            the ray to intersect
+	 * @param ctx
+	 *            scratch space of the calling thread
 	 * @return true if the surface intersects the ray
 	 */
-	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, RenderContext ctx) {
 	  	//TODO#A7: Modify the intersect method: transform the ray to object space
 	  	//transform the resulting intersection point and normal to world space
 
 		//transform the ray into object space
-		Ray ray = untransformRay(rayIn);
+		Ray ray = untransformRay(rayIn, ctx.objectRay);
 		
 		// Rename the common vectors so I don't have to type so much
 		Vector3d d = ray.direction;
@@ -97,8 +100,8 @@ public class Sphere extends Surface {
 			double u = (phi + Math.PI) / (2 * Math.PI);
 			double v = (theta - Math.PI / 2) / Math.PI;
 			outRecord.texCoords.set(u, v);
-			outRecord.normal.set(tMat.mulDir(outRecord.normal));
-			outRecord.location.set(tMat.mulPos(outRecord.location));
+			tMat.mulDir(outRecord.normal);
+			tMat.mulPos(outRecord.location);
 		}
 
 		return true;
@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import cs4620.ray2.surface.Surface;
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import cs4620.ray2.shader.Shader;
 import egl.math.Colord;
 import egl.math.Matrix4d;
@@ -53,13 +54,23 @@ public abstract class Surface {
 	 * @return tMatInv * rayIn
 	 */
 	public Ray untransformRay(Ray rayIn) {
-		Ray ray = new Ray(rayIn.origin, rayIn.direction);
-		ray.start = rayIn.start;
-		ray.end = rayIn.end;
+		return untransformRay(rayIn, new Ray());
+	}
+	
+	/**
+	 * Un-transform rayIn using tMatInv, without allocating
+	 * @param rayIn Input ray
+	 * @param outRay Where to write the result
+	 * @return outRay, set to tMatInv * rayIn
+	 */
+	public Ray untransformRay(Ray rayIn, Ray outRay) {
+		outRay.set(rayIn.origin, rayIn.direction);
+		outRay.start = rayIn.start;
+		outRay.end = rayIn.end;
 
-		tMatInv.mulDir(ray.direction);
-		tMatInv.mulPos(ray.origin);
-		return ray;
+		tMatInv.mulDir(outRay.direction);
+		tMatInv.mulPos(outRay.origin);
+		return outRay;
 	}
 	
 	public void setTransformation(Matrix4d a, Matrix4d aInv, Matrix4d aTInv) {
@@ -77,9 +88,20 @@ public abstract class Surface {
 	 *
 	 * @param outRecord the output IntersectionRecord
 	 * @param ray the ray to intersect
+	 * @param ctx scratch space of the calling thread
 	 * @return true if the surface intersects the ray
 	 */
-	public abstract boolean intersect(IntersectionRecord outRecord, Ray ray);
+	public abstract boolean intersect(IntersectionRecord outRecord, Ray ray, RenderContext ctx);
+	
+	/**
+	 * Tests this surface for intersection with ray using the calling thread's
+	 * scratch space.
+	 * 
+	 * @see #intersect(IntersectionRecord, Ray, RenderContext)
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray ray) {
+		return intersect(outRecord, ray, RenderContext.current());
+	}
 
 	/**
 	 * Compute the bounding box and store the result in
@@ -95,6 +117,14 @@ public abstract class Surface {
 		in.add(this);
 	}
 	
+	/**
+	 * Add this surface to the array list in, or its triangles to the given
+	 * triangle store. Meshes use the store; everything else goes to the list.
+	 */
+	public void appendRenderableSurfaces(ArrayList<Surface> in, TriangleStore triangles) {
+		appendRenderableSurfaces(in);
+	}
+	
 	public void getMinMax(Vector3d min, Vector3d max, Vector3d p1, Vector3d p2, Vector3d p3, Vector3d p4, Vector3d p5, Vector3d p6, Vector3d p7, Vector3d p8) {
 		tMat.mulPos(p1);
 		tMat.mulPos(p2);
@@ -2,6 +2,7 @@ package cs4620.ray2.surface;
 
 import cs4620.ray2.IntersectionRecord;
 import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
 import egl.math.Vector3d;
 import egl.math.Vector3i;
 import cs4620.ray2.shader.Shader;
@@ -60,15 +61,17 @@ public class Triangle extends Surface {
 	 *            the output IntersectionRecord
 	 * @param rayIn
 	 *            the ray to intersect
+	 * @param ctx
+	 *            scratch space of the calling thread
 	 * @return true if the surface intersects the ray
 	 */
-	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, RenderContext ctx) {
 	  	//TODO#A7: Modify the intersect method: transform the ray to object space
 	  	//transform the resulting intersection point and normal to world space
 
-		Ray ray = untransformRay(rayIn);		
+		Ray ray = untransformRay(rayIn, ctx.objectRay);		
 		
-		Vector3d v0 = owner.getPosition(index.x).clone();
+		Vector3d v0 = owner.getPosition(index.x, ctx.v[0]);
 		
 		double g = ray.direction.x;
 		double h = ray.direction.y;
@@ -109,21 +112,22 @@ public class Triangle extends Surface {
 			if (norm != null) {
 				outRecord.normal.set(norm);
 			} else {
+				Vector3d n = ctx.v[1];
 				outRecord.normal
 						.setZero()
-						.addMultiple(1 - beta - gamma, owner.getNormal(index.x))
-						.addMultiple(beta, owner.getNormal(index.y))
-						.addMultiple(gamma, owner.getNormal(index.z));
+						.addMultiple(1 - beta - gamma, owner.getNormal(index.x, n))
+						.addMultiple(beta, owner.getNormal(index.y, n))
+						.addMultiple(gamma, owner.getNormal(index.z, n));
 			}
 			
 			outRecord.normal.normalize();
-			outRecord.normal.set(tMatTInv.mulDir(outRecord.normal));
-			outRecord.location.set(tMat.mulPos(outRecord.location));
+			tMatTInv.mulDir(outRecord.normal);
+			tMat.mulPos(outRecord.location);
 			if (owner.hasUVs()) {
 				outRecord.texCoords.setZero()
-						.addMultiple(1 - beta - gamma, owner.getUV(index.x))
-						.addMultiple(beta, owner.getUV(index.y))
-						.addMultiple(gamma, owner.getUV(index.z));
+						.addMultiple(1 - beta - gamma, owner.getUV(index.x, ctx.uv))
+						.addMultiple(beta, owner.getUV(index.y, ctx.uv))
+						.addMultiple(gamma, owner.getUV(index.z, ctx.uv));
 			}
 		}
 
@@ -0,0 +1,402 @@
+package cs4620.ray2.surface;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import cs4620.ray2.IntersectionRecord;
+import cs4620.ray2.Ray;
+import cs4620.ray2.RenderContext;
+import egl.math.Vector3d;
+
+/**
+ * The triangles of every Mesh in a scene, stored as flat primitive arrays
+ * instead of one Triangle object per face. When a mesh is added its vertices
+ * are transformed into world space once, and each triangle keeps only its first
+ * vertex and two edge vectors, which is exactly what the Moller-Trumbore test
+ * needs. Rays are intersected in world space, so nothing is untransformed per
+ * test and vertex data is only read back from the owning mesh to fill out the
+ * record of a hit.
+ *
+ * The vectors are stored as structure of arrays, one array per coordinate, so
+ * the same coordinate of triangles that share a BVH leaf (which are stored next
+ * to each other) is contiguous.
+ *
+ * Adding a mesh only registers it; the triangles are worked out by fill(), which
+ * building an acceleration structure does first, unless a cached copy of them
+ * is read() instead.
+ */
+public class TriangleStore {
+
+	/** The number of triangles stored. */
+	private int count = 0;
+
+	/** The number of triangles that have been filled in. */
+	private int filled = 0;
+
+	/** Coordinates of the first vertex of each triangle in world space. */
+	private double[] v0x = new double[0], v0y = new double[0], v0z = new double[0];
+
+	/** Coordinates of the edges v1 - v0 and v2 - v0 in world space. */
+	private double[] e1x = new double[0], e1y = new double[0], e1z = new double[0];
+	private double[] e2x = new double[0], e2y = new double[0], e2z = new double[0];
+
+	/** Vertex indices into the owning mesh, 3 ints per triangle. */
+	private int[] vertices = new int[0];
+
+	/** Index of the owning mesh in meshes, 1 int per triangle. */
+	private int[] owners = new int[0];
+
+	/** The meshes whose triangles are stored here. */
+	private final ArrayList<Mesh> meshes = new ArrayList<Mesh>();
+
+	/**
+	 * If true, vertices are stored as they are in the mesh instead of in world
+	 * space, and hits are reported in object space: this is a store of triangles
+	 * shared by several {@link MeshInstance}s.
+	 */
+	private final boolean objectSpace;
+
+	public TriangleStore() {
+		this(false);
+	}
+
+	/**
+	 * @param objectSpace Whether to keep the triangles in object space
+	 */
+	public TriangleStore(boolean objectSpace) {
+		this.objectSpace = objectSpace;
+	}
+
+	/**
+	 * @return The number of triangles stored.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Add every face of a mesh. Its triangles are filled in by fill().
+	 * @param mesh The mesh to add.
+	 */
+	public void addMesh(Mesh mesh) {
+		meshes.add(mesh);
+		count += mesh.getFaceCount();
+	}
+
+	/**
+	 * Fill in the triangles of the meshes added since the last call, transformed
+	 * to world space by each mesh's current transformation unless this store is
+	 * in object space. The triangles must be filled in before they are used.
+	 */
+	public void fill() {
+		if (filled == count) return;
+		ensureCapacity(count);
+
+		// Skip the meshes whose triangles are there already
+		int owner = 0;
+		for (int n = 0; n < filled; n += meshes.get(owner++).getFaceCount());
+
+		Vector3d p0 = new Vector3d(), p1 = new Vector3d(), p2 = new Vector3d();
+		int[] face = new int[3];
+		for (; owner < meshes.size(); owner++) {
+			Mesh mesh = meshes.get(owner);
+			int faces = mesh.getFaceCount();
+			for (int i = 0; i < faces; i++) {
+				mesh.getFace(i, face);
+				mesh.getPosition(face[0], p0);
+				mesh.getPosition(face[1], p1);
+				mesh.getPosition(face[2], p2);
+				if (!objectSpace) {
+					mesh.tMat.mulPos(p0);
+					mesh.tMat.mulPos(p1);
+					mesh.tMat.mulPos(p2);
+				}
+
+				set(filled, p0, p1, p2);
+				int k = 3 * filled;
+				vertices[k] = face[0]; vertices[k+1] = face[1]; vertices[k+2] = face[2];
+				owners[filled] = owner;
+				filled++;
+			}
+		}
+	}
+
+	/**
+	 * Feed everything the triangles are made from to a digest: the data of every
+	 * mesh, identified by the digest of its file where it has one, and the mesh's
+	 * transformation unless this store is in object space. Stores that agree on
+	 * all of it fill in the same triangles.
+	 */
+	public void digest(MessageDigest digest) {
+		ByteBuffer buf = ByteBuffer.allocate(8 * 18);
+		buf.put((byte) (objectSpace ? 1 : 0)).putInt(meshes.size());
+		digest.update(buf.array(), 0, buf.position());
+		for (Mesh mesh : meshes) {
+			buf.clear();
+			buf.putInt(mesh.getFaceCount());
+			if (!objectSpace) {
+				for (double v : mesh.tMat.m)
+					buf.putDouble(v);
+			}
+			digest.update(buf.array(), 0, buf.position());
+
+			if (mesh.getDataDigest() != null) {
+				digest.update(mesh.getDataDigest().getBytes());
+				continue;
+			}
+			FloatBuffer positions = mesh.getData().positions.duplicate();
+			IntBuffer indices = mesh.getData().indices.duplicate();
+			positions.clear();
+			indices.clear();
+			ByteBuffer data = ByteBuffer.allocate(4 * (positions.remaining() + indices.remaining()));
+			data.asFloatBuffer().put(positions);
+			data.position(4 * positions.capacity());
+			data.asIntBuffer().put(indices);
+			digest.update(data.array());
+		}
+	}
+
+	/**
+	 * @return The number of bytes write() puts out
+	 */
+	public long dataSize() {
+		return 4L * 4 * count + 8L * 9 * count;
+	}
+
+	/**
+	 * Write the filled in triangles to buf, in their current order.
+	 */
+	public void write(ByteBuffer buf) {
+		DoubleBuffer doubles = buf.asDoubleBuffer();
+		for (double[] c : coordinates())
+			doubles.put(c, 0, count);
+		buf.position(buf.position() + 8 * 9 * count);
+		buf.asIntBuffer().put(vertices, 0, 3 * count).put(owners, 0, count);
+		buf.position(buf.position() + 4 * 4 * count);
+	}
+
+	/**
+	 * Take the triangles from buf, as written by write() from a store with
+	 * the same digest, instead of filling them in.
+	 */
+	public void read(ByteBuffer buf) {
+		double[][] c = new double[9][count];
+		DoubleBuffer doubles = buf.asDoubleBuffer();
+		for (double[] a : c)
+			doubles.get(a);
+		setCoordinates(c);
+		vertices = new int[3 * count];
+		owners = new int[count];
+		buf.position(buf.position() + 8 * 9 * count);
+		buf.asIntBuffer().get(vertices).get(owners);
+		buf.position(buf.position() + 4 * 4 * count);
+		filled = count;
+	}
+
+	/**
+	 * Transform every triangle to world space again with the current
+	 * transformation of its mesh. The order of the triangles is kept.
+	 * Object space stores don't change.
+	 */
+	public void update() {
+		fill();
+		if (objectSpace) return;
+		Vector3d p0 = new Vector3d(), p1 = new Vector3d(), p2 = new Vector3d();
+		for (int i = 0; i < count; i++) {
+			Mesh mesh = meshes.get(owners[i]);
+			int k = 3 * i;
+			mesh.tMat.mulPos(mesh.getPosition(vertices[k], p0));
+			mesh.tMat.mulPos(mesh.getPosition(vertices[k+1], p1));
+			mesh.tMat.mulPos(mesh.getPosition(vertices[k+2], p2));
+			set(i, p0, p1, p2);
+		}
+	}
+
+	/**
+	 * Store triangle i as the triangle with corners p0, p1 and p2.
+	 */
+	private void set(int i, Vector3d p0, Vector3d p1, Vector3d p2) {
+		v0x[i] = p0.x; v0y[i] = p0.y; v0z[i] = p0.z;
+		e1x[i] = p1.x - p0.x; e1y[i] = p1.y - p0.y; e1z[i] = p1.z - p0.z;
+		e2x[i] = p2.x - p0.x; e2y[i] = p2.y - p0.y; e2z[i] = p2.z - p0.z;
+	}
+
+	/**
+	 * @return The coordinate arrays: v0, e1 and e2, x, y and z each
+	 */
+	private double[][] coordinates() {
+		return new double[][] { v0x, v0y, v0z, e1x, e1y, e1z, e2x, e2y, e2z };
+	}
+
+	private void setCoordinates(double[][] c) {
+		v0x = c[0]; v0y = c[1]; v0z = c[2];
+		e1x = c[3]; e1y = c[4]; e1z = c[5];
+		e2x = c[6]; e2y = c[7]; e2z = c[8];
+	}
+
+	private void ensureCapacity(int n) {
+		if (owners.length >= n) return;
+		int capacity = Math.max(n, 2 * owners.length);
+		double[][] c = coordinates();
+		for (int a = 0; a < c.length; a++)
+			c[a] = Arrays.copyOf(c[a], capacity);
+		setCoordinates(c);
+		vertices = Arrays.copyOf(vertices, 3 * capacity);
+		owners = Arrays.copyOf(owners, capacity);
+	}
+
+	/**
+	 * Reorder the triangles so that triangle i becomes the old triangle order[i],
+	 * e.g. to put triangles that share a BVH leaf next to each other in memory.
+	 * This also releases any spare capacity.
+	 * @param order A permutation of 0 .. size()-1.
+	 */
+	public void reorder(int[] order) {
+		double[][] c = coordinates();
+		for (int a = 0; a < c.length; a++) {
+			double[] old = c[a];
+			c[a] = new double[count];
+			for (int i = 0; i < count; i++)
+				c[a][i] = old[order[i]];
+		}
+		setCoordinates(c);
+		int[] nVertices = new int[3 * count], nOwners = new int[count];
+		for (int i = 0; i < count; i++) {
+			int o = order[i];
+			System.arraycopy(vertices, 3*o, nVertices, 3*i, 3);
+			nOwners[i] = owners[o];
+		}
+		vertices = nVertices; owners = nOwners;
+	}
+
+	/**
+	 * Move some triangles among their own places: triangle slots[i] becomes the
+	 * old triangle sources[i], for i below n, and all other triangles stay put.
+	 * @param slots The places to fill
+	 * @param sources A permutation of slots[0 .. n-1]
+	 * @param n The number of triangles moved
+	 */
+	public void reorder(int[] slots, int[] sources, int n) {
+		double[] moved = new double[n];
+		for (double[] c : coordinates()) {
+			for (int i = 0; i < n; i++)
+				moved[i] = c[sources[i]];
+			for (int i = 0; i < n; i++)
+				c[slots[i]] = moved[i];
+		}
+		int[] nVertices = new int[3 * n], nOwners = new int[n];
+		for (int i = 0; i < n; i++) {
+			int o = sources[i];
+			System.arraycopy(vertices, 3*o, nVertices, 3*i, 3);
+			nOwners[i] = owners[o];
+		}
+		for (int i = 0; i < n; i++) {
+			int s = slots[i];
+			System.arraycopy(nVertices, 3*i, vertices, 3*s, 3);
+			owners[s] = nOwners[i];
+		}
+	}
+
+	/**
+	 * Write the world space bounding box of a triangle to box[off..off+5]
+	 * as min x, y, z followed by max x, y, z.
+	 */
+	public void getBounds(int tri, double[] box, int off) {
+		bounds(v0x[tri], e1x[tri], e2x[tri], box, off);
+		bounds(v0y[tri], e1y[tri], e2y[tri], box, off + 1);
+		bounds(v0z[tri], e1z[tri], e2z[tri], box, off + 2);
+	}
+
+	private static void bounds(double p, double a, double b, double[] box, int off) {
+		double q = p + a, r = p + b;
+		box[off] = Math.min(p, Math.min(q, r));
+		box[off+3] = Math.max(p, Math.max(q, r));
+	}
+
+	/**
+	 * Intersect a ray with one triangle. The record is filled out exactly as
+	 * {@link Triangle} would, with the owning Mesh as its surface.
+	 *
+	 * @param tri The index of the triangle.
+	 * @param outRecord The output IntersectionRecord, may be null.
+	 * @param ray The ray to intersect, in world space.
+	 * @param ctx Scratch space of the calling thread.
+	 * @return true if the triangle intersects the ray
+	 */
+	public boolean intersect(int tri, IntersectionRecord outRecord, Ray ray, RenderContext ctx) {
+		double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+		double ax = e1x[tri], ay = e1y[tri], az = e1z[tri];
+		double bx = e2x[tri], by = e2y[tri], bz = e2z[tri];
+
+		// p = d x e2
+		double px = dy * bz - dz * by;
+		double py = dz * bx - dx * bz;
+		double pz = dx * by - dy * bx;
+		double det = ax * px + ay * py + az * pz;
+		if (det == 0)
+			return false;
+		double invDet = 1.0 / det;
+
+		double sx = ray.origin.x - v0x[tri];
+		double sy = ray.origin.y - v0y[tri];
+		double sz = ray.origin.z - v0z[tri];
+		double beta = (sx * px + sy * py + sz * pz) * invDet;
+		if (beta < 0 || beta > 1)
+			return false;
+
+		// q = s x e1
+		double qx = sy * az - sz * ay;
+		double qy = sz * ax - sx * az;
+		double qz = sx * ay - sy * ax;
+		double gamma = (dx * qx + dy * qy + dz * qz) * invDet;
+		if (gamma < 0 || gamma + beta > 1)
+			return false;
+
+		double t = (bx * qx + by * qy + bz * qz) * invDet;
+		if (t > ray.end || t < ray.start)
+			return false;
+
+		// There was an intersection, fill out the intersection record
+		if (outRecord != null) {
+			Mesh owner = meshes.get(owners[tri]);
+			int k = 3 * tri;
+			int i0 = vertices[k], i1 = vertices[k+1], i2 = vertices[k+2];
+
+			outRecord.t = t;
+			ray.evaluate(outRecord.location, t);
+			outRecord.surface = owner;
+
+			// Normals are computed in object space and transformed, like Triangle does
+			if (owner.hasNormals()) {
+				Vector3d n = ctx.v[0];
+				outRecord.normal
+						.setZero()
+						.addMultiple(1 - beta - gamma, owner.getNormal(i0, n))
+						.addMultiple(beta, owner.getNormal(i1, n))
+						.addMultiple(gamma, owner.getNormal(i2, n));
+			} else {
+				Vector3d p0 = owner.getPosition(i0, ctx.v[0]);
+				Vector3d a = owner.getPosition(i1, ctx.v[1]).sub(p0);
+				Vector3d b = owner.getPosition(i2, ctx.v[2]).sub(p0);
+				outRecord.normal.set(a).cross(b);
+			}
+			outRecord.normal.normalize();
+			if (!objectSpace)
+				owner.tMatTInv.mulDir(outRecord.normal);
+
+			if (owner.hasUVs()) {
+				outRecord.texCoords.setZero()
+						.addMultiple(1 - beta - gamma, owner.getUV(i0, ctx.uv))
+						.addMultiple(beta, owner.getUV(i1, ctx.uv))
+						.addMultiple(gamma, owner.getUV(i2, ctx.uv));
+			}
+		}
+
+		return true;
+	}
+}
@@ -9,7 +9,6 @@ import java.io.File;
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 
-import egl.math.Colord;
 import cs4620.ray2.Image;
 
 
@@ -108,16 +107,12 @@ public class PanelDisplay extends JPanel {
 			bufferedImage = new BufferedImage(image.getWidth(), image.getHeight(), BUFFER_TYPE);
 		}
 		
-		//int w = image.getWidth();
+		int w = image.getWidth();
 		int h = image.getHeight();
-		Colord pixelColor = new Colord();
+		int[] row = new int[w];
 		for (int y = h-yh; y < h-yl; y++) {
-			for (int x = xl; x < xh; x++) {
-				image.getPixelColor(pixelColor,x,h-y-1);
-				pixelColor.gammaCorrect(2.2);
-				int rgb = pixelColor.toColor().toIntRGB();
-				bufferedImage.setRGB(x,y,rgb);
-			}
+			image.getRowRGB(row, h-y-1, 2.2);
+			bufferedImage.setRGB(xl, y, xh-xl, 1, row, xl, w);
 		}
 	}
 	
@@ -6,6 +6,7 @@ import java.util.ArrayList;
 
 import cs4620.mesh.MeshConverter;
 import cs4620.mesh.MeshData;
+import cs4620.mesh.MeshOptimizer;
 import cs4620.mesh.OBJMesh;
 import cs4620.mesh.OBJParser;
 import cs4620.mesh.gen.MeshGenCube;
@@ -160,8 +161,9 @@ public class MeshGen {
 			// Generate The Surface Data
 			MeshData outData = new MeshData();
 			gen.generate(outData, opt);
+			if(fullMeshOptimization) reorder(outData);
 			
-			// Write Data (No Optimizations Done)
+			// Write Data
 			OBJParser.write(w, OBJParser.convert(outData));
 		}
 		else if (fileIn != null) {
@@ -189,8 +191,9 @@ public class MeshGen {
 			MeshData convMesh = useSmoothNormals
 				? MeshConverter.convertToVertexNormals(expPos, mesh.triangles)
 				: MeshConverter.convertToFaceNormals(expPos, mesh.triangles);
+			if(fullMeshOptimization) reorder(convMesh);
 			
-			// Rewrite Data (No Optimizations Done)
+			// Rewrite Data
 			OBJParser.write(w, OBJParser.convert(convMesh));
 		}
 		else {
@@ -204,4 +207,13 @@ public class MeshGen {
 		w.close();
 		System.out.println("Operation Successful");
 	}
+
+	/**
+	 * Reorders The Triangles And Vertices Of A Mesh For The Vertex Cache
+	 * @param data Mesh
+	 */
+	private static void reorder(MeshData data) {
+		float[] acmr = MeshOptimizer.optimize(data);
+		System.out.println(String.format("Vertex Cache ACMR: %.3f -> %.3f", acmr[0], acmr[1]));
+	}
 }